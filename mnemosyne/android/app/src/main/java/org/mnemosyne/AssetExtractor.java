@@ -0,0 +1,298 @@
+package org.mnemosyne;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+// Extracts the Python runtime and the Mnemosyne sources from the APK assets.
+//
+// Decompression of a zip stream is inherently serial, but writing to flash is
+// what dominates on low-end devices, so the actual writes are handed off to a
+// thread pool and done through FileChannels with large buffers.
+//
+// A manifest with a CRC32 and size per extracted file is kept next to the
+// extracted files, so that after an app update only the files whose contents
+// actually changed are rewritten, and files which are no longer shipped are
+// removed. Without a manifest, e.g. after updating from a version which did
+// not keep one yet, we can't tell which files are stale, so the output
+// directory is emptied first.
+//
+// This class does not depend on Android, so that it can also be exercised on
+// a plain JVM.
+
+public class AssetExtractor {
+
+    public interface AssetSource {
+        InputStream open(String path) throws IOException;
+    }
+
+    public static final String MANIFEST = "assets.manifest";
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    private AssetSource source;
+    private File outputDir;
+    private ExecutorService pool;
+    private Semaphore inFlight;
+    private List<Future<?>> pending = new ArrayList<Future<?>>();
+    private Map<String, String> oldManifest;
+    private Map<String, String> newManifest = new ConcurrentHashMap<String, String>();
+    private AtomicInteger filesWritten = new AtomicInteger(0);
+    private AtomicInteger filesSkipped = new AtomicInteger(0);
+
+    public AssetExtractor(AssetSource source, File outputDir, int threads) {
+        this.source = source;
+        this.outputDir = outputDir;
+        this.pool = Executors.newFixedThreadPool(threads);
+        // Bound the amount of decompressed data waiting to be written.
+        this.inFlight = new Semaphore(4 * threads);
+        File manifestFile = new File(outputDir, MANIFEST);
+        if (!manifestFile.exists()) {
+            deleteContents(outputDir);
+        }
+        this.oldManifest = readManifest(manifestFile);
+    }
+
+    public int getFilesWritten() {
+        return filesWritten.get();
+    }
+
+    public int getFilesSkipped() {
+        return filesSkipped.get();
+    }
+
+    // Copy a single asset to the same relative path in the output directory.
+    public void copyAsset(final String path) {
+        pending.add(pool.submit(new Callable<Void>() {
+            public Void call() throws IOException {
+                InputStream in = source.open(path);
+                try {
+                    store(path, readFully(in, -1));
+                } finally {
+                    in.close();
+                }
+                return null;
+            }
+        }));
+    }
+
+    // Unpack a zipped asset into the output directory. Inflating happens on
+    // the calling thread, writing happens in the pool.
+    public void extractZip(String path) throws IOException {
+        ZipInputStream in = new ZipInputStream(source.open(path));
+        try {
+            ZipEntry entry;
+            while ((entry = in.getNextEntry()) != null) {
+                final String name = entry.getName();
+                if (entry.isDirectory()) {
+                    new File(outputDir, name).mkdirs();
+                    continue;
+                }
+                final byte[] data = readFully(in, entry.getSize());
+                try {
+                    inFlight.acquire();
+                } catch (InterruptedException e) {
+                    throw new IOException("Interrupted while extracting " + path);
+                }
+                pending.add(pool.submit(new Callable<Void>() {
+                    public Void call() throws IOException {
+                        try {
+                            store(name, data);
+                        } finally {
+                            inFlight.release();
+                        }
+                        return null;
+                    }
+                }));
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    // Wait for all writes, remove files which are no longer shipped and
+    // persist the new manifest. Throws the first error encountered.
+    public void finish() throws IOException {
+        IOException error = null;
+        for (Future<?> future : pending) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                if (error == null) {
+                    Throwable cause = e.getCause();
+                    error = cause instanceof IOException ? (IOException) cause :
+                            new IOException("Could not extract assets", cause);
+                }
+            } catch (InterruptedException e) {
+                if (error == null) {
+                    error = new IOException("Interrupted while extracting");
+                }
+            }
+        }
+        pending.clear();
+        pool.shutdown();
+        if (error != null) {
+            // Keep the old manifest, so that the next attempt compares
+            // against what is known to be on disk.
+            throw error;
+        }
+        for (String name : oldManifest.keySet()) {
+            if (!newManifest.containsKey(name)) {
+                new File(outputDir, name).delete();
+            }
+        }
+        writeManifest(new File(outputDir, MANIFEST), newManifest);
+    }
+
+    // Give up after an error while queueing work. Nothing is deleted and the
+    // old manifest stays in place, as the new one would be incomplete.
+    public void abort() {
+        pool.shutdownNow();
+        pending.clear();
+    }
+
+    private void store(String name, byte[] data) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        String signature = Long.toHexString(crc.getValue()) + ":" + data.length;
+        newManifest.put(name, signature);
+        File file = new File(outputDir, name);
+        if (signature.equals(oldManifest.get(name)) && file.length() == data.length) {
+            filesSkipped.incrementAndGet();
+            return;
+        }
+        writeFile(file, data);
+        filesWritten.incrementAndGet();
+    }
+
+    // Copy a single stream to 'file', e.g. to materialise an asset on demand.
+    public static void copyToFile(InputStream in, File file) throws IOException {
+        try {
+            writeFile(file, readFully(in, -1));
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void writeFile(File file, byte[] data) throws IOException {
+        File parent = file.getParentFile();
+        if (parent != null && !parent.exists()) {
+            parent.mkdirs();
+        }
+        // Write to a temporary file first, so that an interrupted update
+        // never leaves a truncated file behind under the real name.
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            FileChannel channel = out.getChannel();
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Could not create " + file);
+            }
+        }
+    }
+
+    private static byte[] readFully(InputStream in, long size) throws IOException {
+        if (size >= 0 && size <= Integer.MAX_VALUE) {
+            byte[] data = new byte[(int) size];
+            int offset = 0;
+            while (offset < data.length) {
+                int readLen = in.read(data, offset, data.length - offset);
+                if (readLen == -1) {
+                    throw new IOException("Unexpected end of asset");
+                }
+                offset += readLen;
+            }
+            return data;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(BUFFER_SIZE);
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int readLen;
+        while ((readLen = in.read(buffer)) != -1) {
+            out.write(buffer, 0, readLen);
+        }
+        return out.toByteArray();
+    }
+
+    private static void deleteContents(File dir) {
+        File[] children = dir.listFiles();
+        if (children == null) {
+            return;
+        }
+        for (File child : children) {
+            if (child.isDirectory()) {
+                deleteContents(child);
+            }
+            child.delete();
+        }
+    }
+
+    private static Map<String, String> readManifest(File file) {
+        Map<String, String> manifest = new HashMap<String, String>();
+        try {
+            BufferedReader breader = new BufferedReader(new FileReader(file));
+            try {
+                String line;
+                while ((line = breader.readLine()) != null) {
+                    int index = line.lastIndexOf('\t');
+                    if (index > 0) {
+                        manifest.put(line.substring(0, index), line.substring(index + 1));
+                    }
+                }
+            } finally {
+                breader.close();
+            }
+        } catch (IOException e) {
+            // No manifest yet: everything will be written.
+            manifest.clear();
+        }
+        return manifest;
+    }
+
+    private static void writeManifest(File file, Map<String, String> manifest)
+            throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        BufferedWriter bwriter = new BufferedWriter(new FileWriter(tmp));
+        try {
+            for (Map.Entry<String, String> entry : manifest.entrySet()) {
+                bwriter.write(entry.getKey() + "\t" + entry.getValue() + "\n");
+            }
+        } finally {
+            bwriter.close();
+        }
+        file.delete();
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Could not write " + file);
+        }
+    }
+}
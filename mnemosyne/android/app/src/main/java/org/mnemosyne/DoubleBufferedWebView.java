@@ -0,0 +1,286 @@
+package org.mnemosyne;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.os.Build;
+import android.util.AttributeSet;
+import android.util.SparseArray;
+import android.view.View;
+import android.webkit.ValueCallback;
+import android.webkit.WebView;
+import android.webkit.WebViewClient;
+import android.widget.FrameLayout;
+
+import java.util.HashSet;
+import java.util.Set;
+
+// A pair of stacked WebViews, of which only the front one is visible.
+//
+// New content is loaded in the back WebView, and the two are swapped once it
+// is ready, so that the user never watches a page being parsed and laid out.
+// Content can also be preloaded in the back WebView before it is needed (e.g.
+// the question of the next card while the user is still grading), in which
+// case showing it is just a swap. The WebView which was showing the previous
+// card is then reused for the next card.
+//
+// Both WebViews keep a persistent review page loaded, and cards are shown by
+// having a small script replace the contents of its body, instead of loading
+// a complete page each time. Style sheets are cached by id, and are added to
+// the review page the first time they are used. Afterwards, switching to a
+// different style sheet just means enabling a different style element.
+
+public class DoubleBufferedWebView extends FrameLayout {
+
+    private static final String REVIEW_PAGE =
+            "<!DOCTYPE html><html><head><meta charset=\"utf-8\">" +
+            "<script type=\"text/javascript\">" +
+            "var mnem_styles = {};" +
+            "function mnem_show(css_id, css, body) {" +
+            "  if (css !== null) {" +
+            "    var style = document.createElement(\"style\");" +
+            "    style.type = \"text/css\";" +
+            "    style.textContent = css;" +
+            "    document.head.appendChild(style);" +
+            "    mnem_styles[css_id] = style;" +
+            "  }" +
+            "  for (var id in mnem_styles) {" +
+            "    mnem_styles[id].disabled = (id != css_id);" +
+            "  }" +
+            "  document.body.innerHTML = body;" +
+            "  if (document.getElementById(\"answer\")) {" +
+            "    window.location.hash = \"#answer\";" +
+            "  } else {" +
+            "    window.scrollTo(0, 0);" +
+            "  }" +
+            "}" +
+            "</script></head><body></body></html>";
+
+    // Pages are loaded with a unique url, such that we can tell which load
+    // 'onPageFinished' is about. A null base url would mean 'about:blank' too.
+    private static final String LOAD_URL = "about:blank#load-";
+
+    private class Buffer {
+        WebView view;
+        // State of the persistent review page in this WebView.
+        boolean hasReviewPage = false;
+        boolean isReviewPageLoading = false;
+        // The style sheets which have been added to the review page.
+        Set<Integer> cssIds = new HashSet<Integer>();
+        // Script waiting for the review page to finish loading.
+        String pendingScript = null;
+        // Url of the last page loaded in this WebView.
+        String loadUrl = null;
+    }
+
+    private Buffer front;
+    private Buffer back;
+    private SparseArray<String> styleSheets = new SparseArray<String>();
+    // What is shown (or being prepared) in the back buffer.
+    private int backCssId = -1;
+    private String backBody = null;
+    private boolean backReady = false;
+    private boolean swapWhenReady = false;
+    // Used to ignore notifications about content which has been replaced.
+    private int backGeneration = 0;
+    private int loads = 0;
+
+    public DoubleBufferedWebView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        front = createBuffer(context);
+        back = createBuffer(context);
+        // Invisible views still take part in the layout, so that the page in
+        // the back WebView gets laid out for the right size.
+        back.view.setVisibility(View.INVISIBLE);
+        addView(back.view);
+        addView(front.view);
+        loadReviewPage(front);
+        loadReviewPage(back);
+    }
+
+    private Buffer createBuffer(Context context) {
+        final Buffer buffer = new Buffer();
+        buffer.view = new WebView(context);
+        buffer.view.setLayoutParams(new LayoutParams(LayoutParams.MATCH_PARENT,
+                LayoutParams.MATCH_PARENT));
+        buffer.view.getSettings().setJavaScriptEnabled(true);
+        buffer.view.setWebViewClient(new WebViewClient() {
+            @Override
+            public void onPageFinished(WebView view, String url) {
+                if (!buffer.loadUrl.equals(url)) {
+                    // A page which was replaced before it finished loading, or
+                    // a jump to '#answer'.
+                    return;
+                }
+                if (buffer.isReviewPageLoading) {
+                    buffer.isReviewPageLoading = false;
+                    buffer.hasReviewPage = true;
+                    if (buffer.pendingScript != null) {
+                        String script = buffer.pendingScript;
+                        buffer.pendingScript = null;
+                        runScript(buffer, script, backGeneration);
+                    }
+                } else if (buffer == back && !buffer.hasReviewPage) {
+                    // A complete page, see 'loadHtml'.
+                    contentReady(backGeneration);
+                }
+            }
+        });
+        return buffer;
+    }
+
+    private void loadReviewPage(Buffer buffer) {
+        buffer.hasReviewPage = false;
+        buffer.isReviewPageLoading = true;
+        buffer.cssIds.clear();
+        load(buffer, REVIEW_PAGE);
+    }
+
+    private void load(Buffer buffer, String html) {
+        loads++;
+        buffer.loadUrl = LOAD_URL + loads;
+        buffer.view.loadDataWithBaseURL(buffer.loadUrl, html, "text/html", "utf-8",
+                buffer.loadUrl);
+    }
+
+    public void addStyleSheet(int cssId, String css) {
+        styleSheets.put(cssId, css);
+    }
+
+    // Show 'body' with the style sheet 'cssId', as soon as it is ready.
+    public void show(int cssId, String body) {
+        if (cssId == backCssId && body.equals(backBody)) {
+            if (backReady) {
+                swap();
+            } else {
+                swapWhenReady = true;
+            }
+            return;
+        }
+        inject(cssId, body, true);
+    }
+
+    // Prepare the body of a page in the background, in anticipation of a call
+    // to 'show' with the same contents.
+    public void preload(int cssId, String body) {
+        // Don't interfere with a page which is waiting to be shown.
+        if (swapWhenReady || (cssId == backCssId && body.equals(backBody))) {
+            return;
+        }
+        inject(cssId, body, false);
+    }
+
+    // Show a complete page, e.g. one which contains scripts, which would not
+    // run when injected in the review page.
+    public void loadHtml(String html) {
+        backGeneration++;
+        backCssId = -1;
+        backBody = null;
+        backReady = false;
+        swapWhenReady = true;
+        back.hasReviewPage = false;
+        back.isReviewPageLoading = false;
+        back.pendingScript = null;
+        back.cssIds.clear();
+        load(back, html);
+    }
+
+    private void inject(int cssId, String body, boolean swap) {
+        backGeneration++;
+        backCssId = cssId;
+        backBody = body;
+        backReady = false;
+        swapWhenReady = swap;
+        if (!back.hasReviewPage) {
+            // Only the last script waiting for the review page will run.
+            back.cssIds.clear();
+        }
+        String css = "null";
+        if (!back.cssIds.contains(cssId)) {
+            css = quote(styleSheets.get(cssId, ""));
+            back.cssIds.add(cssId);
+        }
+        String script = "mnem_show(" + cssId + ", " + css + ", " + quote(body) + ");";
+        if (back.hasReviewPage) {
+            runScript(back, script, backGeneration);
+        } else {
+            back.pendingScript = script;
+            if (!back.isReviewPageLoading) {
+                loadReviewPage(back);
+            }
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private void runScript(Buffer buffer, String script, final int generation) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            buffer.view.evaluateJavascript(script, new ValueCallback<String>() {
+                public void onReceiveValue(String value) {
+                    contentReady(generation);
+                }
+            });
+        } else {
+            // No notification when the script has run, but it will have run
+            // before anything posted after it.
+            buffer.view.loadUrl("javascript:" + script);
+            post(new Runnable() {
+                public void run() {
+                    contentReady(generation);
+                }
+            });
+        }
+    }
+
+    private void contentReady(int generation) {
+        if (generation != backGeneration) {
+            return;
+        }
+        backReady = true;
+        if (swapWhenReady) {
+            swap();
+        }
+    }
+
+    private void swap() {
+        Buffer previous = front;
+        front = back;
+        back = previous;
+        front.view.setVisibility(View.VISIBLE);
+        back.view.setVisibility(View.INVISIBLE);
+        backGeneration++;
+        backCssId = -1;
+        backBody = null;
+        backReady = false;
+        swapWhenReady = false;
+        // A complete page has replaced the review page, so load it again
+        // while the buffer is not needed.
+        if (!back.hasReviewPage && !back.isReviewPageLoading) {
+            loadReviewPage(back);
+        }
+    }
+
+    // Quote 'text' as a JavaScript string literal. '%' is escaped as well,
+    // as 'javascript:' urls get url decoded on older devices.
+    private static String quote(String text) {
+        StringBuilder quoted = new StringBuilder(text.length() + 16);
+        quoted.append('"');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '"': quoted.append("\\\""); break;
+                case '\\': quoted.append("\\\\"); break;
+                case '\n': quoted.append("\\n"); break;
+                case '\r': quoted.append("\\r"); break;
+                case '%': quoted.append("\\u0025"); break;
+                case '\u2028': quoted.append("\\u2028"); break;
+                case '\u2029': quoted.append("\\u2029"); break;
+                default:
+                    if (c < 0x20) {
+                        quoted.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        quoted.append(c);
+                    }
+            }
+        }
+        return quoted.append('"').toString();
+    }
+}
@@ -0,0 +1,63 @@
+package org.mnemosyne;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+// Parses 'lib-dynload.manifest' from the assets, which lists for each shipped
+// extension module whether it is extracted at install time ('eager') or only
+// on its first import ('lazy').
+
+public class DynloadManifest {
+
+    public static final String ASSET = "lib-dynload.manifest";
+    public static final String SUFFIX = ".cpython-34m.so";
+
+    private List<String> eager = new ArrayList<String>();
+    private List<String> lazy = new ArrayList<String>();
+
+    public DynloadManifest(InputStream in) throws IOException {
+        BufferedReader breader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+        try {
+            String line;
+            while ((line = breader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split("\\s+");
+                if (fields.length != 2) {
+                    throw new IOException("Invalid line in " + ASSET + ": " + line);
+                }
+                if (fields[0].equals("eager")) {
+                    eager.add(fields[1]);
+                } else if (fields[0].equals("lazy")) {
+                    lazy.add(fields[1]);
+                } else {
+                    throw new IOException("Invalid line in " + ASSET + ": " + line);
+                }
+            }
+        } finally {
+            breader.close();
+        }
+    }
+
+    public List<String> getEager() {
+        return eager;
+    }
+
+    public List<String> getLazy() {
+        return lazy;
+    }
+
+    public boolean isLazy(String module) {
+        return lazy.contains(module);
+    }
+
+    public static String assetPath(String module) {
+        return "lib-dynload/" + module + SUFFIX;
+    }
+}
@@ -39,8 +39,6 @@ import com.srplab.www.starcore.StarObjectClass;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 public class MnemosyneActivity extends AppCompatActivity {
 
@@ -63,8 +61,8 @@ public class MnemosyneActivity extends AppCompatActivity {
     TextView questionLabel;
     TextView answerLabel;
     TextView statusbar;
-    WebView question;
-    WebView answer;
+    DoubleBufferedWebView question;
+    DoubleBufferedWebView answer;
     Button showAnswerButton;
     Button button0;
     Button button1;
@@ -96,9 +94,9 @@ public class MnemosyneActivity extends AppCompatActivity {
         myToolbar.setLayoutParams(params);
 
         questionLabel = (TextView) this.findViewById(R.id.questionLabel);
-        question = (WebView) this.findViewById(R.id.question);
+        question = (DoubleBufferedWebView) this.findViewById(R.id.question);
         answerLabel = (TextView) this.findViewById(R.id.answerLabel);
-        answer = (WebView) this.findViewById(R.id.answer);
+        answer = (DoubleBufferedWebView) this.findViewById(R.id.answer);
         showAnswerButton = (Button) this.findViewById(R.id.showAnswerButton);
         button0 = (Button) this.findViewById(R.id.button0);
         button1 = (Button) this.findViewById(R.id.button1);
@@ -109,13 +107,9 @@ public class MnemosyneActivity extends AppCompatActivity {
         statusbar = (TextView) this.findViewById(R.id.statusbar);
 
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
-            question.setWebContentsDebuggingEnabled(false);
-            answer.setWebContentsDebuggingEnabled(false);
+            WebView.setWebContentsDebuggingEnabled(false);
         }
 
-        question.getSettings().setJavaScriptEnabled(true);
-        answer.getSettings().setJavaScriptEnabled(true);
-
         boolean hasPermission = (ContextCompat.checkSelfPermission(this,
                 Manifest.permission.WRITE_EXTERNAL_STORAGE) == PackageManager.PERMISSION_GRANTED);
         if (!hasPermission) {
@@ -154,9 +148,13 @@ public class MnemosyneActivity extends AppCompatActivity {
 
         showAnswerButton.setOnClickListener(new OnClickListener() {
             public void onClick(View view) {
-                mnemosyneThread.getHandler().post(new Runnable() {
+                mnemosyneThread.postReviewInput(new Runnable() {
                     public void run() {
                         mnemosyneThread.reviewController._Call("show_answer");
+                        // The answer is on its way to the UI thread, so
+                        // use the time the user spends reading it to render
+                        // the next card.
+                        mnemosyneThread.reviewController._Call("prefetch_next_card");
                     }
                 });
             }
@@ -164,7 +162,7 @@ public class MnemosyneActivity extends AppCompatActivity {
 
         button0.setOnClickListener(new OnClickListener() {
             public void onClick(View view) {
-                mnemosyneThread.getHandler().post(new Runnable() {
+                mnemosyneThread.postReviewInput(new Runnable() {
                     public void run() {
                         mnemosyneThread.reviewController._Call("grade_answer", 0);
                     }
@@ -174,7 +172,7 @@ public class MnemosyneActivity extends AppCompatActivity {
 
         button1.setOnClickListener(new OnClickListener() {
             public void onClick(View view) {
-                mnemosyneThread.getHandler().post(new Runnable() {
+                mnemosyneThread.postReviewInput(new Runnable() {
                     public void run() {
                         mnemosyneThread.reviewController._Call("grade_answer", 1);
                     }
@@ -184,7 +182,7 @@ public class MnemosyneActivity extends AppCompatActivity {
 
         button2.setOnClickListener(new OnClickListener() {
             public void onClick(View view) {
-                mnemosyneThread.getHandler().post(new Runnable() {
+                mnemosyneThread.postReviewInput(new Runnable() {
                     public void run() {
                         mnemosyneThread.reviewController._Call("grade_answer", 2);
                     }
@@ -194,7 +192,7 @@ public class MnemosyneActivity extends AppCompatActivity {
 
         button3.setOnClickListener(new OnClickListener() {
             public void onClick(View view) {
-                mnemosyneThread.getHandler().post(new Runnable() {
+                mnemosyneThread.postReviewInput(new Runnable() {
                     public void run() {
                         mnemosyneThread.reviewController._Call("grade_answer", 3);
                     }
@@ -204,7 +202,7 @@ public class MnemosyneActivity extends AppCompatActivity {
 
         button4.setOnClickListener(new OnClickListener() {
             public void onClick(View view) {
-                mnemosyneThread.getHandler().post(new Runnable() {
+                mnemosyneThread.postReviewInput(new Runnable() {
                     public void run() {
                         mnemosyneThread.reviewController._Call("grade_answer", 4);
                     }
@@ -214,7 +212,7 @@ public class MnemosyneActivity extends AppCompatActivity {
 
         button5.setOnClickListener(new OnClickListener() {
             public void onClick(View view) {
-                mnemosyneThread.getHandler().post(new Runnable() {
+                mnemosyneThread.postReviewInput(new Runnable() {
                     public void run() {
                         mnemosyneThread.reviewController._Call("grade_answer", 5);
                     }
@@ -235,7 +233,7 @@ public class MnemosyneActivity extends AppCompatActivity {
             alert.setCancelable(false);
             alert.setPositiveButton("OK", new DialogInterface.OnClickListener() {
                 public void onClick(DialogInterface dialog, int whichButton) {
-                    mnemosyneThread.getHandler().post(new Runnable() {
+                    mnemosyneThread.post(new Runnable() {
                         public void run() {
                             mnemosyneThread.controller._Call("show_sync_dialog_pre");
                         }
@@ -298,7 +296,7 @@ public class MnemosyneActivity extends AppCompatActivity {
         switch (item.getItemId())
         {
             case R.id.menu_sync:
-                mnemosyneThread.getHandler().post(new Runnable() {
+                mnemosyneThread.post(new Runnable() {
                     public void run() {
                         mnemosyneThread.controller._Call("show_sync_dialog_pre");
                     }
@@ -310,7 +308,7 @@ public class MnemosyneActivity extends AppCompatActivity {
                 return true;
 
             case R.id.menu_star:
-                mnemosyneThread.getHandler().post(new Runnable() {
+                mnemosyneThread.post(new Runnable() {
                     public void run() {
                         mnemosyneThread.controller._Call("star_current_card");
                     }
@@ -318,7 +316,7 @@ public class MnemosyneActivity extends AppCompatActivity {
                 return true;
 
             case R.id.menu_activate:
-                mnemosyneThread.getHandler().post(new Runnable() {
+                mnemosyneThread.post(new Runnable() {
                     public void run() {
                         mnemosyneThread.controller._Call("show_activate_cards_dialog_pre");
                     }
@@ -326,7 +324,7 @@ public class MnemosyneActivity extends AppCompatActivity {
                 return true;
 
             case R.id.menu_study_mode:
-                mnemosyneThread.getHandler().post(new Runnable() {
+                mnemosyneThread.post(new Runnable() {
                     public void run() {
                         final String[] items = {
                                 "Scheduled -> forgotten -> new",
@@ -352,7 +350,7 @@ public class MnemosyneActivity extends AppCompatActivity {
                 return true;
 
             case R.id.menu_archive_logs:
-                mnemosyneThread.getHandler().post(new Runnable() {
+                mnemosyneThread.post(new Runnable() {
                     public void run() {
                         PowerManager pm = (PowerManager) getSystemService(Context.POWER_SERVICE);
                         PowerManager.WakeLock wl = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "My Tag");
@@ -431,13 +429,6 @@ public class MnemosyneActivity extends AppCompatActivity {
         mediaPlayer.prepareAsync();
     }
 
-    Pattern audioRE = Pattern.compile("<audio src=\"(.+?)\"(.*?)>",
-            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
-    Pattern startRE = Pattern.compile("start=\"(.+?)\"",
-            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
-    Pattern stopRE = Pattern.compile("stop=\"(.+?)\"",
-            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
-
     public String handleSoundFiles(String html) {
         if (html == null) {
             return html;
@@ -448,41 +439,45 @@ public class MnemosyneActivity extends AppCompatActivity {
         soundFiles.clear();
         starts.clear();
         stops.clear();
-        Matcher matcher = audioRE.matcher(html);
-        while (matcher.find()) {
-            // Look for start and stop of sound segment in ms.
-            int start = 0;
-            int stop = 0;
-            if (matcher.group(2) != null) {
-
-                Matcher startMatcher = startRE.matcher(matcher.group(2));
-                while (startMatcher.find()) {
-                    start = (int) (Double.valueOf(startMatcher.group(1)).doubleValue() * 1000);
-                    break;
-                }
-
-                Matcher stopMatcher = stopRE.matcher(matcher.group(2));
-                while (stopMatcher.find()) {
-                    stop = (int) (Double.valueOf(stopMatcher.group(1)).doubleValue() * 1000);
-                    break;
-                }
-            }
-
-            soundFiles.add(Uri.parse(matcher.group(1)));
-            starts.add(start);
-            stops.add(stop);
+        SoundTags soundTags = new SoundTags(html);
+        for (int i = 0; i < soundTags.sources.size(); i++) {
+            soundFiles.add(Uri.parse(soundTags.sources.get(i)));
+            starts.add(soundTags.starts.get(i));
+            stops.add(soundTags.stops.get(i));
             soundIndex = 0;
 
             playNextSound();
         }
 
-        return matcher.replaceAll("");
+        return soundTags.html;
+    }
+
+    // Like 'handleSoundFiles', but without playing anything.
+    public String stripSoundFiles(String html) {
+        return SoundTags.strip(html);
     }
 
     public void setQuestion(String html) {
         currentHtml = html;
         html = handleSoundFiles(html);
-        question.loadDataWithBaseURL(null, html, "text/html", "utf-8", null);
+        question.loadHtml(html);
+    }
+
+    public void addStyleSheet(int cssId, String css) {
+        question.addStyleSheet(cssId, css);
+        answer.addStyleSheet(cssId, css);
+    }
+
+    // Show just the body of the question in the review page, see
+    // DoubleBufferedWebView.show.
+    public void setQuestionBody(int cssId, String body) {
+        currentHtml = body;
+        body = handleSoundFiles(body);
+        question.show(cssId, body);
+    }
+
+    public void preloadQuestionBody(int cssId, String body) {
+        question.preload(cssId, stripSoundFiles(body));
     }
 
     public void setAnswer(String html, Boolean processAudio) {
@@ -490,7 +485,15 @@ public class MnemosyneActivity extends AppCompatActivity {
             currentHtml = html;
             html = handleSoundFiles(html);
         }
-        answer.loadDataWithBaseURL(null, html, "text/html", "utf-8", null);
+        answer.loadHtml(html);
+    }
+
+    public void setAnswerBody(int cssId, String body, Boolean processAudio) {
+        if (processAudio == true) {
+            currentHtml = body;
+            body = handleSoundFiles(body);
+        }
+        answer.show(cssId, body);
     }
 
     // Get results back from sync activity.
@@ -507,27 +510,21 @@ public class MnemosyneActivity extends AppCompatActivity {
                 final String username = data.getStringExtra("username");
                 final String password = data.getStringExtra("password");
 
-                mnemosyneThread.getHandler().post(new Runnable() {
+                mnemosyneThread.post(new Runnable() {
                     public void run() {
                         mnemosyneThread.config._Call("__setitem__", "server_for_sync_as_client", server);
                         mnemosyneThread.config._Call("__setitem__", "port_for_sync_as_client", port);
                         mnemosyneThread.config._Call("__setitem__", "username_for_sync_as_client", username);
                         mnemosyneThread.config._Call("__setitem__", "password_for_sync_as_client", password);
                         mnemosyneThread.config._Call("save");
-                        PowerManager pm = (PowerManager) getSystemService(Context.POWER_SERVICE);
-                        PowerManager.WakeLock wl = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "My Tag");
-                        wl.acquire();
-                        try {
-                            mnemosyneThread.controller._Call("sync", server, port, username, password);
-                        } finally {
-                            wl.release();
-                        }
-                        mnemosyneThread.controller._Call("show_sync_dialog_post");
+                        // Runs in the background and calls 'show_sync_dialog_post'
+                        // when done. Cards graded in the meantime are queued.
+                        mnemosyneThread.startSync(server, port, username, password);
                     }
                 });
             }
             else {
-                mnemosyneThread.getHandler().post(new Runnable() {
+                mnemosyneThread.post(new Runnable() {
                     public void run() {
                         mnemosyneThread.controller._Call("show_sync_dialog_post");
                         mnemosyneThread.UIActivity.setFullscreen();
@@ -539,7 +536,7 @@ public class MnemosyneActivity extends AppCompatActivity {
         if (requestCode == ACTIVATE_CARDS_ACTIVITY_RESULT) {
             if (resultCode == RESULT_OK) {
                 final String savedSet = data.getStringExtra("saved_set");
-                mnemosyneThread.getHandler().post(new Runnable() {
+                mnemosyneThread.post(new Runnable() {
                     public void run() {
                         mnemosyneThread.setProgressText("(De)activating cards...");
                         mnemosyneThread.activateCardsDialog._Call("set_criterion_with_name", savedSet);
@@ -549,7 +546,7 @@ public class MnemosyneActivity extends AppCompatActivity {
                 });
             }
             else {
-                mnemosyneThread.getHandler().post(new Runnable() {
+                mnemosyneThread.post(new Runnable() {
                     public void run() {
                         mnemosyneThread.controller._Call("show_activate_cards_dialog_post");
                         mnemosyneThread.UIActivity.setFullscreen();
@@ -577,9 +574,10 @@ public class MnemosyneActivity extends AppCompatActivity {
 
         if ((mnemosyneThread != null) && (mnemosyneThread.getHandler() != null))
         {
-            mnemosyneThread.getHandler().post(new Runnable() {
+            mnemosyneThread.post(new Runnable() {
             public void run() {
                 mnemosyneThread.pauseMnemosyne();
+                mnemosyneThread.setIdle(true);
                 }
             });
         }
@@ -589,6 +587,15 @@ public class MnemosyneActivity extends AppCompatActivity {
         super.onResume();
         if (this.paused == true) { // Make sure this does not get called on initial startup.
             setFullscreen();
+            // We could have missed the rollover while asleep.
+            if ((mnemosyneThread != null) && (mnemosyneThread.getHandler() != null)) {
+                mnemosyneThread.post(new Runnable() {
+                    public void run() {
+                        mnemosyneThread.setIdle(false);
+                        mnemosyneThread.heartbeat();
+                    }
+                });
+            }
         }
         this.paused = false;
     }
@@ -609,7 +616,7 @@ public class MnemosyneActivity extends AppCompatActivity {
         }
 
         if (mnemosyneThread != null) {
-            mnemosyneThread.getHandler().post(new Runnable() {
+            mnemosyneThread.post(new Runnable() {
                 public void run() {
                     mnemosyneThread.stopMnemosyne();
                 }
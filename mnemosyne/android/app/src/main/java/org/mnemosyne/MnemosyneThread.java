@@ -7,15 +7,18 @@ import com.srplab.www.starcore.StarServiceClass;
 import com.srplab.www.starcore.StarSrvGroupClass;
 
 import android.app.AlertDialog;
-import android.app.ProgressDialog;
+import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.pm.PackageManager;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.Environment;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.PowerManager;
 import android.support.v4.content.ContextCompat;
+import android.text.TextUtils;
 import android.util.Log;
 
 import java.io.BufferedReader;
@@ -27,13 +30,19 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 
 public class MnemosyneThread extends Thread {
 
+    // Marks a complete page instead of just a body, see 'applyReviewFrame'.
+    public static final int FULL_PAGE = -1;
+
     StarCoreFactory starcore;
     StarObjectClass python;
     StarObjectClass mnemosyne;
@@ -46,6 +55,7 @@ public class MnemosyneThread extends Thread {
     MnemosyneActivity UIActivity;
     Handler mnemosyneHandler;
     Handler UIHandler;
+    ProgressChannel progress;
     String basedir;
     ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
 
@@ -53,24 +63,94 @@ public class MnemosyneThread extends Thread {
         UIActivity = activity;
         UIHandler = handler;
         basedir = UIActivity.getApplicationInfo().dataDir;
+        progress = new ProgressChannel(activity, handler);
     }
 
     public Handler getHandler() {
         return mnemosyneHandler;
     }
 
-    public void startMnemosyne() {
+    // Syncing runs on its own thread, such that this thread's Looper stays free
+    // to handle e.g. the activity's life cycle while waiting for the server.
+    // During the sync, the database connection belongs to the sync thread, so
+    // work which could touch the database (heartbeats, starring, ...) needs
+    // to be posted through 'post', which queues it until the sync has finished.
+    // That way, Python is only ever called from one thread at a time. Review
+    // input is posted through 'postReviewInput' instead, which drops it.
 
-        UIHandler.post(new Runnable() {
+    private ExecutorService syncExecutor = Executors.newSingleThreadExecutor();
+    private boolean isSyncing = false;  // Only accessed from this thread.
+    private ArrayList<Runnable> postedDuringSync = new ArrayList<Runnable>();
+
+    public void post(final Runnable runnable) {
+        mnemosyneHandler.post(new Runnable() {
+            public void run() {
+                if (isSyncing) {
+                    postedDuringSync.add(runnable);
+                } else {
+                    runnable.run();
+                }
+            }
+        });
+    }
+
+    // Showing the answer or grading is not queued during a sync, as replaying
+    // the taps afterwards would grade cards the user never got to see.
+    public void postReviewInput(final Runnable runnable) {
+        mnemosyneHandler.post(new Runnable() {
+            public void run() {
+                if (!isSyncing) {
+                    runnable.run();
+                }
+            }
+        });
+    }
+
+    // Needs to be called from this thread.
+    public void startSync(final String server, final int port,
+                          final String username, final String password) {
+        isSyncing = true;
+        // Hand the connection over to the sync thread, see 'release_connection'.
+        database._Call("release_connection");
+        syncExecutor.execute(new Runnable() {
             public void run() {
-                progressDialog = new ProgressDialog(UIActivity);
-                progressDialog.setCancelable(false);
-                progressDialog.setProgressStyle(ProgressDialog.STYLE_SPINNER);
-                progressDialog.setMessage("Initialising Mnemosyne...");
-                progressDialog.setIndeterminate(true);
-                progressDialog.show();
+                PowerManager pm = (PowerManager) UIActivity.getSystemService(Context.POWER_SERVICE);
+                PowerManager.WakeLock wl = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "Mnemosyne:sync");
+                wl.acquire();
+                try {
+                    // Releases the connection again when done.
+                    controller._Call("sync", server, port, username, password);
+                } finally {
+                    wl.release();
+                    mnemosyneHandler.post(new Runnable() {
+                        public void run() {
+                            finishSync();
+                        }
+                    });
+                }
             }
         });
+    }
+
+    private void finishSync() {
+        isSyncing = false;
+        controller._Call("show_sync_dialog_post");
+        ArrayList<Runnable> queued = postedDuringSync;
+        postedDuringSync = new ArrayList<Runnable>();
+        for (Runnable runnable : queued) {
+            runnable.run();
+        }
+        scheduleMaintenanceStep();
+    }
+
+    public void startMnemosyne() {
+
+        StartupTracer tracer = new StartupTracer();
+        tracer.setInfo("model", Build.MANUFACTURER + " " + Build.MODEL);
+        tracer.setInfo("sdk", String.valueOf(Build.VERSION.SDK_INT));
+        tracer.setInfo("time", String.valueOf(System.currentTimeMillis() / 1000));
+
+        progress.setText("Initialising Mnemosyne...");
 
         StarCoreFactoryPath.StarCoreCoreLibraryPath = basedir + "/lib";
         StarCoreFactoryPath.StarCoreShareLibraryPath = basedir + "/lib";
@@ -88,42 +168,7 @@ public class MnemosyneThread extends Thread {
         {
             System.out.println(ex.toString());
         }
-
-        String path = basedir + "/files/lib-dynload";
-        //Log.i("Mnemosyne", "Listing files in path: " + path);
-        File ff = new File(path);
-        if (ff.exists()) {
-            File files[] = ff.listFiles();
-            //Log.i("Mnemosyne", "Number of files: " + files.length);
-            for (int i = 0; i < files.length; i++) {
-                //cannot locate symbol "crypt" referenced by "/data/data/org.mnemosyne/files/lib-dynload/_crypt.cpython-34m.so".
-                //cannot locate symbol "setgrent" referenced by "/data/data/org.mnemosyne/files/lib-dynload/grp.cpython-34m.so".
-                if (    !files[i].getName().contentEquals("_crypt.cpython-34m.so") &
-                        !files[i].getName().contentEquals("grp.cpython-34m.so")   )
-                //if ( files[i].getName().contentEquals("_md5.cpython-34m.so") |
-                //        files[i].getName().contentEquals("_sha1.cpython-34m.so") |
-                //        files[i].getName().contentEquals("_sha512.cpython-34m.so") |
-                //        files[i].getName().contentEquals("_struct.cpython-34m.so") |
-                //        files[i].getName().contentEquals("math.cpython-34m.so") |
-                //        files[i].getName().contentEquals("_random.cpython-34m.so") |
-                //        files[i].getName().contentEquals("_sha256.cpython-34m.so") |
-                //        files[i].getName().contentEquals("_sqlite3.cpython-34m.so") |
-                //        files[i].getName().contentEquals("time.cpython-34m.so") |
-                //        files[i].getName().contentEquals("select.cpython-34m.so") |
-                //        files[i].getName().contentEquals("_ctypes.cpython-34m.so") |
-                //        files[i].getName().contentEquals("_socket.cpython-34m.so") |
-                //        files[i].getName().contentEquals("_pickle.cpython-34m.so") |
-                //        files[i].getName().contentEquals("binascii.cpython-34m.so") |
-                //        files[i].getName().contentEquals("unicodedata.cpython-34m.so") |
-                //        files[i].getName().contentEquals("_struct.cpython-34m.so") |
-                //        files[i].getName().contentEquals("")
-                //        )
-                {
-                    //Log.i("Mnemosyne", "Preloading FileName:" + files[i].getName() + " " + files[i].lastModified());
-                    //System.load(files[i].getAbsolutePath());
-                }
-            }
-        }
+        tracer.phaseDone("load_libraries");
 
         Log.d("Mnemosyne", "About to initialise starcore");
 
@@ -138,6 +183,7 @@ public class MnemosyneThread extends Thread {
             SrvGroup._InitRaw("python34", Service);
         }
         python = Service._ImportRawContext("python", "", false, "");
+        tracer.phaseDone("init_starcore");
 
         // Set up extra paths.
         python._Call("import", "sys");
@@ -147,6 +193,7 @@ public class MnemosyneThread extends Thread {
         pythonPath._Call("insert", 0, basedir + "/files/python3.4.zip");
         pythonPath._Call("insert", 0, basedir + "/files/lib-dynload");
         pythonPath._Call("insert", 0, basedir + "/lib");
+        tracer.phaseDone("setup_sys_path");
 
         Log.i("Mnemosyne", "Starting Mnemosyne Python script");
 
@@ -155,6 +202,7 @@ public class MnemosyneThread extends Thread {
                 "/files/mnemosyne/cle/mnemosyne_android.py", false);
 
         mnemosyne = python._GetObject("mnemosyne");
+        tracer.phaseDone("load_mnemosyne_module");
 
         // Determine datadir.
         //
@@ -214,9 +262,15 @@ public class MnemosyneThread extends Thread {
         }
 
         Log.i("Mnemosyne", "datadir " + dataDir);
+        tracer.phaseDone("resolve_data_dir");
 
         String filename = "default.db";
         python._Call("start_mnemosyne", dataDir, filename, this);
+        tracer.phaseDone("start_mnemosyne");
+        Object timeline = python._Call("startup_timeline");
+        if (timeline != null) {
+            tracer.addSubPhases(timeline.toString());
+        }
 
         config = (StarObjectClass) mnemosyne._Call("config");
         database = (StarObjectClass) mnemosyne._Call("database");
@@ -233,34 +287,108 @@ public class MnemosyneThread extends Thread {
             }
         }
 
+        tracer.phaseDone("resolve_components");
         Log.i("Mnemosyne", "started Mnemosyne");
 
+        progress.close();
         UIHandler.post(new Runnable() {
             public void run() {
-                progressDialog.dismiss();
                 UIActivity.setFullscreen();
             }
         });
 
-        // Heartbeat: run at startup and then every 5 seconds.
+        // Heartbeat: run at startup and then whenever the controller next
+        // has work to do.
+        heartbeat();
+        tracer.phaseDone("first_heartbeat");
+        tracer.write(new File(dataDir));
+    }
+
+    // Rather than polling the controller every few seconds, we ask it when it
+    // next needs a heartbeat (typically at the rollover at the start of the next
+    // day) and arm a single alarm for that moment. Note that the executor's
+    // clock does not advance while the device is asleep, so the activity calls
+    // 'heartbeat' again on resume, which also rearms the alarm.
+
+    private ScheduledFuture<?> nextHeartbeat;
+
+    public void heartbeat() {
         controller._Call("heartbeat", false);
-        this.scheduler.scheduleAtFixedRate(new Runnable() {
+        scheduleHeartbeat();
+    }
+
+    private void scheduleHeartbeat() {
+        if (nextHeartbeat != null) {
+            nextHeartbeat.cancel(false);
+        }
+        long delay = 60;
+        Object seconds = controller._Call("seconds_until_next_heartbeat");
+        if (seconds != null) {
+            try {
+                delay = (long) Double.parseDouble(seconds.toString());
+            } catch (NumberFormatException e) {
+                Log.i("Mnemosyne", "Invalid heartbeat delay: " + seconds);
+            }
+        }
+        Log.i("Mnemosyne", "Next heartbeat in " + delay + " s");
+        nextHeartbeat = scheduler.schedule(new Runnable() {
             public void run() {
-                mnemosyneHandler.post(new Runnable() {
+                post(new Runnable() {
                     public void run() {
-                        controller._Call("heartbeat", false);
+                        heartbeat();
                     }
                 });
             }
-        }, 0, 5, TimeUnit.SECONDS);
+        }, delay, TimeUnit.SECONDS);
+    }
+
+    // Database maintenance (archiving old logs, releasing free pages, ...) is
+    // done in small steps while the activity is in the background, instead of
+    // blocking the user for minutes at a time. Some steps (e.g. converting an
+    // old database to incremental vacuuming) still take a while, so none of
+    // them run while the user is reviewing, not even on a charger. Each step
+    // is posted separately, so that other work can run in between, and the
+    // progress is kept on the Python side, so it survives restarts.
+
+    private static final long MAINTENANCE_STEP_DELAY_MS = 100;
+    private boolean isIdle = false;  // Only accessed from this thread.
+    private boolean isMaintenanceScheduled = false;  // Idem.
+
+    // Needs to be called from this thread.
+    public void setIdle(boolean idle) {
+        isIdle = idle;
+        scheduleMaintenanceStep();
+    }
+
+    private void scheduleMaintenanceStep() {
+        if (isMaintenanceScheduled || isSyncing || !isIdle) {
+            return;
+        }
+        isMaintenanceScheduled = true;
+        mnemosyneHandler.postDelayed(maintenanceStep, MAINTENANCE_STEP_DELAY_MS);
     }
 
+    private final Runnable maintenanceStep = new Runnable() {
+        public void run() {
+            isMaintenanceScheduled = false;
+            // Rescheduled by 'finishSync'.
+            if (isSyncing || !isIdle) {
+                return;
+            }
+            Object isMoreWork = controller._Call("db_maintenance_step");
+            if (Boolean.parseBoolean(String.valueOf(isMoreWork))) {
+                scheduleMaintenanceStep();
+            }
+        }
+    };
+
     public void pauseMnemosyne() {
         python._Call("pause_mnemosyne");
     }
 
     public void stopMnemosyne() {
         this.scheduler.shutdownNow();
+        this.syncExecutor.shutdown();
         python._Call("stop_mnemosyne");
         // Wait until the CLE core queue is empty.
         while (starcore._SRPDispatch(false) == true); // Empty loop, consume current queue message.
@@ -270,6 +398,166 @@ public class MnemosyneThread extends Thread {
         android.os.Process.killProcess(android.os.Process.myPid());
     }
 
+    // Lazily extracted extension modules, see 'lib-dynload.manifest' and
+    // mnemosyne/cle/lazy_dynload.py.
+
+    private DynloadManifest dynloadManifest;
+
+    private DynloadManifest getDynloadManifest() throws IOException {
+        if (dynloadManifest == null) {
+            dynloadManifest = new DynloadManifest(UIActivity.getAssets().open(DynloadManifest.ASSET));
+        }
+        return dynloadManifest;
+    }
+
+    public String lazyDynloadModules() {
+        try {
+            return TextUtils.join("____", getDynloadManifest().getLazy());
+        } catch (IOException e) {
+            Log.i("Mnemosyne", "Could not read " + DynloadManifest.ASSET + ": " + e.toString());
+            return "";
+        }
+    }
+
+    public boolean materialiseDynloadModule(String module) {
+        try {
+            if (!getDynloadManifest().isLazy(module)) {
+                return false;
+            }
+            File file = new File(basedir + "/files/" + DynloadManifest.assetPath(module));
+            if (file.exists()) {
+                return false;
+            }
+            AssetExtractor.copyToFile(UIActivity.getAssets().open(
+                    DynloadManifest.assetPath(module)), file);
+            Log.i("Mnemosyne", "Extracted extension module " + module);
+            return true;
+        } catch (IOException e) {
+            Log.i("Mnemosyne", "Could not extract " + module + ": " + e.toString());
+            return false;
+        }
+    }
+
+    // Transport for syncing, see SyncTransport.java and
+    // mnemosyne/cle/sync_transport.py. Exceptions do not make it to the
+    // Python side, so failing calls return -1 or null, after which
+    // 'syncLastError' describes what went wrong. Binary data is passed as
+    // strings with one character per byte.
+
+    private SyncTransport syncTransport = new SyncTransport();
+    private String syncError = "";
+
+    private void setSyncError(IOException e) {
+        syncError = e.getClass().getSimpleName() + ": " + e.getMessage();
+        Log.i("Mnemosyne", "Sync transport: " + syncError);
+        syncTransport.close();
+    }
+
+    public String syncLastError() {
+        return syncError;
+    }
+
+    public boolean syncConnect(String host, int port, boolean keepAlive, int timeout) {
+        try {
+            syncTransport.connect(host, port, keepAlive, timeout);
+            return true;
+        } catch (IOException e) {
+            setSyncError(e);
+            return false;
+        }
+    }
+
+    // Returns the status of the response.
+    public int syncRequest(String method, String url, String headers, String body) {
+        if (!syncSendRequest(method, url, headers, body)) {
+            return -1;
+        }
+        return syncGetResponse();
+    }
+
+    // Send a request without waiting for the response, which is read by a
+    // later call to 'syncGetResponse'.
+    public boolean syncSendRequest(String method, String url, String headers, String body) {
+        try {
+            byte[] data = body == null ? new byte[0] : body.getBytes("ISO-8859-1");
+            long contentLength = data.length;
+            if (data.length == 0 && (method.equals("GET") || method.equals("HEAD"))) {
+                contentLength = -1;
+            }
+            syncTransport.startRequest(method, url, SyncTransport.parseHeaders(headers),
+                    contentLength);
+            syncTransport.write(data);
+            return true;
+        } catch (IOException e) {
+            setSyncError(e);
+            return false;
+        }
+    }
+
+    public boolean syncCanPipeline() {
+        return syncTransport.canPipeline();
+    }
+
+    // Start a request with the contents of 'path' as body, which need to be
+    // sent using 'syncSendFile', before calling 'syncGetResponse'.
+    public boolean syncStartFileRequest(String method, String url, String headers, String path) {
+        try {
+            syncTransport.startRequest(method, url, SyncTransport.parseHeaders(headers),
+                    new File(path).length());
+            return true;
+        } catch (IOException e) {
+            setSyncError(e);
+            return false;
+        }
+    }
+
+    // Returns the number of bytes sent, 0 when done.
+    public int syncSendFile(String path, int maxCount) {
+        try {
+            return (int) syncTransport.sendFile(new File(path), maxCount);
+        } catch (IOException e) {
+            setSyncError(e);
+            return -1;
+        }
+    }
+
+    public int syncGetResponse() {
+        try {
+            return syncTransport.getResponse();
+        } catch (IOException e) {
+            setSyncError(e);
+            return -1;
+        }
+    }
+
+    public String syncGetHeader(String name) {
+        return syncTransport.getHeader(name);
+    }
+
+    // Reads the entire body if 'maxCount' is negative.
+    public String syncRead(int maxCount) {
+        try {
+            return new String(syncTransport.readBody(maxCount), "ISO-8859-1");
+        } catch (IOException e) {
+            setSyncError(e);
+            return null;
+        }
+    }
+
+    // Returns the number of bytes written to 'path', 0 when done.
+    public int syncReadToFile(String path, int maxCount) {
+        try {
+            return (int) syncTransport.readToFile(new File(path), maxCount);
+        } catch (IOException e) {
+            setSyncError(e);
+            return -1;
+        }
+    }
+
+    public void syncClose() {
+        syncTransport.close();
+    }
+
     public void Log(String label, String text) {
         Log.d(label, text);
     }
@@ -277,9 +565,11 @@ public class MnemosyneThread extends Thread {
     @Override
     public void run() {
         Log.i("Mnemosyne", "About to run Mnemosyne thread");
-        startMnemosyne();
+        // Create the handler before starting, so that work posted during
+        // startup (e.g. by the heartbeat alarm) is queued instead of lost.
         Looper.prepare();
         mnemosyneHandler = new Handler();
+        startMnemosyne();
         Looper.loop();
     }
 
@@ -301,6 +591,21 @@ public class MnemosyneThread extends Thread {
         });
     }
 
+    // See 'applyReviewFrame' for the meaning of the arguments.
+    public void preloadQuestionBody(int cssId, String css, String body) {
+        final int _cssId = cssId;
+        final String _css = css;
+        final String _body = body;
+        UIHandler.post(new Runnable() {
+            public void run() {
+                if (_css != null) {
+                    UIActivity.addStyleSheet(_cssId, _css);
+                }
+                UIActivity.preloadQuestionBody(_cssId, _body);
+            }
+        });
+    }
+
     public void setAnswer(String html, Boolean processAudio) {
         final String _html = html;
         final Boolean _processAudio = processAudio;
@@ -315,14 +620,7 @@ public class MnemosyneThread extends Thread {
         final boolean _isVisible = isVisible;
         UIHandler.post(new Runnable() {
             public void run() {
-                if (_isVisible) {
-                    UIActivity.question.setVisibility(android.view.View.VISIBLE);
-                    UIActivity.questionLabel.setVisibility(android.view.View.VISIBLE);
-                }
-                else {
-                    UIActivity.question.setVisibility(android.view.View.GONE);
-                    UIActivity.questionLabel.setVisibility(android.view.View.GONE);
-                }
+                showQuestionBox(_isVisible);
             }
         });
     }
@@ -331,14 +629,7 @@ public class MnemosyneThread extends Thread {
         final boolean _isVisible = isVisible;
         UIHandler.post(new Runnable() {
             public void run() {
-                if (_isVisible) {
-                    UIActivity.answer.setVisibility(android.view.View.VISIBLE);
-                    UIActivity.answerLabel.setVisibility(android.view.View.VISIBLE);
-                }
-                else {
-                    UIActivity.answer.setVisibility(android.view.View.GONE);
-                    UIActivity.answerLabel.setVisibility(android.view.View.GONE);
-                }
+                showAnswerBox(_isVisible);
             }
         });
     }
@@ -361,24 +652,7 @@ public class MnemosyneThread extends Thread {
         final boolean _isEnabled = isEnabled;
         UIHandler.post(new Runnable() {
             public void run() {
-                if (_isEnabled) {
-                    UIActivity.button0.setVisibility(android.view.View.VISIBLE);
-                    UIActivity.button1.setVisibility(android.view.View.VISIBLE);
-                    UIActivity.button2.setVisibility(android.view.View.VISIBLE);
-                    UIActivity.button3.setVisibility(android.view.View.VISIBLE);
-                    UIActivity.button4.setVisibility(android.view.View.VISIBLE);
-                    UIActivity.button5.setVisibility(android.view.View.VISIBLE);
-                    UIActivity.showAnswerButton.setVisibility(android.view.View.GONE);
-                }
-                else {
-                    UIActivity.button0.setVisibility(android.view.View.GONE);
-                    UIActivity.button1.setVisibility(android.view.View.GONE);
-                    UIActivity.button2.setVisibility(android.view.View.GONE);
-                    UIActivity.button3.setVisibility(android.view.View.GONE);
-                    UIActivity.button4.setVisibility(android.view.View.GONE);
-                    UIActivity.button5.setVisibility(android.view.View.GONE);
-                    UIActivity.showAnswerButton.setVisibility(android.view.View.VISIBLE);
-                }
+                enableGrades(_isEnabled);
             }
         });
     }
@@ -392,6 +666,103 @@ public class MnemosyneThread extends Thread {
         });
     }
 
+    // Apply all changes to the review screen resulting from a single
+    // 'update_dialog' in one message on the UI thread, so that they end up in
+    // a single layout pass. Strings which are null are left untouched, as are
+    // the visibility flags which are -1 (otherwise 0 or 1).
+    //
+    // The question and answer are normally just the body of the page, to be
+    // shown in the persistent review page with the style sheet with the given
+    // id. The style sheet itself is only sent the first time it is used (null
+    // otherwise). If the id is FULL_PAGE, the html is a complete page instead.
+    public void applyReviewFrame(int questionBoxVisible, int answerBoxVisible,
+            String questionLabel, int questionCssId, String questionCss,
+            String question, int answerCssId, String answerCss, String answer,
+            Boolean processAudio, String showButtonText, int gradesEnabled,
+            String statusbarText) {
+        final int _questionBoxVisible = questionBoxVisible;
+        final int _answerBoxVisible = answerBoxVisible;
+        final String _questionLabel = questionLabel;
+        final int _questionCssId = questionCssId;
+        final String _questionCss = questionCss;
+        final String _question = question;
+        final int _answerCssId = answerCssId;
+        final String _answerCss = answerCss;
+        final String _answer = answer;
+        final Boolean _processAudio = processAudio;
+        final String _showButtonText = showButtonText;
+        final int _gradesEnabled = gradesEnabled;
+        final String _statusbarText = statusbarText;
+        UIHandler.post(new Runnable() {
+            public void run() {
+                if (_questionBoxVisible != -1) {
+                    showQuestionBox(_questionBoxVisible == 1);
+                }
+                if (_answerBoxVisible != -1) {
+                    showAnswerBox(_answerBoxVisible == 1);
+                }
+                if (_questionLabel != null) {
+                    UIActivity.questionLabel.setText(_questionLabel);
+                }
+                if (_questionCss != null) {
+                    UIActivity.addStyleSheet(_questionCssId, _questionCss);
+                }
+                if (_answerCss != null) {
+                    UIActivity.addStyleSheet(_answerCssId, _answerCss);
+                }
+                if (_question != null) {
+                    if (_questionCssId == FULL_PAGE) {
+                        UIActivity.setQuestion(_question);
+                    } else {
+                        UIActivity.setQuestionBody(_questionCssId, _question);
+                    }
+                }
+                if (_answer != null) {
+                    if (_answerCssId == FULL_PAGE) {
+                        UIActivity.setAnswer(_answer, _processAudio);
+                    } else {
+                        UIActivity.setAnswerBody(_answerCssId, _answer, _processAudio);
+                    }
+                }
+                if (_showButtonText != null) {
+                    UIActivity.showAnswerButton.setText(_showButtonText);
+                }
+                if (_gradesEnabled != -1) {
+                    enableGrades(_gradesEnabled == 1);
+                }
+                if (_statusbarText != null) {
+                    UIActivity.statusbar.setText(_statusbarText);
+                }
+            }
+        });
+    }
+
+    // The following helpers must be called on the UI thread.
+
+    private void showQuestionBox(boolean isVisible) {
+        int visibility = isVisible ? android.view.View.VISIBLE : android.view.View.GONE;
+        UIActivity.question.setVisibility(visibility);
+        UIActivity.questionLabel.setVisibility(visibility);
+    }
+
+    private void showAnswerBox(boolean isVisible) {
+        int visibility = isVisible ? android.view.View.VISIBLE : android.view.View.GONE;
+        UIActivity.answer.setVisibility(visibility);
+        UIActivity.answerLabel.setVisibility(visibility);
+    }
+
+    private void enableGrades(boolean isEnabled) {
+        int visibility = isEnabled ? android.view.View.VISIBLE : android.view.View.GONE;
+        UIActivity.button0.setVisibility(visibility);
+        UIActivity.button1.setVisibility(visibility);
+        UIActivity.button2.setVisibility(visibility);
+        UIActivity.button3.setVisibility(visibility);
+        UIActivity.button4.setVisibility(visibility);
+        UIActivity.button5.setVisibility(visibility);
+        UIActivity.showAnswerButton.setVisibility(
+                isEnabled ? android.view.View.GONE : android.view.View.VISIBLE);
+    }
+
     public void showInformation(String text) {
         final String _text = text;
         UIHandler.post(new Runnable() {
@@ -496,71 +867,23 @@ public class MnemosyneThread extends Thread {
         });
     }
 
-    private ProgressDialog progressDialog;
-    private int progressValue = 0;
-    private String progressText = "";
+    // Progress updates can come in at a high rate, e.g. when syncing, see
+    // ProgressChannel.
 
     public void setProgressText(String text) {
-        progressText = text;
-        final String _text = text;
-        UIHandler.post(new Runnable() {
-            public void run() {
-                if (progressDialog != null) {
-                    progressDialog.dismiss();
-                }
-                progressDialog = new ProgressDialog(UIActivity);
-                progressDialog.setCancelable(false);
-                progressDialog.setMessage(_text);
-                progressDialog.setProgress(0);
-                progressValue = 0;
-                progressDialog.show();
-            }
-        });
+        progress.setText(text);
     }
 
     public void setProgressRange(int maximum) {
-        final int _maximum = maximum;
-        UIHandler.post(new Runnable() {
-            public void run() {
-                // Android doesn't like changing style on the fly, so we recreate the
-                // progress dialog.
-                if (progressDialog != null) {
-                    progressDialog.dismiss();
-                }
-                progressDialog = new ProgressDialog(UIActivity);
-                progressDialog.setCancelable(false);
-                progressDialog.setMessage(progressText);
-                progressDialog.setProgress(0);
-                progressValue = 0;
-                progressDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
-                progressDialog.setMax(_maximum);
-                progressDialog.show();
-            }
-        });
+        progress.setRange(maximum);
     }
 
     public void setProgressValue(int value) {
-        final int _value = value;
-        UIHandler.post(new Runnable() {
-            public void run() {
-                if (_value >= progressDialog.getMax()) {
-                    closeProgress();
-                    return;
-                }
-                progressValue = _value;
-                progressDialog.setProgress(progressValue);
-            }
-        });
+        progress.setValue(value);
     }
 
     public void closeProgress() {
-        UIHandler.post(new Runnable() {
-            public void run() {
-                if (progressDialog != null) {
-                    progressDialog.dismiss();
-                }
-            }
-        });
+        progress.close();
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,142 @@
+package org.mnemosyne;
+
+import android.app.Activity;
+import android.app.ProgressDialog;
+import android.os.Handler;
+import android.os.SystemClock;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Carries progress updates from Python (e.g. during a sync or database
+// maintenance) to a ProgressDialog.
+//
+// Callers only replace the latest state, which is cheap and can be done from
+// any thread. A single callback on the UI thread, running at most FRAME_RATE
+// times per second, shows whatever the latest state is at that moment, so
+// intermediate values are dropped instead of flooding the UI Handler. The
+// dialog is reused, and only recreated when switching between a busy
+// indicator and a progress bar, as Android does not like changing the style
+// of a dialog which is showing.
+
+public class ProgressChannel {
+
+    private static final int FRAME_RATE = 30;
+    private static final long FRAME_INTERVAL_MS = 1000 / FRAME_RATE;
+
+    private static class State {
+        final boolean isShowing;
+        final String text;
+        final int maximum;  // 0 for a busy indicator.
+        final int value;
+
+        State(boolean isShowing, String text, int maximum, int value) {
+            this.isShowing = isShowing;
+            this.text = text;
+            this.maximum = maximum;
+            this.value = value;
+        }
+    }
+
+    private final Activity activity;
+    private final Handler UIHandler;
+    private final AtomicReference<State> latest =
+            new AtomicReference<State>(new State(false, "", 0, 0));
+    private final AtomicBoolean isFrameScheduled = new AtomicBoolean(false);
+
+    // Only accessed from the UI thread.
+    private ProgressDialog dialog;
+    private State shown;
+    private long lastFrameTime = 0;
+
+    public ProgressChannel(Activity activity, Handler UIHandler) {
+        this.activity = activity;
+        this.UIHandler = UIHandler;
+    }
+
+    // The setters are called from a single thread at a time (the one running
+    // Python), so they don't need to guard against concurrent updates.
+
+    public void setText(String text) {
+        update(new State(true, text, 0, 0));
+    }
+
+    public void setRange(int maximum) {
+        State state = latest.get();
+        update(new State(true, state.text, maximum, 0));
+    }
+
+    // Like ProgressDialog, reaching the maximum closes the dialog.
+    public void setValue(int value) {
+        State state = latest.get();
+        boolean isDone = state.maximum > 0 && value >= state.maximum;
+        update(new State(state.isShowing && !isDone, state.text,
+                state.maximum, value));
+    }
+
+    public void close() {
+        State state = latest.get();
+        update(new State(false, state.text, state.maximum, state.value));
+    }
+
+    private void update(State state) {
+        latest.set(state);
+        if (isFrameScheduled.compareAndSet(false, true)) {
+            long delay = lastFrameTime + FRAME_INTERVAL_MS - SystemClock.uptimeMillis();
+            UIHandler.postDelayed(frame, Math.max(delay, 0));
+        }
+    }
+
+    private final Runnable frame = new Runnable() {
+        public void run() {
+            lastFrameTime = SystemClock.uptimeMillis();
+            // Clear the flag before reading, so that later updates schedule a
+            // new frame.
+            isFrameScheduled.set(false);
+            show(latest.get());
+        }
+    };
+
+    private void show(State state) {
+        if (state == shown) {
+            return;
+        }
+        if (!state.isShowing) {
+            if (dialog != null) {
+                dialog.dismiss();
+                dialog = null;
+            }
+            shown = state;
+            return;
+        }
+        boolean isBusy = state.maximum == 0;
+        if (dialog != null && (shown.maximum == 0) != isBusy) {
+            dialog.dismiss();
+            dialog = null;
+        }
+        if (dialog == null) {
+            dialog = new ProgressDialog(activity);
+            dialog.setCancelable(false);
+            dialog.setMessage(state.text);
+            if (isBusy) {
+                dialog.setProgressStyle(ProgressDialog.STYLE_SPINNER);
+                dialog.setIndeterminate(true);
+            } else {
+                dialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+                dialog.setMax(state.maximum);
+            }
+            dialog.show();
+        } else {
+            if (!state.text.equals(shown.text)) {
+                dialog.setMessage(state.text);
+            }
+            if (!isBusy && state.maximum != shown.maximum) {
+                dialog.setMax(state.maximum);
+            }
+        }
+        if (!isBusy) {
+            dialog.setProgress(state.value);
+        }
+        shown = state;
+    }
+}
@@ -0,0 +1,60 @@
+package org.mnemosyne;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Finds the <audio> tags in the html of a card, together with the start and
+// stop of the sound segments in ms (0 if not specified), and strips the tags
+// from the html.
+//
+// This class does not depend on Android, so that it can also be benchmarked
+// on a plain JVM.
+
+public class SoundTags {
+
+    private static final Pattern audioRE = Pattern.compile("<audio src=\"(.+?)\"(.*?)>",
+            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+    private static final Pattern startRE = Pattern.compile("start=\"(.+?)\"",
+            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+    private static final Pattern stopRE = Pattern.compile("stop=\"(.+?)\"",
+            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+    public final List<String> sources = new ArrayList<String>();
+    public final List<Integer> starts = new ArrayList<Integer>();
+    public final List<Integer> stops = new ArrayList<Integer>();
+    // The html without the audio tags.
+    public final String html;
+
+    public SoundTags(String html) {
+        Matcher matcher = audioRE.matcher(html);
+        while (matcher.find()) {
+            int start = 0;
+            int stop = 0;
+            String attributes = matcher.group(2);
+            if (attributes != null) {
+                Matcher startMatcher = startRE.matcher(attributes);
+                if (startMatcher.find()) {
+                    start = toMs(startMatcher.group(1));
+                }
+                Matcher stopMatcher = stopRE.matcher(attributes);
+                if (stopMatcher.find()) {
+                    stop = toMs(stopMatcher.group(1));
+                }
+            }
+            sources.add(matcher.group(1));
+            starts.add(start);
+            stops.add(stop);
+        }
+        this.html = sources.isEmpty() ? html : matcher.replaceAll("");
+    }
+
+    public static String strip(String html) {
+        return audioRE.matcher(html).replaceAll("");
+    }
+
+    private static int toMs(String seconds) {
+        return (int) (Double.valueOf(seconds).doubleValue() * 1000);
+    }
+}
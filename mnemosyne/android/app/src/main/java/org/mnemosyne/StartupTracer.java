@@ -0,0 +1,146 @@
+package org.mnemosyne;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+// Records how long each phase of the startup sequence takes, using a
+// monotonic clock, and appends the result as one JSON object per line to a
+// trace file, so that we can compare cold starts across device models.
+//
+// Sub-phases measured on the Python side (see Mnemosyne.initialise) are
+// attached to the phase during which they ran.
+
+public class StartupTracer {
+
+    public static final String TRACE_FILE = "startup_trace.jsonl";
+    // Start over when the trace file gets larger than this.
+    private static final long MAX_TRACE_SIZE = 256 * 1024;
+
+    private static class Phase {
+        String name;
+        long startNanos;
+        long endNanos;
+        List<Phase> children = new ArrayList<Phase>();
+    }
+
+    private long startNanos = System.nanoTime();
+    private long lastNanos = startNanos;
+    private List<Phase> phases = new ArrayList<Phase>();
+    private Map<String, String> info = new LinkedHashMap<String, String>();
+
+    public void setInfo(String key, String value) {
+        info.put(key, value);
+    }
+
+    // Mark the end of a phase, which started at the end of the previous one.
+    public void phaseDone(String name) {
+        Phase phase = new Phase();
+        phase.name = name;
+        phase.startNanos = lastNanos;
+        phase.endNanos = System.nanoTime();
+        lastNanos = phase.endNanos;
+        phases.add(phase);
+    }
+
+    // Attach the timeline returned by 'startup_timeline' in
+    // mnemosyne_android.py to the last phase. It contains one line per
+    // Python phase, with the seconds elapsed since the start of that phase.
+    public void addSubPhases(String timeline) {
+        if (phases.isEmpty() || timeline == null) {
+            return;
+        }
+        Phase parent = phases.get(phases.size() - 1);
+        long previous = parent.startNanos;
+        for (String line : timeline.split("\n")) {
+            int index = line.lastIndexOf(' ');
+            if (index <= 0) {
+                continue;
+            }
+            Phase child = new Phase();
+            child.name = line.substring(0, index);
+            try {
+                child.endNanos = parent.startNanos +
+                        (long) (Double.parseDouble(line.substring(index + 1)) * 1e9);
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            child.startNanos = previous;
+            previous = child.endNanos;
+            parent.children.add(child);
+        }
+    }
+
+    public String toJson() {
+        StringBuilder json = new StringBuilder();
+        json.append("{");
+        for (Map.Entry<String, String> entry : info.entrySet()) {
+            json.append(quote(entry.getKey())).append(": ")
+                    .append(quote(entry.getValue())).append(", ");
+        }
+        json.append("\"total_ms\": ").append(millis(lastNanos - startNanos));
+        json.append(", \"phases\": ");
+        appendPhases(json, phases);
+        json.append("}");
+        return json.toString();
+    }
+
+    public void write(File dir) {
+        File file = new File(dir, TRACE_FILE);
+        try {
+            boolean append = file.length() < MAX_TRACE_SIZE;
+            BufferedWriter bwriter = new BufferedWriter(new FileWriter(file, append));
+            try {
+                bwriter.write(toJson());
+                bwriter.write("\n");
+            } finally {
+                bwriter.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void appendPhases(StringBuilder json, List<Phase> list) {
+        json.append("[");
+        for (int i = 0; i < list.size(); i++) {
+            Phase phase = list.get(i);
+            if (i != 0) {
+                json.append(", ");
+            }
+            json.append("{\"name\": ").append(quote(phase.name));
+            json.append(", \"start_ms\": ").append(millis(phase.startNanos - startNanos));
+            json.append(", \"duration_ms\": ").append(millis(phase.endNanos - phase.startNanos));
+            if (!phase.children.isEmpty()) {
+                json.append(", \"phases\": ");
+                appendPhases(json, phase.children);
+            }
+            json.append("}");
+        }
+        json.append("]");
+    }
+
+    private static String millis(long nanos) {
+        return String.format(Locale.US, "%.3f", nanos / 1e6);
+    }
+
+    private static String quote(String text) {
+        StringBuilder quoted = new StringBuilder("\"");
+        for (char c : text.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < 0x20) {
+                quoted.append(String.format("\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append("\"").toString();
+    }
+}
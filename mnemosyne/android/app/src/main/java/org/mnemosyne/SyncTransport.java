@@ -0,0 +1,472 @@
+package org.mnemosyne;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+// Minimal HTTP client used as the transport of the openSM2sync client, see
+// mnemosyne/cle/sync_transport.py.
+//
+// A single connection is kept alive across requests, and both the socket and
+// the read buffer are large, so that syncing is not limited by the number of
+// round trips through the Python interpreter. Files are uploaded straight
+// from a FileChannel to the socket, and downloaded into a FileChannel, without
+// their contents ever passing through Python.
+//
+// Only what the openSM2sync server needs is supported: responses are framed
+// by a content length, by chunked transfer encoding or by the server closing
+// the connection.
+//
+// This class does not depend on Android, so that it can also be exercised on
+// a plain JVM against a local openSM2sync server.
+
+public class SyncTransport {
+
+    public static final int BUFFER_SIZE = 256 * 1024;
+    private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+
+    private SocketChannel channel;
+    private InputStream in;
+    private String host;
+    private int port;
+    private boolean keepAlive;
+
+    // Bytes read from the socket, but not consumed yet.
+    private byte[] buffer = new byte[BUFFER_SIZE];
+    private int bufferStart = 0;
+    private int bufferEnd = 0;
+    // Used to move response bodies to files and to skip unread bodies.
+    private byte[] fileBuffer = new byte[BUFFER_SIZE];
+
+    // State of the current response.
+    private Map<String, String> headers = new HashMap<String, String>();
+    private boolean bodyDone = true;
+    private boolean chunked = false;
+    private boolean firstChunk = false;
+    // Bytes left in the body or in the current chunk, or -1 if the body
+    // ends when the server closes the connection.
+    private long remaining = 0;
+    private boolean closeAfterResponse = false;
+    // Whether the server kept the connection open after the last response.
+    private boolean serverKeepsAlive = false;
+
+    private FileChannel uploadFile;
+    private File uploadPath;
+    private FileChannel downloadFile;
+    private File downloadPath;
+
+    // Make sure there is a connection to 'host:port'. If 'keepAlive' is
+    // false, a new HTTP 1.0 connection is used for each request, as needed
+    // behind some proxies. 'timeout' is in milliseconds, 0 means none.
+    public void connect(String host, int port, boolean keepAlive, int timeout)
+            throws IOException {
+        // The server could close the connection after the previous response.
+        finishResponse();
+        if (keepAlive && this.keepAlive && channel != null && channel.isOpen()
+                && host.equals(this.host) && port == this.port) {
+            channel.socket().setSoTimeout(timeout);
+            return;
+        }
+        close();
+        channel = SocketChannel.open();
+        Socket socket = channel.socket();
+        socket.setTcpNoDelay(true);
+        socket.setKeepAlive(true);
+        socket.setReceiveBufferSize(BUFFER_SIZE);
+        socket.setSendBufferSize(BUFFER_SIZE);
+        socket.setSoTimeout(timeout);
+        try {
+            socket.connect(new InetSocketAddress(host, port), timeout);
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+        in = socket.getInputStream();
+        this.host = host;
+        this.port = port;
+        this.keepAlive = keepAlive;
+    }
+
+    // Send the request line and the headers. A negative 'contentLength'
+    // means there is no body. The body, if any, needs to be sent next using
+    // 'write' or 'sendFile', after which 'getResponse' reads the response.
+    // On a keep-alive connection, further requests can be sent before that
+    // (pipelining), and 'getResponse' returns the responses in order.
+    public void startRequest(String method, String url, Map<String, String> requestHeaders,
+            long contentLength) throws IOException {
+        finishResponse();
+        if (channel == null) {
+            throw new IOException("Not connected");
+        }
+        StringBuilder request = new StringBuilder(256);
+        request.append(method).append(' ').append(url);
+        request.append(keepAlive ? " HTTP/1.1\r\n" : " HTTP/1.0\r\n");
+        request.append("Host: ").append(host).append(':').append(port).append("\r\n");
+        closeAfterResponse = !keepAlive;
+        boolean acceptEncoding = false;
+        for (Map.Entry<String, String> header : requestHeaders.entrySet()) {
+            request.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+            if (header.getKey().equalsIgnoreCase("connection") &&
+                    header.getValue().equalsIgnoreCase("close")) {
+                closeAfterResponse = true;
+            }
+            if (header.getKey().equalsIgnoreCase("accept-encoding")) {
+                acceptEncoding = true;
+            }
+        }
+        // Compressed responses only if the caller can decompress them.
+        if (!acceptEncoding) {
+            request.append("Accept-Encoding: identity\r\n");
+        }
+        if (contentLength >= 0) {
+            request.append("Content-Length: ").append(contentLength).append("\r\n");
+        }
+        request.append("\r\n");
+        write(request.toString().getBytes(LATIN1));
+    }
+
+    public void write(byte[] data) throws IOException {
+        ByteBuffer source = ByteBuffer.wrap(data);
+        while (source.hasRemaining()) {
+            channel.write(source);
+        }
+    }
+
+    // Send up to 'maxCount' bytes of 'file', continuing where the previous
+    // call for the same file left off. Returns the number of bytes sent,
+    // which is 0 once the whole file has been sent.
+    public long sendFile(File file, long maxCount) throws IOException {
+        if (!file.equals(uploadPath)) {
+            closeUpload();
+            uploadFile = new FileInputStream(file).getChannel();
+            uploadPath = file;
+        }
+        if (uploadFile == null) {
+            return 0;
+        }
+        long position = uploadFile.position();
+        long count = Math.min(maxCount, uploadFile.size() - position);
+        long sent = 0;
+        while (sent < count) {
+            sent += uploadFile.transferTo(position + sent, count - sent, channel);
+        }
+        uploadFile.position(position + sent);
+        if (uploadFile.position() >= uploadFile.size()) {
+            uploadFile.close();
+            uploadFile = null;
+        }
+        return sent;
+    }
+
+    // Read the status line and the headers of the next response, skipping
+    // what was not read of the previous one. Returns the status code.
+    public int getResponse() throws IOException {
+        finishResponse();
+        String statusLine;
+        int status;
+        do {
+            statusLine = readLine();
+            if (statusLine == null) {
+                throw new EOFException("Connection closed by server");
+            }
+            String[] fields = statusLine.split(" ", 3);
+            if (fields.length < 2 || !fields[0].startsWith("HTTP/")) {
+                throw new IOException("Bad status line: " + statusLine);
+            }
+            try {
+                status = Integer.parseInt(fields[1]);
+            } catch (NumberFormatException e) {
+                throw new IOException("Bad status line: " + statusLine);
+            }
+            headers.clear();
+            String line;
+            while ((line = readLine()) != null && line.length() != 0) {
+                int index = line.indexOf(':');
+                if (index > 0) {
+                    headers.put(line.substring(0, index).trim().toLowerCase(Locale.US),
+                            line.substring(index + 1).trim());
+                }
+            }
+        } while (status == 100);
+        String connection = getHeader("connection");
+        if (statusLine.startsWith("HTTP/1.0")) {
+            if (connection == null || !connection.equalsIgnoreCase("keep-alive")) {
+                closeAfterResponse = true;
+            }
+        } else if (connection != null && connection.equalsIgnoreCase("close")) {
+            closeAfterResponse = true;
+        }
+        serverKeepsAlive = !closeAfterResponse;
+        String transferEncoding = getHeader("transfer-encoding");
+        String contentLength = getHeader("content-length");
+        chunked = transferEncoding != null &&
+                transferEncoding.toLowerCase(Locale.US).contains("chunked");
+        bodyDone = false;
+        if (chunked) {
+            remaining = 0;
+            firstChunk = true;
+        } else if (status == 204 || status == 304) {
+            remaining = 0;
+            endOfBody();
+        } else if (contentLength != null) {
+            try {
+                remaining = Long.parseLong(contentLength);
+            } catch (NumberFormatException e) {
+                throw new IOException("Bad content length: " + contentLength);
+            }
+            if (remaining == 0) {
+                endOfBody();
+            }
+        } else {
+            remaining = -1;
+            closeAfterResponse = true;
+        }
+        return status;
+    }
+
+    // Whether requests can be sent before reading the responses to the
+    // previous ones.
+    public boolean canPipeline() {
+        return keepAlive && serverKeepsAlive && channel != null;
+    }
+
+    // Returns null if the current response does not have header 'name'.
+    public String getHeader(String name) {
+        return headers.get(name.toLowerCase(Locale.US));
+    }
+
+    // Read up to 'len' bytes of the body. Returns -1 at the end of the body.
+    public int read(byte[] data, int offset, int len) throws IOException {
+        if (bodyDone) {
+            return -1;
+        }
+        if (chunked && remaining == 0) {
+            readChunkSize(!firstChunk);
+            firstChunk = false;
+            if (bodyDone) {
+                return -1;
+            }
+        }
+        int max = len;
+        if (remaining >= 0) {
+            max = (int) Math.min(len, remaining);
+        }
+        int readLen;
+        if (bufferEnd > bufferStart) {
+            readLen = Math.min(max, bufferEnd - bufferStart);
+            System.arraycopy(buffer, bufferStart, data, offset, readLen);
+            bufferStart += readLen;
+        } else {
+            readLen = in.read(data, offset, max);
+        }
+        if (readLen == -1) {
+            if (remaining == -1) {
+                endOfBody();
+                return -1;
+            }
+            throw new EOFException("Connection closed by server");
+        }
+        if (remaining > 0) {
+            remaining -= readLen;
+            if (remaining == 0 && !chunked) {
+                endOfBody();
+            }
+        }
+        return readLen;
+    }
+
+    // Read up to 'maxCount' bytes of the body, or the entire remainder if
+    // 'maxCount' is negative.
+    public byte[] readBody(int maxCount) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream(
+                maxCount >= 0 ? Math.min(maxCount, BUFFER_SIZE) : BUFFER_SIZE);
+        int total = 0;
+        while (maxCount < 0 || total < maxCount) {
+            int len = fileBuffer.length;
+            if (maxCount >= 0) {
+                len = Math.min(len, maxCount - total);
+            }
+            int readLen = read(fileBuffer, 0, len);
+            if (readLen == -1) {
+                break;
+            }
+            body.write(fileBuffer, 0, readLen);
+            total += readLen;
+        }
+        return body.toByteArray();
+    }
+
+    // Write up to 'maxCount' bytes of the body to 'file', continuing where
+    // the previous call for the same file left off. Returns the number of
+    // bytes written, which is 0 once the whole body has been written.
+    public long readToFile(File file, long maxCount) throws IOException {
+        if (!file.equals(downloadPath)) {
+            closeDownload();
+            downloadFile = new FileOutputStream(file).getChannel();
+            downloadPath = file;
+        }
+        if (downloadFile == null) {
+            return 0;
+        }
+        long total = 0;
+        while (total < maxCount) {
+            int readLen = read(fileBuffer, 0, (int) Math.min(fileBuffer.length, maxCount - total));
+            if (readLen == -1) {
+                downloadFile.close();
+                downloadFile = null;
+                break;
+            }
+            ByteBuffer source = ByteBuffer.wrap(fileBuffer, 0, readLen);
+            while (source.hasRemaining()) {
+                downloadFile.write(source);
+            }
+            total += readLen;
+        }
+        return total;
+    }
+
+    public void close() {
+        closeUpload();
+        closeDownload();
+        bodyDone = true;
+        serverKeepsAlive = false;
+        bufferStart = bufferEnd = 0;
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Nothing left to do.
+            }
+        }
+        channel = null;
+        in = null;
+    }
+
+    // Skip whatever the caller did not read of the previous response, so
+    // that the connection can be reused.
+    private void finishResponse() throws IOException {
+        closeUpload();
+        closeDownload();
+        while (read(fileBuffer, 0, fileBuffer.length) != -1);
+    }
+
+    private void endOfBody() {
+        bodyDone = true;
+        if (closeAfterResponse) {
+            // Keep the headers of the response, they could still be queried.
+            closeUpload();
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    // Nothing left to do.
+                }
+            }
+            channel = null;
+            in = null;
+            bufferStart = bufferEnd = 0;
+        }
+    }
+
+    // Read the size line of the next chunk, after the line break terminating
+    // the previous chunk if 'afterChunk' is true.
+    private void readChunkSize(boolean afterChunk) throws IOException {
+        if (afterChunk) {
+            readLine();
+        }
+        String line = readLine();
+        if (line == null) {
+            throw new EOFException("Connection closed by server");
+        }
+        int index = line.indexOf(';');
+        if (index >= 0) {
+            line = line.substring(0, index);
+        }
+        try {
+            remaining = Long.parseLong(line.trim(), 16);
+        } catch (NumberFormatException e) {
+            throw new IOException("Bad chunk size: " + line);
+        }
+        if (remaining == 0) {
+            // Skip the trailer.
+            while ((line = readLine()) != null && line.length() != 0);
+            endOfBody();
+        }
+    }
+
+    // Returns null if the connection was closed before the end of the line.
+    private String readLine() throws IOException {
+        StringBuilder line = new StringBuilder(64);
+        while (true) {
+            if (bufferStart == bufferEnd) {
+                bufferStart = 0;
+                bufferEnd = in.read(buffer, 0, buffer.length);
+                if (bufferEnd == -1) {
+                    bufferEnd = 0;
+                    return null;
+                }
+            }
+            char c = (char) (buffer[bufferStart++] & 0xff);
+            if (c == '\n') {
+                int length = line.length();
+                if (length > 0 && line.charAt(length - 1) == '\r') {
+                    line.setLength(length - 1);
+                }
+                return line.toString();
+            }
+            line.append(c);
+        }
+    }
+
+    private void closeUpload() {
+        if (uploadFile != null) {
+            try {
+                uploadFile.close();
+            } catch (IOException e) {
+                // Only read from.
+            }
+        }
+        uploadFile = null;
+        uploadPath = null;
+    }
+
+    private void closeDownload() {
+        if (downloadFile != null) {
+            try {
+                downloadFile.close();
+            } catch (IOException e) {
+                // Nothing left to do.
+            }
+        }
+        downloadFile = null;
+        downloadPath = null;
+    }
+
+    // Parse headers passed as 'name: value' lines.
+    public static Map<String, String> parseHeaders(String lines) {
+        Map<String, String> parsed = new HashMap<String, String>();
+        if (lines == null) {
+            return parsed;
+        }
+        for (String line : lines.split("\n")) {
+            int index = line.indexOf(':');
+            if (index > 0) {
+                parsed.put(line.substring(0, index).trim(), line.substring(index + 1).trim());
+            }
+        }
+        return parsed;
+    }
+}
@@ -0,0 +1,151 @@
+package org.mnemosyne.benchmarks;
+
+import org.mnemosyne.AssetExtractor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+// Extraction of the assets by MnemosyneInstaller: a zip with many small,
+// compressible Python sources like mnemosyne.zip, and a single larger binary
+// like the extension modules. Measures both a fresh install and an app update
+// in which none of the files changed, where only the manifest is compared.
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AssetExtractorBenchmark {
+
+    private static final String ZIP = "sources.zip";
+    private static final String BINARY = "module.so";
+
+    @Param({"500"})
+    public int files;
+
+    @Param({"8192"})
+    public int fileSize;
+
+    @Param({"1", "4"})
+    public int threads;
+
+    private File assetDir;
+    private AssetExtractor.AssetSource source;
+    // Fresh output directory for each invocation of 'install'.
+    private File freshDir;
+    // Output directory which already contains all the files, for 'update'.
+    private File extractedDir;
+
+    @Setup(Level.Trial)
+    public void createAssets() throws IOException {
+        assetDir = Files.createTempDirectory("assets").toFile();
+        Random random = new Random(0);
+        ZipOutputStream zip = new ZipOutputStream(
+                new FileOutputStream(new File(assetDir, ZIP)));
+        try {
+            for (int i = 0; i < files; i++) {
+                zip.putNextEntry(new ZipEntry("package" + (i % 20) + "/module" + i + ".py"));
+                zip.write(pythonSource(random, fileSize));
+                zip.closeEntry();
+            }
+        } finally {
+            zip.close();
+        }
+        byte[] binary = new byte[2 * 1024 * 1024];
+        random.nextBytes(binary);
+        FileOutputStream out = new FileOutputStream(new File(assetDir, BINARY));
+        try {
+            out.write(binary);
+        } finally {
+            out.close();
+        }
+        source = new AssetExtractor.AssetSource() {
+            public InputStream open(String path) throws IOException {
+                return new FileInputStream(new File(assetDir, path));
+            }
+        };
+        extractedDir = Files.createTempDirectory("extracted").toFile();
+        extract(extractedDir);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteAssets() {
+        delete(assetDir);
+        delete(extractedDir);
+    }
+
+    @Setup(Level.Invocation)
+    public void createFreshDir() throws IOException {
+        freshDir = Files.createTempDirectory("fresh").toFile();
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteFreshDir() {
+        delete(freshDir);
+    }
+
+    @Benchmark
+    public int install() throws IOException {
+        return extract(freshDir);
+    }
+
+    @Benchmark
+    public int update() throws IOException {
+        return extract(extractedDir);
+    }
+
+    private int extract(File outputDir) throws IOException {
+        AssetExtractor extractor = new AssetExtractor(source, outputDir, threads);
+        try {
+            extractor.extractZip(ZIP);
+            extractor.copyAsset(BINARY);
+            extractor.finish();
+        } catch (IOException e) {
+            extractor.abort();
+            throw e;
+        }
+        return extractor.getFilesWritten();
+    }
+
+    private static byte[] pythonSource(Random random, int size) {
+        StringBuilder source = new StringBuilder(size + 80);
+        while (source.length() < size) {
+            source.append("    def method_").append(random.nextInt(1000))
+                    .append("(self, card, value=").append(random.nextInt(100))
+                    .append("):\n        return self.database().card(card._id)\n");
+        }
+        return source.toString().getBytes();
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
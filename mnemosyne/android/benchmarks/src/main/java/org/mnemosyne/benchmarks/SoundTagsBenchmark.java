@@ -0,0 +1,76 @@
+package org.mnemosyne.benchmarks;
+
+import org.mnemosyne.SoundTags;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+// Scanning the html of a card for sound files, as done by
+// MnemosyneActivity.handleSoundFiles for every question and answer shown,
+// and by stripSoundFiles when sound is not played.
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SoundTagsBenchmark {
+
+    private static final String HEAD = "<html><head><style type=\"text/css\">"
+            + "table { height: 100%; margin-left: auto; margin-right: auto; } "
+            + "body { color: black; background-color: white; margin: 0; "
+            + "padding: 0; border: thin solid #8F8F8F; } "
+            + "div#mnem1 { text-align: center; } "
+            + "._search { color: red; } "
+            + "</style></head><body><table><tr><td><div id=\"mnem1\" class=\"f\">";
+    private static final String TAIL = "</div></td></tr></table></body></html>";
+    private static final String TEXT = "Quelle est la capitale de la "
+            + "<b>Belgique</b>? <i>Bruxelles</i> est aussi le si&egrave;ge "
+            + "de nombreuses institutions europ&eacute;ennes.<br>";
+
+    // Number of <audio> tags in the card.
+    @Param({"0", "1", "4"})
+    public int sounds;
+
+    private String html;
+
+    @Setup
+    public void createHtml() {
+        StringBuilder builder = new StringBuilder(HEAD);
+        for (int i = 0; i < 4; i++) {
+            builder.append(TEXT);
+        }
+        for (int i = 0; i < sounds; i++) {
+            builder.append("<audio src=\"file:///sdcard/Mnemosyne/default.db_media/")
+                    .append("sound").append(i).append(".mp3\"");
+            if (i % 2 == 1) {
+                builder.append(" start=\"").append(i).append(".5\" stop=\"")
+                        .append(i + 2).append("\"");
+            }
+            builder.append(">");
+        }
+        builder.append(TAIL);
+        html = builder.toString();
+    }
+
+    @Benchmark
+    public SoundTags parse() {
+        return new SoundTags(html);
+    }
+
+    @Benchmark
+    public String strip() {
+        return SoundTags.strip(html);
+    }
+}
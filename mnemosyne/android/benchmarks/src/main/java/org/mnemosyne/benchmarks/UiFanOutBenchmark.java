@@ -0,0 +1,183 @@
+package org.mnemosyne.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.TimeUnit;
+
+// Cost of handing updates from the Mnemosyne thread over to the UI thread.
+// Handler and Looper are not available on a plain JVM, so the UI thread is
+// modelled by a single threaded executor, which also runs the posted
+// Runnables one by one in order.
+//
+// Compares posting each change to the review screen separately with posting
+// them as a single frame, like MnemosyneThread.applyReviewFrame, and posting
+// each progress update with keeping only the latest one, like
+// ProgressChannel.
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class UiFanOutBenchmark {
+
+    // Stands in for the widgets of MnemosyneActivity.
+    private static class ReviewScreen {
+        boolean questionBoxVisible;
+        boolean answerBoxVisible;
+        String questionLabel;
+        String question;
+        String answer;
+        String showButtonText;
+        int gradesEnabled;
+        String statusbarText;
+        int progress;
+    }
+
+    private static final String QUESTION = "<div id=\"mnem1\" class=\"f\">"
+            + "Quelle est la capitale de la <b>Belgique</b>?</div>";
+
+    // Number of progress updates sent by e.g. a sync.
+    @Param({"1000"})
+    public int progressUpdates;
+
+    private ExecutorService UIThread;
+    private ReviewScreen screen;
+
+    @Setup
+    public void startUIThread() {
+        UIThread = Executors.newSingleThreadExecutor();
+        screen = new ReviewScreen();
+    }
+
+    @TearDown
+    public void stopUIThread() {
+        UIThread.shutdownNow();
+    }
+
+    @Benchmark
+    public ReviewScreen separatePosts() throws InterruptedException {
+        final int count = screen.gradesEnabled + 1;
+        UIThread.execute(new Runnable() {
+            public void run() {
+                screen.questionBoxVisible = true;
+            }
+        });
+        UIThread.execute(new Runnable() {
+            public void run() {
+                screen.answerBoxVisible = true;
+            }
+        });
+        UIThread.execute(new Runnable() {
+            public void run() {
+                screen.questionLabel = "Question:";
+            }
+        });
+        UIThread.execute(new Runnable() {
+            public void run() {
+                screen.question = QUESTION;
+            }
+        });
+        UIThread.execute(new Runnable() {
+            public void run() {
+                screen.answer = "";
+            }
+        });
+        UIThread.execute(new Runnable() {
+            public void run() {
+                screen.showButtonText = "Show answer";
+            }
+        });
+        UIThread.execute(new Runnable() {
+            public void run() {
+                screen.gradesEnabled = count;
+            }
+        });
+        UIThread.execute(new Runnable() {
+            public void run() {
+                screen.statusbarText = "Sch.: 12 Not mem.: 30 Act.: 100";
+            }
+        });
+        return waitForUIThread();
+    }
+
+    @Benchmark
+    public ReviewScreen singleFrame() throws InterruptedException {
+        final int count = screen.gradesEnabled + 1;
+        UIThread.execute(new Runnable() {
+            public void run() {
+                screen.questionBoxVisible = true;
+                screen.answerBoxVisible = true;
+                screen.questionLabel = "Question:";
+                screen.question = QUESTION;
+                screen.answer = "";
+                screen.showButtonText = "Show answer";
+                screen.gradesEnabled = count;
+                screen.statusbarText = "Sch.: 12 Not mem.: 30 Act.: 100";
+            }
+        });
+        return waitForUIThread();
+    }
+
+    @Benchmark
+    public ReviewScreen progressPerUpdate() throws InterruptedException {
+        for (int i = 0; i < progressUpdates; i++) {
+            final int value = i;
+            UIThread.execute(new Runnable() {
+                public void run() {
+                    screen.progress = value;
+                }
+            });
+        }
+        return waitForUIThread();
+    }
+
+    @Benchmark
+    public ReviewScreen progressCoalesced() throws InterruptedException {
+        final AtomicInteger latest = new AtomicInteger();
+        final AtomicBoolean isFrameScheduled = new AtomicBoolean(false);
+        final Runnable frame = new Runnable() {
+            public void run() {
+                isFrameScheduled.set(false);
+                screen.progress = latest.get();
+            }
+        };
+        for (int i = 0; i < progressUpdates; i++) {
+            latest.set(i);
+            if (isFrameScheduled.compareAndSet(false, true)) {
+                UIThread.execute(frame);
+            }
+        }
+        return waitForUIThread();
+    }
+
+    // The UI thread runs Runnables in order, so once this one has run, all
+    // the updates posted before have been applied.
+    private ReviewScreen waitForUIThread() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        UIThread.execute(new Runnable() {
+            public void run() {
+                done.countDown();
+            }
+        });
+        done.await();
+        return screen;
+    }
+}
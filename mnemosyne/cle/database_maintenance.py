@@ -7,13 +7,16 @@ from mnemosyne.libmnemosyne.database import DatabaseMaintenance
 
 
 class AndroidDatabaseMaintenance(DatabaseMaintenance):
-    
-    def run(self):
-        # Use shown_question here, since this is implemented to block.
-        answer = self.main_widget().show_question(\
-_("About to archive old logs to improve running speed. Depending on the size of your database and the speed of your device, this can take 10 minutes or more. Please leave Mnemosyne running in the foreground."),
-        _("OK, proceed"), "", "")
-        if answer == 0:
-            DatabaseMaintenance.run(self)
 
-  
\ No newline at end of file
+    """Apart from being run from the menu, this is also done step by step
+    while the app is in the background, see
+    'MnemosyneThread.maintenanceStep'.
+
+    """
+
+    def run(self):
+        self.main_widget().set_progress_text(\
+            _("Archiving old logs to improve running speed..."))
+        while self.step():
+            pass
+        self.main_widget().close_progress()
@@ -0,0 +1,36 @@
+#
+# lazy_dynload.py <Peter.Bienstman@UGent.be>
+#
+
+import sys
+import importlib
+
+
+class LazyDynloadFinder(object):
+
+    """Meta path finder which asks the Java side to extract an extension
+    module from the APK assets the first time it gets imported.
+
+    It never loads anything itself: once the file is in place in lib-dynload,
+    the regular path based finder takes over.
+
+    """
+
+    def __init__(self, android, module_names):
+        self.android = android
+        self.module_names = set(module_names)
+
+    def find_spec(self, fullname, path, target=None):
+        if fullname in self.module_names:
+            # Only try once, also when extraction failed.
+            self.module_names.discard(fullname)
+            if self.android.materialiseDynloadModule(fullname):
+                importlib.invalidate_caches()
+        return None
+
+
+def install_lazy_dynload(android):
+    module_names = [name for name in \
+        android.lazyDynloadModules().split("____") if name]
+    if module_names:
+        sys.meta_path.insert(0, LazyDynloadFinder(android, module_names))
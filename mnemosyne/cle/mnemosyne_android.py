@@ -7,6 +7,12 @@ import os
 #    https://github.com/pyinstaller/pyinstaller/issues/1113
 import encodings.idna
 
+# Remember where modules were found, to speed up the imports on subsequent
+# launches.
+from mnemosyne.cle.warm_start import install_import_location_cache, \
+     save_import_location_cache
+install_import_location_cache()
+
 # Initialise Mnemosyne.
 from mnemosyne.libmnemosyne import Mnemosyne
 mnemosyne = Mnemosyne(upload_science_logs=False, interested_in_old_reps=True)
@@ -33,26 +39,8 @@ mnemosyne.components = [\
           "BothWays"),
          ("mnemosyne.libmnemosyne.card_types.vocabulary",
           "Vocabulary"),
-         ("mnemosyne.libmnemosyne.card_types.both_ways",
-          "FrontToBackToBothWays"),
-         ("mnemosyne.libmnemosyne.card_types.both_ways",
-          "BothWaysToFrontToBack"),
-         ("mnemosyne.libmnemosyne.card_types.vocabulary",
-          "FrontToBackToVocabulary"),
-         ("mnemosyne.libmnemosyne.card_types.vocabulary",
-          "BothWaysToVocabulary"),
-         ("mnemosyne.libmnemosyne.card_types.vocabulary",
-          "VocabularyToFrontToBack"),
-         ("mnemosyne.libmnemosyne.card_types.vocabulary",
-          "VocabularyToBothWays"),
          ("mnemosyne.libmnemosyne.render_chains.plain_text_chain",
           "PlainTextChain"),
-         ("mnemosyne.libmnemosyne.filters.latex",
-          "CheckForUpdatedLatexFiles"),
-         ("mnemosyne.libmnemosyne.filters.latex",
-          "LatexFilenamesFromData"),
-         ("mnemosyne.libmnemosyne.filters.latex",
-          "DeleteUnusedLatexFiles"),
          ("mnemosyne.libmnemosyne.filters.latex",
           "PreprocessClozeLatex"),
          ("mnemosyne.libmnemosyne.filters.latex",
@@ -79,20 +67,6 @@ mnemosyne.components = [\
           "DefaultCriterion"),
          ("mnemosyne.libmnemosyne.databases.SQLite_criterion_applier",
           "DefaultCriterionApplier"),
-         ("mnemosyne.libmnemosyne.statistics_pages.schedule",
-          "Schedule"),
-         ("mnemosyne.libmnemosyne.statistics_pages.retention_score",
-          "RetentionScore"),
-         ("mnemosyne.libmnemosyne.statistics_pages.cards_added",
-          "CardsAdded"),
-         ("mnemosyne.libmnemosyne.statistics_pages.cards_learned",
-          "CardsLearned"),
-         ("mnemosyne.libmnemosyne.statistics_pages.grades",
-          "Grades"),
-         ("mnemosyne.libmnemosyne.statistics_pages.easiness",
-          "Easiness"),
-         ("mnemosyne.libmnemosyne.statistics_pages.current_card",
-          "CurrentCard"),
          ("mnemosyne.cle.main_widget",
           "MainWdgt"),
          ("mnemosyne.cle.configuration",
@@ -104,6 +78,44 @@ mnemosyne.components = [\
          ("mnemosyne.cle.activate_cards_dlg",
           "ActivateCardsDlg")]
 
+# Components which are not needed during a review session are only imported
+# and instantiated when they are first requested.
+mnemosyne.deferred_components = [\
+         ("card_type_converter", None,
+          "mnemosyne.libmnemosyne.card_types.both_ways", "FrontToBackToBothWays"),
+         ("card_type_converter", None,
+          "mnemosyne.libmnemosyne.card_types.both_ways", "BothWaysToFrontToBack"),
+         ("card_type_converter", None,
+          "mnemosyne.libmnemosyne.card_types.vocabulary", "FrontToBackToVocabulary"),
+         ("card_type_converter", None,
+          "mnemosyne.libmnemosyne.card_types.vocabulary", "BothWaysToVocabulary"),
+         ("card_type_converter", None,
+          "mnemosyne.libmnemosyne.card_types.vocabulary", "VocabularyToFrontToBack"),
+         ("card_type_converter", None,
+          "mnemosyne.libmnemosyne.card_types.vocabulary", "VocabularyToBothWays"),
+         ("hook", "dynamically_create_media_files",
+          "mnemosyne.libmnemosyne.filters.latex", "CheckForUpdatedLatexFiles"),
+         ("hook", "active_dynamic_media_files",
+          "mnemosyne.libmnemosyne.filters.latex", "LatexFilenamesFromData"),
+         ("hook", "delete_unused_media_files",
+          "mnemosyne.libmnemosyne.filters.latex", "DeleteUnusedLatexFiles"),
+         ("statistics_page", None,
+          "mnemosyne.libmnemosyne.statistics_pages.schedule", "Schedule"),
+         ("statistics_page", None,
+          "mnemosyne.libmnemosyne.statistics_pages.retention_score", "RetentionScore"),
+         ("statistics_page", None,
+          "mnemosyne.libmnemosyne.statistics_pages.cards_added", "CardsAdded"),
+         ("statistics_page", None,
+          "mnemosyne.libmnemosyne.statistics_pages.cards_learned", "CardsLearned"),
+         ("statistics_page", None,
+          "mnemosyne.libmnemosyne.statistics_pages.grades", "Grades"),
+         ("statistics_page", None,
+          "mnemosyne.libmnemosyne.statistics_pages.easiness", "Easiness"),
+         ("statistics_page", None,
+          "mnemosyne.libmnemosyne.statistics_pages.current_card", "CurrentCard"),
+         ("sync_transport", None,
+          "mnemosyne.cle.sync_transport", "JavaSyncTransport")]
+
 mnemosyne.gui_for_component["ScheduledForgottenNew"] = [\
     ("mnemosyne.cle.review_widget",
      "ReviewWdgt")]
@@ -120,8 +132,14 @@ mnemosyne.gui_for_component["CramRecent"] = [\
 def start_mnemosyne(data_dir, filename, wrapper):
     try:
         mnemosyne.android = wrapper
+        # Modules which are not needed at this stage get extracted from the
+        # APK on first import.
+        from mnemosyne.cle.lazy_dynload import install_lazy_dynload
+        install_lazy_dynload(wrapper)
         mnemosyne.initialise(data_dir=data_dir, filename=filename)
         mnemosyne.start_review()
+        mnemosyne.mark_startup_phase("restart_review")
+        save_import_location_cache()
     except Exception as e:
         print(e)
         import traceback
@@ -129,9 +147,25 @@ def start_mnemosyne(data_dir, filename, wrapper):
         traceback.print_stack()
         print(traceback.format_stack())
 
+def startup_timeline():
+    # One 'phase seconds_since_start' line per phase of 'initialise', to be
+    # merged into the startup trace on the Java side.
+    return "\n".join("%s %.6f" % (phase, seconds) for phase, seconds in \
+        mnemosyne.startup_timeline)
+
+# Both saves below mean a synchronous commit, which is slow on cheap flash
+# storage, so we only do them if something actually changed. Repetitions
+# don't count, as they are journaled as they happen.
+_saved_config = None
+
 def pause_mnemosyne():
-    mnemosyne.database().save()
-    mnemosyne.config().save()
+    global _saved_config
+    if mnemosyne.database().has_unjournaled_changes():
+        mnemosyne.database().save()
+    config = repr(sorted(mnemosyne.config().items()))
+    if config != _saved_config:
+        mnemosyne.config().save()
+        _saved_config = config
 
 def stop_mnemosyne():
     mnemosyne.finalise()
@@ -4,11 +4,108 @@
 
 from mnemosyne.libmnemosyne.ui_components.review_widget import ReviewWidget
 
+# Marks a complete page instead of just a body, see 'ReviewWdgt.split_page'
+# and MnemosyneThread.applyReviewFrame.
+FULL_PAGE = -1
+
 
 class ReviewWdgt(ReviewWidget):
 
+    """Each call to the Android side is a trip through the bridge and
+    a separate message on the UI thread, which can cause several layout
+    passes and visible flicker for a single card transition. Therefore,
+    between 'begin_update' and 'redraw_now', all changes are collected in a
+    frame and applied on the UI thread in one go.
+
+    Updates outside of such a frame (e.g. just the status bar after editing a
+    card) are sent immediately, as a frame with a single field.
+
+    The question and answer are shown in a persistent review page on the
+    Android side, so that we only need to send the body of the rendered page.
+    The Android side caches the style sheets (typically one per card type),
+    so that they only need to be sent once and afterwards can be referred to
+    by id.
+
+    """
+
+    def __init__(self, component_manager):
+        ReviewWidget.__init__(self, component_manager)
+        self.frame = None
+        self.css_ids = {} # {css: id}
+
+    def split_page(self, html):
+
+        """Returns the id of the style sheet, the style sheet itself if it has
+        not been sent before (None otherwise) and the body of 'html'.
+
+        If the page can't be shown by replacing the body of the review page,
+        e.g. because it contains scripts which would not get executed, the id
+        is FULL_PAGE and 'html' is returned as is.
+
+        """
+
+        style_start = html.find("<style type=\"text/css\">")
+        style_end = html.find("</style>", style_start)
+        body_start = html.find("<body", style_end)
+        body_start = html.find(">", body_start) + 1
+        body_end = html.rfind("</body>")
+        if -1 in (style_start, style_end, body_end) or body_start == 0 or \
+            "<script" in html[body_start:body_end].lower():
+            return FULL_PAGE, None, html
+        body = html[body_start:body_end]
+        css = html[style_start + len("<style type=\"text/css\">"):style_end]
+        css_id = self.css_ids.get(css)
+        if css_id is not None:
+            return css_id, None, body
+        css_id = len(self.css_ids)
+        self.css_ids[css] = css_id
+        return css_id, css, body
+
+    def begin_update(self):
+        if self.frame is None:
+            self.frame = {}
+
     def redraw_now(self):
-        pass
+        frame, self.frame = self.frame, None
+        if frame:
+            self._apply_frame(frame)
+
+    def _update(self, **changes):
+        if self.frame is not None:
+            self.frame.update(changes)
+        else:
+            self._apply_frame(changes)
+
+    def _apply_frame(self, frame):
+        # Fields which are absent are left untouched on the Android side.
+        # Booleans are sent as -1 (unchanged), 0 or 1.
+
+        def flag(key):
+            if key not in frame:
+                return -1
+            return 1 if frame[key] else 0
+
+        def text(key):
+            if key not in frame:
+                return None
+            return frame[key].encode("utf-8")
+
+        def page(key):
+            if key not in frame:
+                return FULL_PAGE, None, None
+            css_id, css, body = self.split_page(frame[key])
+            if css is not None:
+                css = css.encode("utf-8")
+            return css_id, css, body.encode("utf-8")
+
+        question_css_id, question_css, question = page("question")
+        answer_css_id, answer_css, answer = page("answer")
+        self.component_manager.android.applyReviewFrame(\
+            flag("question_box_visible"), flag("answer_box_visible"),
+            text("question_label"), question_css_id, question_css, question,
+            answer_css_id, answer_css, answer,
+            frame.get("process_audio", False), text("show_button_text"),
+            flag("grades_enabled"), text("status_bar_text"))
 
     def empty(self):
         background = "white"
@@ -36,13 +133,13 @@ class ReviewWdgt(ReviewWidget):
         self.review_controller().grade_answer(grade)
 
     def set_question_box_visible(self, is_visible):
-        self.component_manager.android.setQuestionBoxVisible(is_visible)
+        self._update(question_box_visible=is_visible)
 
     def set_answer_box_visible(self, is_visible):
-        self.component_manager.android.setAnswerBoxVisible(is_visible)
+        self._update(answer_box_visible=is_visible)
 
     def set_question_label(self, text):
-        self.component_manager.android.setQuestionLabel(text.encode("utf-8"))
+        self._update(question_label=text)
 
     def set_question(self, text):
         self.question = text
@@ -50,13 +147,20 @@ class ReviewWdgt(ReviewWidget):
     def set_answer(self, text):
         self.answer = text
 
+    def preload_question(self, text):
+        css_id, css, body = self.split_page(text)
+        if css_id == FULL_PAGE:
+            return
+        if css is not None:
+            css = css.encode("utf-8")
+        self.component_manager.android.preloadQuestionBody(\
+            css_id, css, body.encode("utf-8"))
+
     def reveal_question(self):
-        self.component_manager.android.setQuestion(\
-            self.question.encode("utf-8"))
+        self._update(question=self.question)
 
     def reveal_answer(self, process_audio=True):
-        self.component_manager.android.setAnswer(\
-            self.answer.encode("utf-8"), process_audio)
+        self._update(answer=self.answer, process_audio=process_audio)
 
     def clear_question(self):
         self.question = self.empty()
@@ -69,11 +173,12 @@ class ReviewWdgt(ReviewWidget):
         self.reveal_answer(process_audio=False)
 
     def update_show_button(self, text, is_default, is_enabled):
-        self.component_manager.android.updateShowButton(\
-            text.encode("utf-8"), is_default, is_enabled)
+        # 'is_enabled' is handled through 'set_grades_enabled', see
+        # MnemosyneThread.updateShowButton.
+        self._update(show_button_text=text)
 
     def set_grades_enabled(self, is_enabled):
-        self.component_manager.android.setGradesEnabled(is_enabled)
+        self._update(grades_enabled=is_enabled)
 
     def set_default_grade(self, grade):
         pass
@@ -83,5 +188,5 @@ class ReviewWdgt(ReviewWidget):
             self.review_controller().counters()
         counters = "Sch.: %d Not mem.: %d Act.: %d" % \
                     (scheduled_count, non_memorised_count, active_count)
-        self.component_manager.android.setStatusbarText(counters)
+        self._update(status_bar_text=counters)
 
@@ -0,0 +1,136 @@
+#
+# sync_transport.py <Peter.Bienstman@UGent.be>
+#
+
+import socket
+
+from openSM2sync.transport import Transport
+from mnemosyne.libmnemosyne.component import Component
+
+
+def to_java_binary(data):
+    # The bridge passes strings encoded as utf-8, so binary data needs to be
+    # encoded with one character per byte first.
+    return data.decode("latin-1").encode("utf-8")
+
+def from_java_binary(data):
+    if isinstance(data, bytes):
+        data = data.decode("utf-8")
+    return data.encode("latin-1")
+
+
+class JavaResponse(object):
+
+    def __init__(self, transport, status):
+        self.transport = transport
+        self.status = status
+
+    def getheader(self, name, default=None):
+        value = self.transport.android.syncGetHeader(name.encode("utf-8"))
+        if value is None:
+            return default
+        if isinstance(value, bytes):
+            value = value.decode("utf-8")
+        return value
+
+    def read(self, amt=None):
+        data = self.transport.android.syncRead(-1 if amt is None else amt)
+        if data is None:
+            self.transport.raise_error()
+        return from_java_binary(data)
+
+
+class JavaSyncTransport(Component, Transport):
+
+    """Leaves the actual network traffic of syncing to the Java side, see
+    SyncTransport.java, which keeps the connection alive across requests and
+    moves binary files between disk and socket without going through Python.
+
+    """
+
+    component_type = "sync_transport"
+    instantiate = Component.LATER
+
+    # Bytes moved per call to the Java side, between progress updates.
+    CHUNK_SIZE = 1024 * 1024
+    PIPELINE_DEPTH = 4
+
+    def __init__(self, component_manager):
+        Component.__init__(self, component_manager)
+        self.android = component_manager.android
+
+    def raise_error(self):
+        error = self.android.syncLastError()
+        if isinstance(error, bytes):
+            error = error.decode("utf-8")
+        if error.startswith("SocketTimeoutException"):
+            raise socket.timeout(error)
+        if error.startswith("UnknownHostException"):
+            raise socket.gaierror(error)
+        raise socket.error(error)
+
+    def _headers(self, headers):
+        return "".join("%s: %s\n" % (name, value) for name, value in \
+            headers.items()).encode("utf-8")
+
+    def connect(self, host, port, keep_alive=True, timeout=None):
+        timeout = 0 if timeout is None else int(timeout * 1000)
+        if not self.android.syncConnect(host.encode("utf-8"), port,
+                                        keep_alive, timeout):
+            self.raise_error()
+
+    def request(self, method, url, body=None, headers={}):
+        status = self.android.syncRequest(method.encode("utf-8"),
+            url.encode("utf-8"), self._headers(headers),
+            to_java_binary(body if body is not None else b""))
+        if status == -1:
+            self.raise_error()
+        return JavaResponse(self, status)
+
+    def max_pending_requests(self):
+        if self.android.syncCanPipeline():
+            return self.PIPELINE_DEPTH
+        return 1
+
+    def send_request(self, method, url, body=None, headers={}):
+        if not self.android.syncSendRequest(method.encode("utf-8"),
+            url.encode("utf-8"), self._headers(headers),
+            to_java_binary(body if body is not None else b"")):
+            self.raise_error()
+
+    def get_response(self):
+        status = self.android.syncGetResponse()
+        if status == -1:
+            self.raise_error()
+        return JavaResponse(self, status)
+
+    def request_file(self, method, url, filename, progress=None,
+                     headers={}):
+        filename = filename.encode("utf-8")
+        if not self.android.syncStartFileRequest(method.encode("utf-8"),
+            url.encode("utf-8"), self._headers(headers), filename):
+            self.raise_error()
+        sent = self.android.syncSendFile(filename, self.CHUNK_SIZE)
+        while sent > 0:
+            if progress:
+                progress(sent)
+            sent = self.android.syncSendFile(filename, self.CHUNK_SIZE)
+        if sent == -1:
+            self.raise_error()
+        status = self.android.syncGetResponse()
+        if status == -1:
+            self.raise_error()
+        return JavaResponse(self, status)
+
+    def download_file(self, response, filename, progress=None):
+        filename = filename.encode("utf-8")
+        received = self.android.syncReadToFile(filename, self.CHUNK_SIZE)
+        while received > 0:
+            if progress:
+                progress(received)
+            received = self.android.syncReadToFile(filename, self.CHUNK_SIZE)
+        if received == -1:
+            self.raise_error()
+
+    def close(self):
+        self.android.syncClose()
@@ -0,0 +1,103 @@
+#
+# warm_start.py <Peter.Bienstman@UGent.be>
+#
+
+import os
+import sys
+import json
+import importlib.util
+
+
+class ImportLocationCache(object):
+
+    """Meta path finder which remembers where the modules imported during
+    startup were found, so that on subsequent launches they can be loaded
+    straight from that location, instead of having the regular path based
+    finder probe every entry on sys.path on slow flash storage.
+
+    The cache is only valid for a given install, so it is stamped with the
+    contents of 'lastmodified.txt', which MnemosyneInstaller rewrites after
+    each (re)extraction of the assets.
+
+    """
+
+    def __init__(self, files_dir):
+        self.cache_path = os.path.join(files_dir, "warm_start.json")
+        self.stamp = self._read_stamp(files_dir)
+        self.locations = {}
+        if self.stamp is None:
+            return
+        try:
+            with open(self.cache_path) as cache_file:
+                data = json.load(cache_file)
+            if data.get("stamp") == self.stamp:
+                self.locations = data["modules"]
+        except (IOError, ValueError, KeyError):
+            pass
+
+    def _read_stamp(self, files_dir):
+        try:
+            with open(os.path.join(files_dir, "lastmodified.txt")) as f:
+                return f.readline().strip()
+        except IOError:
+            return None
+
+    def find_spec(self, fullname, path, target=None):
+        location = self.locations.get(fullname)
+        if location is None:
+            return None
+        origin, is_package = location
+        if not os.path.exists(origin):
+            # Stale entry, fall back to the regular finders.
+            del self.locations[fullname]
+            return None
+        if is_package:
+            return importlib.util.spec_from_file_location(fullname, origin,
+                submodule_search_locations=[os.path.dirname(origin)])
+        return importlib.util.spec_from_file_location(fullname, origin)
+
+    def save(self):
+
+        """Store the location of all modules loaded from real files (i.e.
+        not from inside a zip file and not built in), if anything changed.
+
+        """
+
+        if self.stamp is None:
+            return
+        locations = {}
+        for name, module in list(sys.modules.items()):
+            spec = getattr(module, "__spec__", None)
+            if spec is None or not spec.has_location or not spec.origin:
+                continue
+            if not os.path.isfile(spec.origin):
+                continue
+            is_package = spec.submodule_search_locations is not None
+            locations[name] = [spec.origin, is_package]
+        if locations == self.locations:
+            return
+        self.locations = locations
+        tmp_path = self.cache_path + ".tmp"
+        try:
+            with open(tmp_path, "w") as cache_file:
+                json.dump({"stamp": self.stamp, "modules": locations},
+                          cache_file)
+            os.replace(tmp_path, self.cache_path)
+        except (IOError, OSError):
+            pass
+
+
+_import_location_cache = None
+
+def install_import_location_cache(files_dir=None):
+    global _import_location_cache
+    if files_dir is None:
+        # The directory the assets were extracted to, containing 'mnemosyne'.
+        files_dir = os.path.dirname(os.path.dirname(os.path.dirname(\
+            os.path.abspath(__file__))))
+    _import_location_cache = ImportLocationCache(files_dir)
+    sys.meta_path.insert(0, _import_location_cache)
+
+def save_import_location_cache():
+    if _import_location_cache:
+        _import_location_cache.save()
@@ -4,6 +4,7 @@
 
 import os
 import sys
+import time
 import importlib
 import traceback
 from mnemosyne.libmnemosyne.component import Component
@@ -152,7 +153,24 @@ class Mnemosyne(Component):
           "Smconv_XML"),
          ("mnemosyne.libmnemosyne.file_formats.cuecard_wcu",
           "CuecardWcu")]
+        # Components which are only imported and instantiated when first
+        # needed, as (component_type, used_for, module_name, class_name).
+        # See ComponentManager.register_deferred.
+        self.deferred_components = []
         self.gui_for_component = {}
+        self.startup_timeline = []
+        self._startup_start = time.monotonic()
+
+    def mark_startup_phase(self, phase):
+
+        """Record that 'phase' of the startup sequence has finished, together
+        with the time in seconds since the start of 'initialise', so that
+        front ends can find out where the startup time goes.
+
+        """
+
+        self.startup_timeline.append(\
+            (phase, time.monotonic() - self._startup_start))
 
     def android_log(self, message):
         if hasattr(self, "android"):
@@ -183,11 +201,14 @@ class Mnemosyne(Component):
 
         """
 
+        self.startup_timeline = []
+        self._startup_start = time.monotonic()
         if hasattr(self, "android"):
             self.component_manager.android = self.android
         if debug_file:
             self.component_manager.debug_file = open(debug_file, "w")
         self.register_components()
+        self.mark_startup_phase("register_components")
         # Upgrade from 1.x if needed.
         if automatic_upgrades:
             from mnemosyne.libmnemosyne.upgrades.upgrade1 import Upgrade1
@@ -198,10 +219,12 @@ class Mnemosyne(Component):
         if config_dir:
             self.config().config_dir = config_dir
         self.activate_components()
+        self.mark_startup_phase("activate_components")
         register_component_manager(self.component_manager,
                                    self.config()["user_id"])
         self.execute_user_plugin_dir()
         self.activate_saved_plugins()
+        self.mark_startup_phase("activate_plugins")
         # If we are only running a sync or a review server, do not yet load
         # the database to prevent threading access issues.
         if server_only:
@@ -218,6 +241,7 @@ class Mnemosyne(Component):
                 _("Command line argument is not a *.db file."))
             sys.exit()
         self.load_database(filename)
+        self.mark_startup_phase("load_database")
         # Only now that the database is loaded, we can start writing log
         # events to it. This is why we log started_scheduler and
         # loaded_database manually.
@@ -236,9 +260,12 @@ class Mnemosyne(Component):
         if automatic_upgrades:
             from mnemosyne.libmnemosyne.upgrades.upgrade1 import Upgrade1
             Upgrade1(self.component_manager).run()
+        self.mark_startup_phase("log_and_upgrade")
         # Finally, we can start the main widget and the review.
         self.main_widget().activate()
+        self.mark_startup_phase("activate_main_widget")
         self.start_review()
+        self.mark_startup_phase("start_review")
 
     def register_components(self):
 
@@ -256,6 +283,10 @@ class Mnemosyne(Component):
             if component.instantiate == Component.IMMEDIATELY:
                 component = component(component_manager=self.component_manager)
             self.component_manager.register(component)
+        for component_type, used_for, module_name, class_name in \
+                self.deferred_components:
+            self.component_manager.register_deferred(\
+                component_type, used_for, module_name, class_name)
         for component_name in self.gui_for_component:
             for gui_module_name, gui_class_name in \
                     self.gui_for_component[component_name]:
@@ -2,6 +2,10 @@
 # component_manager.py <Peter.Bienstman@UGent.be>
 #
 
+import importlib
+
+from mnemosyne.libmnemosyne.component import Component
+
 
 class ComponentManager(object):
 
@@ -15,6 +19,10 @@ class ComponentManager(object):
     at the same time, like schedule, database ... The idea is that the last
     one registered takes preference.
 
+    Components which are seldom needed can be registered deferred, in which
+    case their module is only imported and the component only instantiated
+    the first time components of that type are requested.
+
     """
 
     def __init__(self):
@@ -22,6 +30,7 @@ class ComponentManager(object):
         self.card_type_with_id = {}
         self.render_chain_with_id = {}
         self.study_mode_with_id = {}
+        self.deferred = {} # {type: [(used_for, module_name, class_name)]}
         self.debug_file = None
 
     def register(self, component):
@@ -43,6 +52,40 @@ class ComponentManager(object):
         elif comp_type == "study_mode":
             self.study_mode_with_id[component.id] = component
 
+    def register_deferred(self, comp_type, used_for, module_name,
+                          class_name):
+
+        """'used_for' is only used to decide when to load the component, and
+        can be None to load it on the first request for any component of
+        'comp_type'. The component itself still determines its actual
+        'used_for' when it gets registered.
+
+        """
+
+        if comp_type not in self.deferred:
+            self.deferred[comp_type] = []
+        self.deferred[comp_type].append((used_for, module_name, class_name))
+
+    def _load_deferred(self, comp_type, used_for=None, class_name=None):
+        to_load = []
+        for entry in self.deferred[comp_type]:
+            if class_name is not None:
+                if entry[2] == class_name:
+                    to_load.append(entry)
+            elif entry[0] is None or not isinstance(used_for, str) \
+                or entry[0] == used_for:
+                to_load.append(entry)
+        for entry in to_load:
+            self.deferred[comp_type].remove(entry)
+        if not self.deferred[comp_type]:
+            del self.deferred[comp_type]
+        for _used_for, module_name, _class_name in to_load:
+            component = getattr(\
+                importlib.import_module(module_name), _class_name)
+            if component.instantiate == Component.IMMEDIATELY:
+                component = component(component_manager=self)
+            self.register(component)
+
     def unregister(self, component):
         comp_type = component.component_type
         used_for = component.used_for
@@ -60,6 +103,8 @@ class ComponentManager(object):
 
         """
 
+        for comp_type in list(self.deferred.keys()):
+            self._load_deferred(comp_type, class_name=component_name)
         for used_for in self.components:
             for component_type in self.components[used_for]:
                 for component in self.components[used_for][component_type]:
@@ -70,6 +115,8 @@ class ComponentManager(object):
 
         """For components for which there can be many active at once."""
 
+        if comp_type in self.deferred:
+            self._load_deferred(comp_type, used_for)
         # If 'used_for' is not a class, we can just retrieve it.
         if used_for == None or isinstance(used_for, str):
             try:
@@ -97,6 +97,9 @@ class Configuration(Component, dict):
         self.keys_to_sync = []
         self.server_only = False
         self.lock = threading.Lock()
+        # Incremented whenever a card type property changes, such that e.g.
+        # renderers know when to regenerate their cached css.
+        self.card_type_properties_version = 0
         self.determine_dirs()
 
     def activate(self):
@@ -182,6 +185,7 @@ class Configuration(Component, dict):
              "export_dir": os.path.expanduser("~"),
              "export_format": None,
              "last_db_maintenance": time.time() - 1 * DAY,
+             "db_maintenance_state": None,
              "QA_split": "fixed", # "fixed", "adaptive", "single_window",
              "study_mode": "ScheduledForgottenNew"
             }.items()):
@@ -211,8 +215,13 @@ class Configuration(Component, dict):
             f.run()
         self.save()
 
+    card_type_property_names = ["background_colour", "font", "font_colour",
+        "alignment", "hide_pronunciation_field"]
+
     def __setitem__(self, key, value):
         with self.lock:
+            if key in self.card_type_property_names:
+                self.card_type_properties_version += 1
             if key in self.keys_to_sync:
                 # Don't log when reading the settings from file during startup.
                 if self.log().active:
@@ -355,9 +364,9 @@ class Configuration(Component, dict):
 
         """
 
-        if property_name not in ["background_colour", "font", "font_colour",
-            "alignment", "hide_pronunciation_field"]:
+        if property_name not in self.card_type_property_names:
             raise KeyError
+        self.card_type_properties_version += 1
         # With the nested directories, we don't fall back on self.__setitem__,
         # so we have to log a event here ourselves.
         if property_name in self.keys_to_sync:
@@ -406,8 +415,8 @@ class Configuration(Component, dict):
                     property_name, old_value, new_card_type)
 
     def delete_card_type_properties(self, card_type):
-        for property_name in ["background_colour", "font", "font_colour",
-            "alignment", "hide_pronunciation_field"]:
+        self.card_type_properties_version += 1
+        for property_name in self.card_type_property_names:
             if card_type.id in self[property_name]:
                 del self[property_name][card_type.id]
 
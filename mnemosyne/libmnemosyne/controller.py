@@ -28,6 +28,15 @@ class Controller(Component):
 
         pass
 
+    def seconds_until_next_heartbeat(self):
+
+        """Front ends which don't want to poll 'heartbeat' can use this to
+        find out when it next has work to do.
+
+        """
+
+        return 60
+
     def update_title(self):
         raise NotImplementedError
 
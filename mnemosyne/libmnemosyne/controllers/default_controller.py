@@ -32,6 +32,9 @@ class DefaultController(Controller):
 
     """
 
+    # Seconds between heartbeats while a backup runs in the background.
+    BACKUP_POLL_INTERVAL = 5
+
     def activate(self):
         self.study_mode = None
         Controller.activate(self)
@@ -46,6 +49,8 @@ class DefaultController(Controller):
 
         """
 
+        if self.database() and self.database().is_loaded():
+            self.database().finish_background_backup()
         if time.time() > self.next_rollover:
             if self.config().server_only:
                 self.database().backup()
@@ -57,7 +62,8 @@ class DefaultController(Controller):
                     # Make sure we don't continue if e.g. the GUI or another
                     # thread holds the database.
                     return
-                self.database().backup()
+                # Don't block reviewing while a large database gets copied.
+                self.database().backup(in_background=True)
                 self.log().saved_database()
                 self.log().loaded_database()
                 self.log().future_schedule()
@@ -73,6 +79,19 @@ class DefaultController(Controller):
             self.config()["last_db_maintenance"] = time.time()
             self.config().save()
 
+    def seconds_until_next_heartbeat(self):
+        # Don't wait for the next rollover to finish a backup which is running
+        # in the background.
+        if self.database() and self.database().is_loaded() and \
+            self.database().background_backup_pending():
+            return self.BACKUP_POLL_INTERVAL
+        seconds = self.next_rollover - time.time()
+        # If the previous heartbeat could not do its work (e.g. because the
+        # database was busy), retry in a minute.
+        if seconds <= 0:
+            return 60
+        return int(seconds) + 1
+
     def do_db_maintenance(self):
         if time.time() < self.config()["last_db_maintenance"] + 30 * DAY:
             self.main_widget().show_information(\
@@ -83,6 +102,21 @@ class DefaultController(Controller):
             self.config()["last_db_maintenance"] = time.time()
             self.config().save()
 
+    def db_maintenance_step(self):
+
+        """Does a small part of the database maintenance if it is overdue or
+        already in progress, and returns whether there is more work to do.
+        Meant for front-ends which do maintenance opportunistically, e.g.
+        while the app is in the background.
+
+        """
+
+        maintenance = self.component_manager.current("database_maintenance")
+        if not maintenance.is_in_progress() and \
+           time.time() < self.config()["last_db_maintenance"] + 90 * DAY:
+            return False
+        return maintenance.step()
+
     def update_title(self):
         title = _("Mnemosyne")
         db = self.database()
@@ -616,7 +650,8 @@ _("It is recommended to put all your cards in a single database. Using tags to d
         data_dir = self.config().data_dir
         old_path = expand_path(self.config()["last_database"], data_dir)
         filename = self.main_widget().get_filename_to_open(path=old_path,
-            filter=_("Mnemosyne databases") + " (*%s)" % db.suffix)
+            filter=_("Mnemosyne databases") + " (*%s *%s.bz2)" % \
+            (db.suffix, db.suffix))
         if not filename:
             self.stopwatch().unpause()
             return
@@ -1005,6 +1040,11 @@ _("This will tag all the cards in a given card type which have the same question
             self.database().store_pregenerated_data
         client.do_backup = self.config()["backup_before_sync"]
         client.upload_science_logs = self.config()["upload_science_logs"]
+        # Frontends can provide a native transport.
+        transport = self.component_manager.current("sync_transport")
+        if transport:
+            client.transport = transport(\
+                component_manager=self.component_manager)
         try:
             client.sync(server, port, username, password)
         finally:
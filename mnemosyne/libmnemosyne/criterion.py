@@ -118,5 +118,10 @@ class CriterionApplier(Component):
 
     component_type = "criterion_applier"
 
+    # Appliers which record each card they (de)activate in the card change
+    # journal of the database set this to True. Otherwise, the database needs
+    # to forget about all card changes after a criterion has been applied.
+    journals_card_changes = False
+
     def apply_to_database(self, criterion):
         raise NotImplementedError
@@ -2,6 +2,9 @@
 # database.py <Peter.Bienstman@UGent.be>
 #
 
+import os
+import time
+
 from mnemosyne.libmnemosyne.translator import _
 from mnemosyne.libmnemosyne.component import Component
 
@@ -74,7 +77,13 @@ class Database(Component):
     def save(self, path=None):
         raise NotImplementedError
 
-    def backup(self):
+    def backup(self, in_background=False):
+        raise NotImplementedError
+
+    def background_backup_pending(self):
+        raise NotImplementedError
+
+    def finish_background_backup(self, wait=False):
         raise NotImplementedError
 
     def restore(self, path):
@@ -163,6 +172,15 @@ class Database(Component):
     def delete_card(self, card):
         raise NotImplementedError
 
+    def card_change_count(self):
+        raise NotImplementedError
+
+    def cards_changed_since(self, count):
+        raise NotImplementedError
+
+    def forget_card_changes(self):
+        raise NotImplementedError
+
     def tags_from_cards_with_internal_ids(self, _card_ids):
         raise NotImplementedError
 
@@ -287,6 +305,15 @@ class Database(Component):
     def cards_learn_ahead(self, now, sort_key="", limit=-1):
         raise NotImplementedError
     
+    def cards_for_review_queue(self, now):
+        raise NotImplementedError
+
+    def review_queue_data(self, _card_ids):
+        raise NotImplementedError
+
+    def next_rep_after(self, now):
+        raise NotImplementedError
+
     def recently_memorised_count(self, max_ret_reps):
         raise NotImplementedError
 
@@ -348,14 +375,73 @@ class DatabaseMaintenance(Component):
     This version is unthreaded, and is OK for running on a headless server
     (which has no UI to interrupt) and for Android (since the entire backend
     runs in thread there anyhow).
+
+    The work is split in small steps (see 'step'), so that it can also be
+    done opportunistically, e.g. whenever the device is idle, and be resumed
+    after an interruption or a restart.
     
     """
     
     component_type = "database_maintenance"
+
+    ARCHIVING, FIXING_TAGS, CONVERTING, VACUUMING = \
+        "archiving", "fixing_tags", "converting", "vacuuming"
+    # 1 MB for the default page size.
+    VACUUM_CHUNK_PAGES = 256
     
     def run(self):
         self.main_widget().set_progress_text(_("Compacting database..."))
-        self.database().archive_old_logs()
-        self.database().defragment()
+        while self.step():
+            pass
         self.main_widget().close_progress()
-  
+
+    def state(self):
+        state = self.config()["db_maintenance_state"]
+        if state is None or state["database"] != self.database().path():
+            return None
+        return state
+
+    def is_in_progress(self):
+        return self.state() is not None
+
+    def step(self):
+
+        """Does a small, bounded amount of maintenance work and returns
+        whether there is more work to do. The current phase is stored in the
+        config after each step.
+
+        """
+
+        db = self.database()
+        state = self.state()
+        if state is None:
+            db.backup()
+            state = {"database": db.path(), "phase": self.ARCHIVING,
+                "cutoff": db.archive_cutoff(), "archive": None}
+        if state["phase"] == self.ARCHIVING:
+            if state["archive"] is None or \
+                not os.path.exists(state["archive"]):
+                state["archive"] = db.create_archive()
+            if not db.archive_old_logs_chunk(state["archive"],
+                state["cutoff"]):
+                state["phase"] = self.FIXING_TAGS
+        elif state["phase"] == self.FIXING_TAGS:
+            db.fix_tag_anomalies()
+            db.save()
+            if db.uses_incremental_vacuum():
+                state["phase"] = self.VACUUMING
+            else:
+                state["phase"] = self.CONVERTING
+        elif state["phase"] == self.CONVERTING:
+            # One time only, for databases created before incremental
+            # vacuuming was introduced.
+            db.enable_incremental_vacuum()
+            state["phase"] = self.VACUUMING
+        elif state["phase"] == self.VACUUMING:
+            if not db.incremental_vacuum(self.VACUUM_CHUNK_PAGES):
+                state = None
+        if state is None:
+            self.config()["last_db_maintenance"] = time.time()
+        self.config()["db_maintenance_state"] = state
+        self.config().save()
+        return state is not None
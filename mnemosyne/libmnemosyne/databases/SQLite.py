@@ -7,6 +7,7 @@ import sys
 import time
 import string
 import datetime
+import threading
 import copy as objcopy
 
 from openSM2sync.log_entry import EventTypes
@@ -18,7 +19,7 @@ from mnemosyne.libmnemosyne.translator import _
 from mnemosyne.libmnemosyne.database import Database
 from mnemosyne.libmnemosyne.card_type import CardType
 from mnemosyne.libmnemosyne.fact_view import FactView
-from mnemosyne.libmnemosyne.utils import traceback_string, copy
+from mnemosyne.libmnemosyne.utils import traceback_string, copy, copyfileobj
 from mnemosyne.libmnemosyne.utils import expand_path, contract_path
 from mnemosyne.libmnemosyne.utils import numeric_string_cmp_key, mangle
 
@@ -31,6 +32,12 @@ from mnemosyne.libmnemosyne.utils import numeric_string_cmp_key, mangle
 # All times are Posix timestamps.
 
 SCHEMA = string.Template("""
+    /* Lets database maintenance release free pages in small steps, instead
+       of having to rewrite the entire file with 'vacuum'. Needs to come
+       before creating any tables. */
+
+    pragma auto_vacuum = incremental;
+
     create table facts(
         _id integer primary key,
         id text,
@@ -159,6 +166,18 @@ $pregenerated_data
         _hash text
     );
 
+    /* Content hashes of the files in the media directory, such that we only
+       need to rehash a file if its size or modification time changed, and
+       can find local copies of a file by its contents during sync. */
+
+    create table media_manifest(
+        filename text primary key,
+        mtime real,
+        size integer,
+        _hash text
+    );
+    create index i_media_manifest on media_manifest (_hash);
+
     /* Here, we store the card types that are created at run time by the user
        through the GUI, as opposed to those that are instantiated through a
        plugin. For columns containing lists, dicts, ...  like
@@ -205,6 +224,46 @@ from mnemosyne.libmnemosyne.databases.SQLite_logging import SQLiteLogging
 from mnemosyne.libmnemosyne.databases.SQLite_statistics import SQLiteStatistics
 
 
+class BackupThread(threading.Thread):
+
+    """Takes a backup through a separate connection and compresses it, such
+    that the program can keep running in the meantime. Note that the backup
+    restarts if the database gets committed to in between.
+
+    The thread does not touch the database object itself, cleaning up old
+    backups happens in 'finish_background_backup' on the main thread.
+
+    """
+
+    def __init__(self, database, backupfile):
+        threading.Thread.__init__(self)
+        self.component_manager = database.component_manager
+        self.path = database.path()
+        self.pages = database.BACKUP_PAGES
+        self.backupfile = backupfile
+        self.error = None
+
+    def run(self):
+        partfile = self.backupfile + ".part"
+        try:
+            from mnemosyne.libmnemosyne.databases._sqlite3 import _Sqlite3
+            connection = _Sqlite3(self.component_manager, self.path)
+            try:
+                connection.backup(partfile, self.pages)
+            finally:
+                connection.close()
+            if self.backupfile.endswith(".bz2"):
+                import bz2
+                with open(partfile, "rb") as source, \
+                    bz2.open(self.backupfile, "wb") as destination:
+                    copyfileobj(source, destination)
+                os.remove(partfile)
+            else:
+                os.replace(partfile, self.backupfile)
+        except Exception:
+            self.error = traceback_string()
+
+
 class SQLite(Database, SQLiteSync, SQLiteMedia, SQLiteLogging,
              SQLiteStatistics):
 
@@ -240,6 +299,21 @@ class SQLite(Database, SQLiteSync, SQLiteMedia, SQLiteLogging,
         # effects to be disabled/enabled.
         self.importing = False
         self.importing_with_learning_data = False
+        # Journal of the cards which were added, updated or deleted, see
+        # 'cards_changed_since'.
+        self._card_change_count = 0
+        self._changed_card_ids = []
+        self._card_counts = None # See SQLite_statistics.py.
+        # See 'has_unjournaled_changes'.
+        self._journaled_changes = None
+        self._journaled_card_id = None
+        # Repetition journal, see 'log_repetition'. Importers turn it off
+        # for the historic repetitions they add.
+        self._journal = None
+        self.journal_repetitions = True
+        # See 'backup'.
+        self._backup_thread = None
+        self._backup_files = {}
 
     #
     # File operations.
@@ -268,6 +342,8 @@ class SQLite(Database, SQLiteSync, SQLiteMedia, SQLiteLogging,
             self._connection.commit()
             self._connection.close()
             self._connection = None
+            self._journaled_changes = None
+        self.close_repetition_journal()
 
     def path(self):
         return self._path
@@ -287,23 +363,42 @@ class SQLite(Database, SQLiteSync, SQLiteMedia, SQLiteLogging,
 
     def defragment(self):
         self.main_widget().set_progress_text(_("Defragmenting database..."))
-        self.con.execute("vacuum")
+        self.enable_incremental_vacuum()
+        self.fix_tag_anomalies()
+        self.main_widget().close_progress()
+
+    def fix_tag_anomalies(self):
         # Make sure the "Untagged" tag does not show up together with
         # different tags (not sure if bug causing this has been fixed).
         untagged = self.tag("__UNTAGGED__", is_id_internal=False)
-        for cursor in self.con.execute("select _id from cards"):
-            _card_id = cursor[0]
-            _tag_ids = [cursor2[0] for cursor2 in self.con.execute(\
-                "select _tag_id from tags_for_card where _card_id=?",
-                (_card_id, ))]
-            if len(_tag_ids) > 1 and untagged._id in _tag_ids:
-                self.con.execute(\
-                    "delete from tags_for_card where _card_id=? and _tag_id=?",
-                    (_card_id, untagged._id))
+        self.con.execute("""delete from tags_for_card where _tag_id=? and
+            _card_id in (select _card_id from tags_for_card
+            group by _card_id having count() > 1)""", (untagged._id, ))
         # Make sure no orphaned card tags exist (not sure if bug causing
         # this has been fixed).
         self.con.execute("delete from tags_for_card where _card_id is null")
-        self.main_widget().close_progress()
+        self.forget_card_changes()
+
+    def enable_incremental_vacuum(self):
+        # Databases created before incremental vacuuming was introduced get
+        # converted by this full vacuum.
+        self.con.execute("pragma auto_vacuum = incremental")
+        self.con.execute("vacuum")
+
+    def uses_incremental_vacuum(self):
+        return self.con.execute("pragma auto_vacuum").fetchone()[0] == 2
+
+    def incremental_vacuum(self, pages=0):
+
+        """Releases at most 'pages' free pages (all of them if 0) to the file
+        system and returns the number of free pages left. Only has an effect
+        if 'uses_incremental_vacuum' is true.
+
+        """
+
+        self.con.execute("pragma incremental_vacuum(%d)" % pages).fetchall()
+        self.con.commit()
+        return self.con.execute("pragma freelist_count").fetchone()[0]
 
     def new(self, path):
         self.unload()
@@ -342,6 +437,7 @@ class SQLite(Database, SQLiteSync, SQLiteMedia, SQLiteLogging,
     def load(self, path):
         if self.is_loaded():
             self.unload()
+        self.forget_card_changes()
         self._path = expand_path(path, self.config().data_dir)
         if not os.path.exists(self._path):
             return self.new(path)
@@ -369,6 +465,10 @@ class SQLite(Database, SQLiteSync, SQLiteMedia, SQLiteLogging,
         # Upgrade.
         self.con.execute("""create index if not exists
             i_cards_3 on cards (_fact_id);""")
+        self.con.executescript("""create table if not exists media_manifest(
+            filename text primary key, mtime real, size integer, _hash text);
+            create index if not exists i_media_manifest on
+            media_manifest (_hash);""")
         # Activate all the plugins needed for all the card types.
         # Sometimes corruption keeps the global_variables table intact,
         # but not the cards table...
@@ -388,6 +488,8 @@ class SQLite(Database, SQLiteSync, SQLiteMedia, SQLiteLogging,
         for id in defined_in_database_ids:
             card_type = self.card_type(id, is_id_internal=False)
             self.component_manager.register(card_type)
+        # Recover the repetitions which were not committed last time.
+        self.replay_repetition_journal()
         # Finalise.
         self._current_criterion = self.criterion(1, is_id_internal=True)
         self.config()["last_database"] \
@@ -403,6 +505,8 @@ class SQLite(Database, SQLiteSync, SQLiteMedia, SQLiteLogging,
             (self.version, "version"))
         # Save database and copy it to different location if needed.
         self.con.commit()
+        self.remove_repetition_journal()
+        self._journaled_changes = self.con.total_changes()
         if not path:
             return
         dest_path = expand_path(path, self.config().data_dir)
@@ -420,7 +524,21 @@ _("Putting a database on a network drive is forbidden under Windows to avoid dat
         # We don't log every save, as that could result in an event after
         # card repetitions.
 
-    def backup(self):
+    # Number of pages copied in each step of the online backup.
+    BACKUP_PAGES = 256
+
+    def backup(self, in_background=False):
+
+        """Copies the database in small steps through SQLite's online backup
+        API, and returns the name of the backup file.
+
+        If 'in_background' is True, the copy is taken and compressed in a
+        separate thread instead, and None is returned. The 'after_backup'
+        hooks then only run in 'finish_background_backup'.
+
+        """
+
+        self.finish_background_backup(wait=True)
         self.save()
         if self.config()["max_backups"] == 0:
             return
@@ -433,33 +551,95 @@ _("Putting a database on a network drive is forbidden under Windows to avoid dat
             from mnemosyne.libmnemosyne.utils import rand_uuid
             backupfile = db_name + "-" + rand_uuid() + ".db"
         backupfile = os.path.join(backupdir, backupfile)
-        failed = False
+        if in_background:
+            try:
+                import bz2  # Not all platforms have bz2.
+                backupfile += ".bz2"
+            except ImportError:
+                pass
+            self._backup_thread = BackupThread(self, backupfile)
+            self._backup_thread.start()
+            return None
+        error = None
         try:
-            copy(self._path, backupfile)
-        except:
-            failed = True
-        if failed or not os.path.exists(backupfile) or \
+            self.con.backup(backupfile, self.BACKUP_PAGES)
+            self.remove_old_backups(backupfile)
+        except Exception:
+            error = traceback_string()
+        return self._finish_backup(backupfile, error)
+
+    def background_backup_pending(self):
+
+        """Returns True if a backup was started in the background, which
+        still needs to be finished by 'finish_background_backup'.
+
+        """
+
+        return self._backup_thread is not None
+
+    def finish_background_backup(self, wait=False):
+        thread = self._backup_thread
+        if thread is None or (thread.is_alive() and not wait):
+            return
+        thread.join()
+        self._backup_thread = None
+        error = thread.error
+        if not error:
+            try:
+                self.remove_old_backups(thread.backupfile)
+            except Exception:
+                error = traceback_string()
+        self._finish_backup(thread.backupfile, error)
+
+    def _finish_backup(self, backupfile, error=None):
+        if error:
+            sys.stderr.write(error)
+        if error or not os.path.exists(backupfile) or \
           not os.stat(backupfile).st_size:
             self.main_widget().show_information(\
-                _("Warning: backup creation failed for") + " " +  backupfile)
+                _("Warning: backup creation failed for") + " " +  backupfile \
+                + ("\n" + error if error else ""))
             return None
         for f in self.component_manager.all("hook", "after_backup"):
             f.run(backupfile)
-        # Only keep the last logs.
-        files = [f for f in os.listdir(backupdir) \
-                if f.startswith(db_name + "-")]
-        files.sort()
-        if len(files) > self.config()["max_backups"]:
-            surplus = len(files) - self.config()["max_backups"]
-            for file in files[0:surplus]:
-                os.remove(os.path.join(backupdir, file))
         return backupfile
 
+    def remove_old_backups(self, backupfile):
+        # We only look at the directory for the first backup of a database,
+        # afterwards we keep track of the backups ourselves.
+        backupdir, filename = os.path.split(backupfile)
+        db_name = os.path.basename(self._path).rsplit(".", 1)[0]
+        if db_name not in self._backup_files:
+            files = []
+            for f in os.listdir(backupdir):
+                if not f.startswith(db_name + "-") or f == filename:
+                    continue
+                if f.endswith(".part"):  # Interrupted background backup.
+                    os.remove(os.path.join(backupdir, f))
+                    continue
+                files.append(f)
+            self._backup_files[db_name] = sorted(files)
+        # Only keep the last backups.
+        files = self._backup_files[db_name]
+        files.append(filename)
+        max_backups = self.config()["max_backups"]
+        if 0 <= max_backups < len(files):
+            for f in files[:len(files) - max_backups]:
+                if os.path.exists(os.path.join(backupdir, f)):
+                    os.remove(os.path.join(backupdir, f))
+            del files[:len(files) - max_backups]
+
     def restore(self, path):
         self.abandon()
         db_path = expand_path(\
             self.config()["last_database"], self.config().data_dir)
-        copy(path, db_path)
+        if path.endswith(".bz2"):
+            import bz2
+            with bz2.open(path, "rb") as source, \
+                open(db_path, "wb") as destination:
+                copyfileobj(source, destination)
+        else:
+            copy(path, db_path)
         self.load(db_path)
         # We need to indicate that a full sync needs to happen on the next
         # sync. Unfortunately, we can't do anything about the logs that have
@@ -470,6 +650,7 @@ _("Putting a database on a network drive is forbidden under Windows to avoid dat
     def unload(self):
         if not self._connection:
             return
+        self.forget_card_changes()
         # Unregister card types in this database.
         for cursor in self.con.execute("select id from card_types"):
             id = cursor[0]
@@ -487,13 +668,19 @@ _("Putting a database on a network drive is forbidden under Windows to avoid dat
             pass
         finally:
             self._connection = None
+            self._journaled_changes = None
             self._path = None
         return True
 
     def abandon(self):
+        self.finish_background_backup(wait=True)
+        # The repetitions which were not committed get abandoned as well.
+        if self._path:
+            self.remove_repetition_journal()
         if self._connection:
             self._connection.close()
         self._connection = None
+        self._journaled_changes = None
         self._path = None
 
     def is_loaded(self):
@@ -663,6 +850,7 @@ _("Putting a database on a network drive is forbidden under Windows to avoid dat
                 else:
                     self.con.execute("""update tags_for_card set _tag_id=?
                         where _tag_id=?""", (_existing_tag_id, tag._id))
+                self._card_changed(_card_id)
                 # If the operations above caused the deletion of the original
                 # tag, we have not enough information in log to update the
                 # cards. Therefore, generate extra EDITED_CARD events, but
@@ -737,6 +925,7 @@ _("Putting a database on a network drive is forbidden under Windows to avoid dat
         applier = self.component_manager.current("criterion_applier",
             used_for=criterion.__class__)
         applier.apply_to_database(criterion)
+        self.forget_card_changes()
         del tag
 
     def delete_tag_if_unused(self, tag):
@@ -861,6 +1050,9 @@ _("Putting a database on a network drive is forbidden under Windows to avoid dat
         for tag in card.tags:
             self.con.execute("""insert into tags_for_card(_tag_id,
                 _card_id) values(?,?)""", (tag._id, card._id))
+        self._card_changed(card._id)
+        self._update_card_counts(None,
+            (card.active, card.grade, card.next_rep))
         self.log().added_card(card)
 
     def card(self, id, is_id_internal):
@@ -913,6 +1105,12 @@ _("Putting a database on a network drive is forbidden under Windows to avoid dat
            card.tags.add(self.get_or_create_tag_with_name("__UNTAGGED__"))
         if not repetition_only:
             self.current_criterion().apply_to_card(card)
+        old_counts_state = self._counts_state(card._id)
+        # Storing the result of a repetition which was just journaled does
+        # not need to be journaled again.
+        journaled = repetition_only and card.id == self._journaled_card_id \
+            and not self.has_unjournaled_changes()
+        self._journaled_card_id = None
         self.con.execute("""update cards set grade=?, next_rep=?, last_rep=?,
             easiness=?, acq_reps=?, ret_reps=?, lapses=?,
             acq_reps_since_lapse=?, ret_reps_since_lapse=?,
@@ -921,6 +1119,11 @@ _("Putting a database on a network drive is forbidden under Windows to avoid dat
             card.acq_reps, card.ret_reps, card.lapses,
             card.acq_reps_since_lapse, card.ret_reps_since_lapse,
             card.scheduler_data, card.active, card._id))
+        if journaled:
+            self._journaled_changes = self.con.total_changes()
+        self._card_changed(card._id)
+        self._update_card_counts(old_counts_state,
+            (card.active, card.grade, card.next_rep))
         if repetition_only:
             return
         self.con.execute("""update cards set card_type_id=?, _fact_id=?,
@@ -951,16 +1154,63 @@ _("Putting a database on a network drive is forbidden under Windows to avoid dat
             # A card which was created and deleted before a sync, so that
             # it has incomplete information.
             self.con.execute("delete from cards where id=?", (card.id, ))
+            self.forget_card_changes()
         else:
+            old_counts_state = self._counts_state(card._id)
             self.con.execute("delete from cards where _id=?", (card._id, ))
             self.con.execute("delete from tags_for_card where _card_id=?",
                              (card._id, ))
+            self._card_changed(card._id)
+            self._update_card_counts(old_counts_state, None)
         if not self.syncing and check_for_unused_tags:
             for tag in card.tags:
                 self.delete_tag_if_unused(tag)
         self.log().deleted_card(card)
         del card
 
+    #
+    # Card change journal.
+    #
+
+    # Comfortably covers the cards reviewed between two queue rebuilds.
+    MAX_CHANGED_CARDS = 1000
+
+    def _card_changed(self, _card_id):
+        self._card_change_count += 1
+        self._changed_card_ids.append(_card_id)
+        if len(self._changed_card_ids) > 2 * self.MAX_CHANGED_CARDS:
+            del self._changed_card_ids[:self.MAX_CHANGED_CARDS]
+
+    def forget_card_changes(self):
+
+        """Needs to be called after changing cards without going through
+        'add_card', 'update_card' or 'delete_card', e.g. in bulk. This also
+        makes sure the card counters get recounted.
+
+        """
+
+        # Make sure 'cards_changed_since' no longer knows about any count
+        # handed out before.
+        self._card_change_count += 1
+        self._changed_card_ids = []
+        self._card_counts = None
+
+    def card_change_count(self):
+        return self._card_change_count
+
+    def cards_changed_since(self, count):
+
+        """Returns the _ids of the cards which were added, updated or deleted
+        since 'card_change_count' returned 'count', or None if these are no
+        longer known, in which case the caller needs to start over.
+
+        """
+
+        missing = self._card_change_count - count
+        if missing > len(self._changed_card_ids):
+            return None
+        return self._changed_card_ids[len(self._changed_card_ids) - missing:]
+
     def tags_from_cards_with_internal_ids(self, _card_ids):
         # Since _card_ids can have many elements, we need to construct the
         # query without ? placeholders in order to prevent hitting sqlite
@@ -996,6 +1246,7 @@ _("Putting a database on a network drive is forbidden under Windows to avoid dat
         # We don't call 'self.log.edited_card(card)', which would require us to
         # construct the entire card object, but take a short cut.
         for _card_id in _card_ids:
+            self._card_changed(_card_id)
             card_id = self.con.execute("select id from cards where _id=?",
                 (_card_id, )).fetchone()[0]
             self.con.execute("""insert into log(event_type, timestamp,
@@ -1023,6 +1274,7 @@ _("Putting a database on a network drive is forbidden under Windows to avoid dat
         # We don't call 'self.log.edited_card(card)', which would require us
         # to construct the entire card object, but take a short cut.
         for _card_id in _card_ids:
+            self._card_changed(_card_id)
             card_id = self.con.execute("select id from cards where _id=?",
                 (_card_id, )).fetchone()[0]
             self.con.execute("""insert into log(event_type, timestamp,
@@ -1302,6 +1554,11 @@ _("Putting a database on a network drive is forbidden under Windows to avoid dat
         applier = self.component_manager.current("criterion_applier",
             used_for=criterion.__class__)
         applier.apply_to_database(criterion)
+        if applier.journals_card_changes:
+            # The counters still need to be recounted.
+            self._card_counts = None
+        else:
+            self.forget_card_changes()
 
     def current_criterion(self):
         return self._current_criterion
@@ -1548,6 +1805,41 @@ _("Putting a database on a network drive is forbidden under Windows to avoid dat
             active=1 and grade>=2 and ?<next_rep order by %s limit ?"""
             % sort_key, (timestamp, limit)))
 
+    def cards_for_review_queue(self, timestamp):
+        return ((cursor[0], cursor[1], cursor[2], cursor[3], cursor[4],
+            cursor[5]) for cursor in self.con.execute("""
+            select _id, _fact_id, grade, lapses, next_rep, last_rep from cards
+            where active=1 and (grade in (0, 1) or
+            (grade>=2 and ?>=next_rep))""", (timestamp, )))
+
+    def review_queue_data(self, _card_ids):
+
+        """Same as 'cards_for_review_queue', but for the given cards, and
+        regardless of whether they are active or due. Deleted cards are
+        omitted.
+
+        """
+
+        _card_ids = list(_card_ids)
+        result = []
+        for i in range(0, len(_card_ids), 500):
+            chunk = _card_ids[i:i + 500]
+            result.extend(self.con.execute("""select _id, _fact_id, grade,
+                lapses, next_rep, last_rep, active from cards where _id in
+                (%s)""" % ",".join("?" * len(chunk)), chunk))
+        return result
+
+    def next_rep_after(self, timestamp):
+
+        """Returns the earliest 'next_rep' after 'timestamp' of the active
+        cards in the retention phase, or None.
+
+        """
+
+        return self.con.execute("""select min(next_rep) from cards where
+            active=1 and grade>=2 and next_rep>?""",
+            (timestamp, )).fetchone()[0]
+
     def recently_memorised_count(self, max_ret_reps):
         return self.con.execute("""select count() from cards where active=1
             and ret_reps between 1 and ?""",
@@ -2,54 +2,180 @@
 # SQLite_criterion_applier.py - <Peter.Bienstman@UGent.be>
 #
 
+from collections import OrderedDict
+
 from mnemosyne.libmnemosyne.criterion import CriterionApplier
 from mnemosyne.libmnemosyne.criteria.default_criterion import DefaultCriterion
 
 
+class CardBitmap(object):
+
+    """Compact set of card _ids, using a single bit per card."""
+
+    def __init__(self, _card_ids=()):
+        self.bits = bytearray()
+        for _card_id in _card_ids:
+            self.add(_card_id)
+
+    def copy(self):
+        bitmap = CardBitmap()
+        bitmap.bits = bytearray(self.bits)
+        return bitmap
+
+    def add(self, _card_id):
+        index = _card_id >> 3
+        if index >= len(self.bits):
+            self.bits.extend(bytes(index + 1 - len(self.bits)))
+        self.bits[index] |= 1 << (_card_id & 7)
+
+    def discard(self, _card_id):
+        index = _card_id >> 3
+        if index < len(self.bits):
+            self.bits[index] &= ~(1 << (_card_id & 7)) & 0xff
+
+    def __contains__(self, _card_id):
+        index = _card_id >> 3
+        return index < len(self.bits) and \
+            bool(self.bits[index] & (1 << (_card_id & 7)))
+
+    def difference(self, other):
+
+        """Returns the _ids which are in this bitmap, but not in 'other'."""
+
+        _card_ids = []
+        other_bits = other.bits
+        for index, byte in enumerate(self.bits):
+            if not byte:
+                continue
+            if index < len(other_bits):
+                byte &= ~other_bits[index]
+            bit = 0
+            while byte:
+                if byte & 1:
+                    _card_ids.append(8 * index + bit)
+                byte >>= 1
+                bit += 1
+        return _card_ids
+
+
 class DefaultCriterionApplier(CriterionApplier):
 
     used_for = DefaultCriterion
+    journals_card_changes = True
 
-    def apply_to_database(self, criterion):
-        if len(criterion._tag_ids_forbidden) != 0:
-            assert len(criterion._tag_ids_active) != 0
-        db = self.database()
+    # Switching between saved sets should not rewrite the entire cards table.
+    # Therefore, we keep bitmaps of the cards selected by the criteria which
+    # were applied most recently, as well as of the cards which are currently
+    # active, and only update the cards for which these differ.
+    #
+    # Each bitmap remembers the card change count of the database it is up to
+    # date with. Later on, only the cards which changed in the meantime need
+    # to be looked up again. If these are no longer known, the bitmap of the
+    # criterion being applied is rebuilt, and the other ones are dropped.
+    # (De)activating cards does not change which cards a criterion selects,
+    # so that does not make the bitmaps go out of date.
+
+    MAX_CACHED_CRITERIA = 10
+
+    def __init__(self, component_manager):
+        CriterionApplier.__init__(self, component_manager)
+        # key: [bitmap, card_change_count, where_clause, arguments], with
+        # the least recently applied criterion first.
+        self._bitmaps = OrderedDict()
+        # Same, for the cards which are currently active.
+        self._active = None
+
+    def _where_clause(self, criterion, tag_count):
+        clauses, args = [], []
         # If every tag is active, take a shortcut.
-        tag_count = db.con.execute("select count() from tags").fetchone()[0]
-        if len(criterion._tag_ids_active) == tag_count:
-            db.con.execute("update cards set active=1")
-        else:
-            # Turn off everything.
-            db.con.execute("update cards set active=0")
-            # Turn on active tags.
-            command = """update cards set active=1 where _id in
-                (select _card_id from tags_for_card where _tag_id in ("""
-            args = []
-            for _tag_id in criterion._tag_ids_active:
-                command += "?,"
-                args.append(_tag_id)
-            command = command.rsplit(",", 1)[0] + "))"
-            if criterion._tag_ids_active:
-                db.con.execute(command, args)
-        # Turn off inactive card types and views.
-        command = "update cards set active=0 where "
-        args = []
+        if len(criterion._tag_ids_active) != tag_count:
+            if not criterion._tag_ids_active:
+                return "0", args
+            clauses.append("""_id in (select _card_id from tags_for_card
+                where _tag_id in (%s))""" % ",".join(\
+                str(_tag_id) for _tag_id in criterion._tag_ids_active))
+        # Inactive card types and views.
         for card_type_id, fact_view_id in \
                 criterion.deactivated_card_type_fact_view_ids:
-            command += "(cards.fact_view_id=? and cards.card_type_id=?)"
-            command += " or "
+            clauses.append("not (fact_view_id=? and card_type_id=?)")
             args.append(fact_view_id)
             args.append(card_type_id)
-        command = command.rsplit("or ", 1)[0]
-        if criterion.deactivated_card_type_fact_view_ids:
-            db.con.execute(command, args)
-        # Turn off forbidden tags.
-        command = """update cards set active=0 where _id in (select _card_id
-            from tags_for_card where _tag_id in ("""
-        args = []
-        for _tag_id in criterion._tag_ids_forbidden:
-            command += "?,"
-            args.append(_tag_id)
-        command = command.rsplit(",", 1)[0] + "))"
+        # Forbidden tags.
         if criterion._tag_ids_forbidden:
-            db.con.execute(command, args)
+            clauses.append("""_id not in (select _card_id from tags_for_card
+                where _tag_id in (%s))""" % ",".join(\
+                str(_tag_id) for _tag_id in criterion._tag_ids_forbidden))
+        return " and ".join(clauses) or "1", args
+
+    def _update_bitmap(self, entry, rebuild_if_needed=True):
+
+        """Returns False if the bitmap could not be brought up to date
+        without rebuilding it and 'rebuild_if_needed' is False.
+
+        """
+
+        db = self.database()
+        bitmap, count, where_clause, args = entry
+        query = "select _id from cards where " + where_clause
+        changed = None if count is None else db.cards_changed_since(count)
+        if changed is None:
+            if not rebuild_if_needed:
+                return False
+            entry[0] = CardBitmap(cursor[0] for cursor in \
+                db.con.execute(query, args))
+        elif changed:
+            # Since '_card_ids' can have many elements, we construct the
+            # query without ? placeholders for them.
+            changed = set(changed)
+            for _card_id in changed:
+                bitmap.discard(_card_id)
+            query += " and _id in (%s)" % ",".join(str(_card_id) \
+                for _card_id in changed)
+            for cursor in db.con.execute(query, args):
+                bitmap.add(cursor[0])
+        entry[1] = db.card_change_count()
+        return True
+
+    def apply_to_database(self, criterion):
+        if len(criterion._tag_ids_forbidden) != 0:
+            assert len(criterion._tag_ids_active) != 0
+        db = self.database()
+        tag_count = db.con.execute("select count() from tags").fetchone()[0]
+        key = (tuple(sorted(criterion._tag_ids_active)),
+            tuple(sorted(criterion._tag_ids_forbidden)),
+            tuple(sorted(criterion.deactivated_card_type_fact_view_ids)),
+            tag_count)
+        if key in self._bitmaps:
+            # Move to the back, such that the least recently applied
+            # criterion gets dropped first.
+            self._bitmaps.move_to_end(key)
+        else:
+            where_clause, args = self._where_clause(criterion, tag_count)
+            self._bitmaps[key] = [None, None, where_clause, args]
+            if len(self._bitmaps) > self.MAX_CACHED_CRITERIA:
+                self._bitmaps.popitem(last=False)
+        if self._active is None:
+            self._active = [None, None, "active=1", []]
+        for other_key in list(self._bitmaps.keys()):
+            if other_key == key:
+                continue
+            if not self._update_bitmap(self._bitmaps[other_key],
+                rebuild_if_needed=False):
+                del self._bitmaps[other_key]
+        selected = self._bitmaps[key]
+        active = self._active
+        self._update_bitmap(selected)
+        self._update_bitmap(active)
+        # Update only the cards whose active state differs.
+        _card_ids_to_activate = selected[0].difference(active[0])
+        _card_ids_to_deactivate = active[0].difference(selected[0])
+        db.con.executemany("update cards set active=1 where _id=?",
+            ((_card_id, ) for _card_id in _card_ids_to_activate))
+        db.con.executemany("update cards set active=0 where _id=?",
+            ((_card_id, ) for _card_id in _card_ids_to_deactivate))
+        for _card_id in _card_ids_to_activate + _card_ids_to_deactivate:
+            db._card_changed(_card_id)
+        active[0] = selected[0].copy()
+        count = db.card_change_count()
+        for entry in list(self._bitmaps.values()) + [active]:
+            entry[1] = count
@@ -3,6 +3,7 @@
 #
 
 import os
+import json
 import time
 import string
 import datetime
@@ -95,16 +96,97 @@ class SQLiteLogging(object):
         ret_reps, lapses, acq_reps_since_lapse, ret_reps_since_lapse,
         scheduled_interval, actual_interval, thinking_time, next_rep,
         scheduler_data):
+        repetition = (int(timestamp), card_id, grade, easiness, acq_reps,
+            ret_reps, lapses, acq_reps_since_lapse, ret_reps_since_lapse,
+            scheduled_interval, actual_interval, int(thinking_time), next_rep,
+            scheduler_data)
+        was_journaled = not self.has_unjournaled_changes()
+        self._insert_repetition(repetition)
+        # Repetitions coming in from a sync or an import get committed at
+        # the end.
+        if self.syncing or not self.journal_repetitions:
+            return
+        if self._journal is None:
+            self._journal = open(self.repetition_journal_path(), "a")
+        self._journal.write(json.dumps(repetition) + "\n")
+        # Only needs to survive the process getting killed.
+        self._journal.flush()
+        if was_journaled:
+            self._journaled_changes = self.con.total_changes()
+            self._journaled_card_id = card_id
+
+    def _insert_repetition(self, repetition):
         self.con.execute(\
             """insert into log(event_type, timestamp, object_id, grade,
             easiness, acq_reps, ret_reps, lapses, acq_reps_since_lapse,
             ret_reps_since_lapse, scheduled_interval, actual_interval,
             thinking_time, next_rep, scheduler_data)
             values(?,?,?,?,?,?,?,?,?,?,?,?,?,?,?)""",
-            (EventTypes.REPETITION, int(timestamp), card_id, grade, easiness,
-            acq_reps, ret_reps, lapses, acq_reps_since_lapse,
-            ret_reps_since_lapse, scheduled_interval, actual_interval,
-            int(thinking_time), next_rep, scheduler_data))
+            (EventTypes.REPETITION, ) + repetition)
+
+    #
+    # Repetition journal.
+    #
+
+    # Committing is slow on cheap flash storage, so this only happens every
+    # 'save_after_n_reps' repetitions, or e.g. when the program is paused and
+    # there are other changes. In order not to lose the repetitions in
+    # between when the process gets killed, each of them is also appended to
+    # a journal file next to the database, one JSON list per line. 'save'
+    # removes the journal after committing, and 'load' replays the
+    # repetitions which are still in it. The journal is kept open in between,
+    # as opening it for every repetition is slow as well.
+
+    def repetition_journal_path(self):
+        return self._path + "-repetitions"
+
+    def close_repetition_journal(self):
+        if self._journal is not None:
+            self._journal.close()
+            self._journal = None
+
+    def remove_repetition_journal(self):
+        self.close_repetition_journal()
+        if os.path.exists(self.repetition_journal_path()):
+            os.remove(self.repetition_journal_path())
+
+    def has_unjournaled_changes(self):
+
+        """Returns True if there are changes which have neither been
+        committed nor journaled, i.e. if it's worth saving the database.
+
+        """
+
+        return self._journaled_changes is None or \
+            self._journaled_changes != self.con.total_changes()
+
+    def replay_repetition_journal(self):
+        if not os.path.exists(self.repetition_journal_path()):
+            return
+        from mnemosyne.libmnemosyne.databases.SQLite_sync import Bunch
+        with open(self.repetition_journal_path()) as journal:
+            for line in journal:
+                try:
+                    repetition = tuple(json.loads(line))
+                except (ValueError, TypeError):
+                    continue  # E.g. the last line got cut off.
+                if len(repetition) != 14:
+                    continue
+                # The process could have been killed after committing, but
+                # before removing the journal.
+                timestamp, card_id = repetition[0], repetition[1]
+                if self.con.execute("""select 1 from log where timestamp=?
+                    and event_type=? and object_id=? limit 1""", (timestamp,
+                    EventTypes.REPETITION, card_id)).fetchone() is not None:
+                    continue
+                self._insert_repetition(repetition)
+                self._apply_repetition_to_card(Bunch(id=card_id,
+                    grade=repetition[2], easiness=repetition[3],
+                    acq_reps=repetition[4], ret_reps=repetition[5],
+                    lapses=repetition[6], acq_reps_since_lapse=repetition[7],
+                    ret_reps_since_lapse=repetition[8], last_rep=timestamp,
+                    next_rep=repetition[12], scheduler_data=repetition[13]))
+        self.save()
 
     def log_added_tag(self, timestamp, tag_id):
         self.con.execute(\
@@ -281,6 +363,7 @@ class SQLiteLogging(object):
     # during the parsing process.
 
     def before_1x_log_import(self):
+        self.journal_repetitions = False
         if not self.con.execute("pragma table_info(cards_data)").fetchall():
             self.con.execute("""create temp table _cards(
                 id text primary key,
@@ -291,6 +374,7 @@ class SQLiteLogging(object):
         self.con.execute("drop index if exists i_log_object_id;")
 
     def after_1x_log_import(self):
+        self.journal_repetitions = True
         self.con.execute("drop table _cards")
         # Restore index situation.
         self.con.execute("create index i_log_timestamp on log (timestamp);")
@@ -370,20 +454,50 @@ class SQLiteLogging(object):
         w.close_progress()
         
     def archive_old_logs(self):
-        
+
         """This puts all the data of old reviews in a separate file, which
         is no longer backed up. All clients do this independently, and when
         doing an initial sync, all these archive files are sent across so as
         not to lose and information. This could cause duplication, however,
-        so later on a algorithm needs to be written to a create a single 
+        so later on a algorithm needs to be written to a create a single
         archive from these multiple files, by making sure that there are
         no log lines with duplicate (timestamps, id).
-        
+
+        The entries are moved in chunks, see 'archive_old_logs_chunk'.
+
         """
-        
+
         self.main_widget().set_progress_text(_("Archiving old logs..."))
         self.backup()
-        one_year_ago = int(time.time()) - 356 * DAY
+        one_year_ago = self.archive_cutoff()
+        archive_path = self.create_archive()
+        self.main_widget().set_progress_range(self.con.execute(\
+            "select count() from log where timestamp<?",
+            (one_year_ago, )).fetchone()[0])
+        moved = 0
+        while True:
+            count = self.archive_old_logs_chunk(archive_path, one_year_ago)
+            if not count:
+                break
+            moved += count
+            self.main_widget().set_progress_value(moved)
+        if not self.uses_incremental_vacuum():
+            self.con.execute("vacuum")
+        else:
+            self.incremental_vacuum()
+        self.main_widget().close_progress()
+
+    # Keeps the transactions small, so that archiving can be interrupted
+    # between chunks without blocking the database for a long time.
+    ARCHIVE_CHUNK_SIZE = 1000
+
+    def archive_cutoff(self):
+        return int(time.time()) - 356 * DAY
+
+    def create_archive(self):
+
+        """Creates an empty archive database and returns its path."""
+
         # Create archive dir if needed.
         archive_dir = os.path.join(self.config().data_dir, "archive")
         if not os.path.exists(archive_dir):
@@ -394,36 +508,60 @@ class SQLiteLogging(object):
             datetime.datetime.today().strftime("%Y%m%d-%H%M%S.db")
         archive_path = os.path.join(archive_dir, archive_name)
         from mnemosyne.libmnemosyne.databases._sqlite3 import _Sqlite3
-        arch_con = _Sqlite3(self.component_manager, archive_path)        
+        arch_con = _Sqlite3(self.component_manager, archive_path)
         from mnemosyne.libmnemosyne.databases.SQLite import SCHEMA
-        arch_con.executescript(SCHEMA.substitute(pregenerated_data="")) 
+        arch_con.executescript(SCHEMA.substitute(pregenerated_data=""))
         arch_con.executescript("""drop index i_log_timestamp;
-                                  drop index i_log_object_id;""")        
+                                  drop index i_log_object_id;""")
         arch_con.commit()
         arch_con.close()
+        return archive_path
+
+    def archive_old_logs_chunk(self, archive_path, before):
+
+        """Moves at most ARCHIVE_CHUNK_SIZE of the oldest log entries with a
+        timestamp before 'before' to the archive database in 'archive_path',
+        and returns the number of entries moved.
+
+        Copying and deleting happens in a single transaction, so that an
+        interruption never leaves entries both in the log and in the archive.
+
+        """
+
+        last = self.con.execute("""select _id from log where timestamp<?
+            order by _id limit 1 offset ?""",
+            (before, self.ARCHIVE_CHUNK_SIZE - 1)).fetchone()
+        if last is None:
+            last = self.con.execute(\
+                "select max(_id) from log where timestamp<?",
+                (before, )).fetchone()
+        if last[0] is None:
+            return 0
+        count = self.con.execute(\
+            "select count() from log where timestamp<? and _id<=?",
+            (before, last[0])).fetchone()[0]
         # Needed for Android.
         self.con.execute("PRAGMA temp_store_directory='%s';" % \
-                         (archive_dir, ))
-        # Transfer old logs. 
-        script = string.Template("""   
+                         (os.path.dirname(archive_path), ))
+        # Transfer old logs.
+        script = string.Template("""
             attach "$archive_path" as archive;
-            begin; 
+            begin;
             insert into archive.log(event_type, timestamp, object_id, grade,
                 easiness, acq_reps, ret_reps, lapses, acq_reps_since_lapse,
                 ret_reps_since_lapse, scheduled_interval, actual_interval,
                 thinking_time, next_rep, scheduler_data)
-                select event_type, timestamp, object_id, grade, easiness, 
+                select event_type, timestamp, object_id, grade, easiness,
                 acq_reps, ret_reps, lapses, acq_reps_since_lapse,
                 ret_reps_since_lapse, scheduled_interval, actual_interval,
-                thinking_time, next_rep, scheduler_data from log 
-                    where timestamp<$one_year_ago; 
-            commit; 
-            begin;
-            delete from log where timestamp<$one_year_ago;
-            end;
-            vacuum;
-        """).substitute(archive_path=archive_path, one_year_ago=one_year_ago)
-        self.con.executescript(script) 
-        self.main_widget().close_progress()
+                thinking_time, next_rep, scheduler_data from log
+                    where timestamp<$before and _id<=$last_id;
+            delete from log where timestamp<$before and _id<=$last_id;
+            commit;
+            detach archive;
+        """).substitute(archive_path=archive_path, before=int(before),
+            last_id=last[0])
+        self.con.executescript(script)
+        return count
 
             
\ No newline at end of file
@@ -4,6 +4,7 @@
 
 import os
 import re
+import shutil
 try:
     from hashlib import md5
 except ImportError:
@@ -55,28 +56,57 @@ media_dir + ".\n" + _("Check your file permissions and make sure the directory i
 
         'filename' is a relative path inside the media dir.
 
-        In principle, you could have different hash implementations on
-        different systems, as the hash is considered something internal and is
-        not sent across during sync e.g..
+        The hashes are cached in the media manifest, so a file only gets
+        rehashed if its size or modification time changed, which matters on
+        the slow storage of mobile devices. Since the manifest is also used to
+        find identical files during sync, all partners should use the same
+        hash function.
 
         """
 
-        filename = normalise_path(os.path.join(self.media_dir(), filename))
-        if not os.path.exists(filename):
+        full_path = normalise_path(os.path.join(self.media_dir(), filename))
+        try:
+            stat = os.stat(full_path)
+        except OSError:
             return "0"
-        media_file = open(filename, "rb")
+        sql_res = self.con.execute("""select mtime, size, _hash from
+            media_manifest where filename=?""", (filename, )).fetchone()
+        if sql_res and sql_res[0] == stat.st_mtime and \
+            sql_res[1] == stat.st_size:
+            return sql_res[2]
+        media_file = open(full_path, "rb")
         hasher = md5()
         while True:
             buffer = media_file.read(8096)
             if not buffer:
                 break
             hasher.update(buffer)
+        media_file.close()
+        self.con.execute("""insert or replace into media_manifest(filename,
+            mtime, size, _hash) values(?,?,?,?)""", (filename,
+            stat.st_mtime, stat.st_size, hasher.hexdigest()))
         return hasher.hexdigest()
 
-        # The following implementation uses the modification date. Less
-        # robust, but could be useful on a mobile device.
-
-        #return os.path.getmtime(media_file)
+    def media_file_hash(self, filename):
+        return self._media_hash(filename)
+
+    def media_filename_with_hash(self, hash):
+        filenames = [cursor[0] for cursor in self.con.execute(\
+            "select filename from media_manifest where _hash=?", (hash, ))]
+        for filename in filenames:
+            # Make sure the file was not edited or deleted in the mean time.
+            if self._media_hash(filename) == hash:
+                return filename
+        return None
+
+    def copy_media_file(self, source, destination):
+        full_destination = normalise_path(\
+            os.path.join(self.media_dir(), destination))
+        directory = os.path.dirname(full_destination)
+        if not os.path.exists(directory):
+            os.makedirs(directory)
+        shutil.copyfile(normalise_path(\
+            os.path.join(self.media_dir(), source)), full_destination)
 
     def check_for_edited_media_files(self):
         # Regular media files.
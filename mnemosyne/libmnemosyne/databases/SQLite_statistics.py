@@ -27,19 +27,82 @@ class SQLiteStatistics(object):
     def card_count(self):
         return self.con.execute("""select count() from cards""").fetchone()[0]
 
+    # The review counters are needed after each repetition, so we keep them
+    # in memory. They are counted in a single scan of the cards table (e.g.
+    # after loading the database or after a bulk change, see
+    # 'forget_card_changes'), and afterwards updated with the difference
+    # caused by each card which gets added, updated or deleted. The number
+    # of scheduled cards is counted for a given timestamp, and remains
+    # valid until 'next_rep_after', when the next card becomes due.
+
+    def _count_cards(self, timestamp):
+        if timestamp is None:
+            timestamp = -1
+        active, non_memorised, scheduled, next_rep_after = \
+            self.con.execute("""select count(), coalesce(sum(grade<2), 0),
+            coalesce(sum(grade>=2 and ?>=next_rep), 0),
+            min(case when grade>=2 and next_rep>? then next_rep end)
+            from cards where active=1""", (timestamp, timestamp)).fetchone()
+        self._card_counts = {"active": active,
+            "non_memorised": non_memorised, "scheduled": scheduled,
+            "timestamp": timestamp, "next_rep_after": next_rep_after}
+        return self._card_counts
+
+    def _counts_state(self, _card_id):
+        # No need to look anything up if there are no counters to update.
+        if self._card_counts is None:
+            return None
+        return self.con.execute("""select active, grade, next_rep from cards
+            where _id=?""", (_card_id, )).fetchone()
+
+    def _update_card_counts(self, old_state, new_state):
+
+        """Updates the counters for a card which goes from 'old_state' to
+        'new_state', which are (active, grade, next_rep) tuples, or None if
+        the card does not exist.
+
+        """
+
+        counts = self._card_counts
+        if counts is None:
+            return
+        for state, delta in ((old_state, -1), (new_state, 1)):
+            if state is None or not state[0]:
+                continue
+            active, grade, next_rep = state
+            counts["active"] += delta
+            if grade < 2:
+                counts["non_memorised"] += delta
+            elif next_rep <= counts["timestamp"]:
+                counts["scheduled"] += delta
+            elif delta == 1 and (counts["next_rep_after"] is None or \
+                next_rep < counts["next_rep_after"]):
+                counts["next_rep_after"] = next_rep
+
     def non_memorised_count(self):
-        return self.con.execute("""select count() from cards
-            where active=1 and grade<2""").fetchone()[0]
+        counts = self._card_counts
+        if counts is None:
+            counts = self._count_cards(None)
+        return counts["non_memorised"]
 
     def scheduled_count(self, timestamp):
-        count = self.con.execute("""select count() from cards
-            where active=1 and grade>=2 and ?>=next_rep""",
-            (timestamp, )).fetchone()[0]
-        return count
+        counts = self._card_counts
+        if counts is not None and counts["timestamp"] <= timestamp and \
+            (counts["next_rep_after"] is None or \
+            timestamp < counts["next_rep_after"]):
+            return counts["scheduled"]
+        if counts is not None and timestamp < counts["timestamp"]:
+            # E.g. checking for a backlog, don't throw away the counters.
+            return self.con.execute("""select count() from cards
+                where active=1 and grade>=2 and ?>=next_rep""",
+                (timestamp, )).fetchone()[0]
+        return self._count_cards(timestamp)["scheduled"]
 
     def active_count(self):
-        return self.con.execute("""select count() from cards
-            where active=1""").fetchone()[0]
+        counts = self._card_counts
+        if counts is None:
+            counts = self._count_cards(None)
+        return counts["active"]
 
     def easinesses(self, active_only):
         query = "select easiness from cards where grade>=0"
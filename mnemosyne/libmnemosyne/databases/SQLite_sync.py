@@ -127,6 +127,7 @@ class SQLiteSync(object):
             applier = self.component_manager.current("criterion_applier",
                 used_for=criterion.__class__)
             applier.apply_to_database(criterion)
+            self.forget_card_changes()
         # Now we can update the last log index.
         self.con.execute(\
             "update partnerships set _last_log_id=? where partner=?",
@@ -647,6 +648,11 @@ class SQLiteSync(object):
             scheduler_data=sch_data)
         self.log().repetition(card, log_entry["sch_i"], log_entry["act_i"],
             log_entry["th_t"])
+        self._apply_repetition_to_card(card)
+
+    def _apply_repetition_to_card(self, card):
+        old_state = self.con.execute("""select _id, active, grade, next_rep
+            from cards where id=?""", (card.id, )).fetchone()
         self.con.execute("""update cards set grade=?, easiness=?, acq_reps=?,
             ret_reps=?, lapses=?, acq_reps_since_lapse=?,
             ret_reps_since_lapse=?, last_rep=?, next_rep=?, scheduler_data=?
@@ -654,6 +660,11 @@ class SQLiteSync(object):
             card.ret_reps, card.lapses, card.acq_reps_since_lapse,
             card.ret_reps_since_lapse, card.last_rep, card.next_rep,
             card.scheduler_data, card.id))
+        if old_state is not None:
+            _card_id, active = old_state[0], old_state[1]
+            self._card_changed(_card_id)
+            self._update_card_counts(old_state[1:],
+                (active, card.grade, card.next_rep))
 
     def add_media_file(self, log_entry):
 
@@ -77,6 +77,20 @@ class _APSW(Component):
     def last_insert_rowid(self):
         return self.connection.last_insert_rowid()
 
+    def total_changes(self):
+        return self.connection.totalchanges()
+
+    def backup(self, filename, pages=-1):
+        # Let other threads run between the steps.
+        destination = apsw.Connection(filename)
+        try:
+            with destination.backup("main", self.connection, "main") as backup:
+                while not backup.done:
+                    backup.step(pages)
+                    time.sleep(0)
+        finally:
+            destination.close()
+
     def commit(self):
         try:
             return self.connection.cursor().execute("commit;")
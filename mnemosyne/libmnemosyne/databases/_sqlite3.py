@@ -50,6 +50,7 @@ class _Sqlite3(Component):
                 self.main_widget().show_error(_\
 ("Putting a database on a network drive is forbidden under Windows to avoid data corruption. Mnemosyne will now close."))
                 sys.exit(-1)
+        self.path = path
         self.connection = sqlite3.connect(path)
         # http://www.mail-archive.com/sqlite-users@sqlite.org/msg34453.html
         self.connection.execute("pragma journal_mode = persist;")
@@ -86,6 +87,61 @@ class _Sqlite3(Component):
     def last_insert_rowid(self):
         return self._cursor.lastrowid
 
+    def total_changes(self):
+        return self.connection.total_changes
+
+    def backup(self, filename, pages=-1):
+        # The online backup API is only available from Python 3.7 onwards,
+        # which e.g. Android does not have yet.
+        if not hasattr(self.connection, "backup"):
+            self._copy_in_steps(filename, pages)
+            return
+        # Let other threads run between the steps.
+        destination = sqlite3.connect(filename)
+        try:
+            self.connection.backup(destination, pages=pages,
+                progress=lambda status, remaining, total: time.sleep(0))
+        finally:
+            destination.close()
+
+    def _copy_in_steps(self, filename, pages):
+
+        """Copies the database file 'pages' pages at a time. During each
+        step, we hold a read lock, such that nobody can be writing to the
+        file. Like the online backup API, we start over if the database was
+        committed to in between steps, which shows up in the file change
+        counter in the header.
+
+        """
+
+        page_size = self.connection.execute("pragma page_size").fetchone()[0]
+        step_size = page_size * pages if pages > 0 else -1
+        while True:
+            change_counter = None
+            with open(self.path, "rb") as source, \
+                open(filename, "wb") as destination:
+                while True:
+                    self.connection.execute("begin")
+                    try:
+                        # Acquire the read lock.
+                        self.connection.execute(\
+                            "select count() from sqlite_master").fetchone()
+                        source.seek(24)
+                        header = source.read(4)
+                        if change_counter is None:
+                            change_counter = header
+                        elif header != change_counter:
+                            break
+                        source.seek(destination.tell())
+                        data = source.read(step_size)
+                    finally:
+                        self.connection.commit()
+                    destination.write(data)
+                    if step_size == -1 or len(data) < step_size:
+                        return
+                    # Let other threads run between the steps.
+                    time.sleep(0)
+
     def commit(self):
         return self.connection.commit()
 
@@ -266,6 +266,7 @@ class Anki2(FileFormat, MediaPreprocessor):
         number_of_logs = con.execute("select count() from revlog").fetchone()[0]
         w.set_progress_range(number_of_logs)
         w.set_progress_update_interval(number_of_logs/20)
+        db.journal_repetitions = False
         for id, cid, usn, ease, ivl, lastIvl, factor, time, type_ in \
             con.execute("""select id, cid, usn, ease, ivl, lastIvl, factor,
             time, type from revlog"""):
@@ -287,6 +288,7 @@ class Anki2(FileFormat, MediaPreprocessor):
                 thinking_time=int(time/1000), next_rep=next_rep,
                 scheduler_data=0)
             w.increase_progress(1)
+        db.journal_repetitions = True
         # Import cards.
         w.set_progress_text(_("Importing cards..."))
         number_of_cards = con.execute("select count() from cards").fetchone()[0]
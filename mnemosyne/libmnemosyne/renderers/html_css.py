@@ -24,8 +24,9 @@ class HtmlCss(Renderer):
     def __init__(self, component_manager):
         Renderer.__init__(self, component_manager)
         # We cache the css creation to save some time, especially on mobile
-        # devices.
-        self._css = {} # {card_type.id: render_args: css}
+        # devices. The cached css is regenerated when the card type properties
+        # in the config or the fact keys of the card type change.
+        self._css = {} # {card_type.id: {render_args: (stamp, css)}}
 
     def body_css(self, **render_args):
         css = "html, body { margin: 0px; height: 100%;  width: 100%;}\n"
@@ -91,19 +92,27 @@ class HtmlCss(Renderer):
             css += "}\n"
         return css
 
+    def _stamp(self, card_type):
+        return self.config().card_type_properties_version, \
+            tuple(card_type.fact_keys_and_names)
+
     def update(self, card_type, **render_args):
         if card_type.id not in self._css:
             self._css[card_type.id] = {}
-        self._css[card_type.id][repr(sorted(render_args.items()))] =\
-            self.body_css(**render_args) + \
-            self.card_type_css(card_type, **render_args)
+        self._css[card_type.id][repr(sorted(render_args.items()))] = \
+            (self._stamp(card_type), self.body_css(**render_args) + \
+            self.card_type_css(card_type, **render_args))
 
     def css(self, card_type, **render_args):
         render_args_hash = repr(sorted(render_args.items()))
-        if not card_type.id in self._css or \
-           not render_args_hash in self._css[card_type.id]:
+        try:
+            stamp, css = self._css[card_type.id][render_args_hash]
+        except KeyError:
+            stamp = None
+        if stamp != self._stamp(card_type):
             self.update(card_type, **render_args)
-        return self._css[card_type.id][render_args_hash]
+            stamp, css = self._css[card_type.id][render_args_hash]
+        return css
 
     def body(self, fact_data, fact_keys, card_type, **render_args):
         html = ""
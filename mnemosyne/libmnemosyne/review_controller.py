@@ -25,6 +25,7 @@ class ReviewController(Component):
         self.widget = None
         self.learning_ahead = False
         self.render_chain = "default"
+        self.prefetched = None
 
     def set_render_chain(self, render_chain):
         self.render_chain = render_chain
@@ -57,6 +58,17 @@ class ReviewController(Component):
     def show_answer(self):
         raise NotImplementedError
 
+    def prefetch_next_card(self):
+
+        """Called by front-ends when there is idle time while the answer is
+        showing. Allows the review controller to speculatively render the
+        card which will be shown after grading, such that it can be shown
+        immediately when the grade comes in.
+
+        """
+
+        pass
+
     def grade_answer(self, grade):
 
         """All the code that needs to run after the user grades the answer.
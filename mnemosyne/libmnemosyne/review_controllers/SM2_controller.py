@@ -42,6 +42,7 @@ class SM2Controller(ReviewController):
 
     def reset(self, new_only=False):
         self.card = None
+        self.prefetched = None
         self._state = "EMPTY"
         self.learning_ahead = False
         self.non_memorised_count = None
@@ -62,6 +63,7 @@ class SM2Controller(ReviewController):
         """
 
         previous_state = self.state()
+        self.prefetched = None
         try:
             self.previous_card = self.database().card(\
                 self.card._id, is_id_internal=True)
@@ -128,6 +130,47 @@ _("Use 'Learn ahead of schedule' sparingly. For cramming before an exam, it's mu
             self._state = "SELECT GRADE"
         self.update_dialog()
 
+    def prefetch_next_card(self):
+        self.prefetched = None
+        if self.card is None or self._state != "SELECT GRADE":
+            return
+        # Only if the next card can be shown before the grading of this one
+        # is processed, we know for sure which card comes up next.
+        if not self.scheduler().is_prefetch_allowed(self.card):
+            return
+        card = self.scheduler().peek_next_card()
+        if card is None:
+            return
+        question, answer = self._render_question(card)
+        self.prefetched = (card._id, self._prefetch_key(card),
+                           question, answer)
+        self.review_widget().preload_question(question)
+
+    def _prefetch_key(self, card):
+        # The modification time only has a resolution of one second, so an
+        # edit right after prefetching would go unnoticed without also
+        # comparing the contents.
+        return (card.modification_time, card.card_type.id,
+                card.fact_view.id, sorted(card.fact.data.items()))
+
+    def _render_question(self, card):
+
+        """Returns the html for the question, and for adaptive layouts also
+        the answer, which allows the widget to optimise its layout.
+
+        """
+
+        prefetched, self.prefetched = self.prefetched, None
+        if prefetched and prefetched[0] == card._id and \
+            prefetched[1] == self._prefetch_key(card):
+            return prefetched[2], prefetched[3]
+        question = card.question(self.render_chain)
+        answer = None
+        if self.config()["QA_split"] == "adaptive" and \
+           not card.fact_view.a_on_top_of_q:
+            answer = card.answer(self.render_chain, no_side_effects=True)
+        return question, answer
+
     def grade_answer(self, grade):
 
         """Note that this also pulls in a new question."""
@@ -191,6 +234,10 @@ _("You have finished your scheduled reviews. Now, learn as many failed or new ca
             self.non_memorised_count -= 1
 
     def update_dialog(self, redraw_all=False):
+        if redraw_all:
+            # The card might have been edited.
+            self.prefetched = None
+        self.review_widget().begin_update()
         self.update_qa_area(redraw_all)
         self.update_grades_area()
         self.update_status_bar_counters()
@@ -223,11 +270,10 @@ _("You have finished your scheduled reviews. Now, learn as many failed or new ca
         elif self._state == "SELECT SHOW" or redraw_all == True:
             # Giving the widget info about the answer even before it is shown
             # allows it to optimise its layout.
-            w.set_question(self.card.question(self.render_chain))
-            if self.config()["QA_split"] == "adaptive" and \
-               not self.card.fact_view.a_on_top_of_q:
-                w.set_answer(self.card.answer(\
-                    self.render_chain, no_side_effects=True))
+            question, answer = self._render_question(self.card)
+            w.set_question(question)
+            if answer is not None:
+                w.set_answer(answer)
             w.reveal_question()
         # Show answer.
         if self.card is None or self._state == "SELECT SHOW":
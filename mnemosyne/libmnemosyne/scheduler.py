@@ -78,6 +78,15 @@ class Scheduler(Component):
     def next_card(self, learn_ahead=False):
         raise NotImplementedError
 
+    def peek_next_card(self):
+
+        """Return the card which 'next_card' is expected to return, without
+        removing it from the queue, or None if that can't be determined.
+
+        """
+
+        return None
+
     def is_prefetch_allowed(self):
 
         """Can we display a new card before having processed the grading of
@@ -3,6 +3,8 @@
 #
 
 import time
+import heapq
+import bisect
 import random
 import calendar
 import datetime
@@ -14,6 +16,95 @@ HOUR = 60 * 60 # Seconds in an hour.
 DAY = 24 * HOUR # Seconds in a day.
 
 
+class ReviewQueueIndex(object):
+
+    """In-memory index of the cards which the review queue is built from, so
+    that rebuilding the queue does not need to query the entire cards table
+    each time.
+
+    The cards due for a retention repetition are kept in a heap, shortest
+    interval first (or in random order). Cards are removed from the heap
+    lazily: 'due' holds the key under which each card is currently in the
+    heap, and entries with a different key are skipped when popping.
+    Popped cards are remembered in 'popped' until they are checked again,
+    as they remain due until they actually get graded.
+
+    The non memorised cards are kept in a pool per grade, separately for
+    cards which lapsed (stage 2) and cards which are still being memorised
+    for the first time (stage 3). Each pool is a list kept sorted with
+    'bisect', so that rebuilding the queue does not need to sort it again.
+    When the index is first filled, cards are simply appended, and the pool
+    is sorted once when it is first needed.
+
+    """
+
+    def __init__(self, randomise):
+        self.randomise = randomise
+        self.heap = []
+        self.due = {} # _card_id: key.
+        self.popped = set()
+        self.pools = {} # (grade, lapsed): [(key, _fact_id)], sorted.
+        for grade in (0, 1):
+            for lapsed in (False, True):
+                self.pools[(grade, lapsed)] = []
+        self.unsorted_pools = set(self.pools)
+        self.pooled = {} # _card_id: ((grade, lapsed), key).
+        # Value of 'adjusted_now' at which more cards become due.
+        self.valid_until = None
+
+    def add(self, _card_id, _fact_id, grade, lapses, next_rep, last_rep, now):
+        if grade in (0, 1):
+            if lapses > 0:
+                key = (last_rep - next_rep, _card_id)
+            else:
+                key = (0, _card_id)
+            pool_id = (grade, lapses > 0)
+            self.pooled[_card_id] = (pool_id, key)
+            if pool_id in self.unsorted_pools:
+                self.pools[pool_id].append((key, _fact_id))
+            else:
+                bisect.insort(self.pools[pool_id], (key, _fact_id))
+        elif grade >= 2:
+            if now >= next_rep:
+                if self.randomise:
+                    key = (random.random(), _card_id)
+                else:
+                    key = (next_rep - last_rep, _card_id)
+                self.due[_card_id] = key
+                heapq.heappush(self.heap, (key, _card_id, _fact_id))
+            elif self.valid_until is None or next_rep < self.valid_until:
+                self.valid_until = next_rep
+
+    def remove(self, _card_id):
+        self.due.pop(_card_id, None)
+        if _card_id not in self.pooled:
+            return
+        pool_id, key = self.pooled.pop(_card_id)
+        pool = self.pools[pool_id]
+        if pool_id in self.unsorted_pools:
+            i = [entry[0] for entry in pool].index(key)
+        else:
+            # Keys are unique, as they contain the _card_id.
+            i = bisect.bisect_left(pool, (key, ))
+        del pool[i]
+
+    def pop_due(self):
+        while self.heap:
+            key, _card_id, _fact_id = heapq.heappop(self.heap)
+            if self.due.get(_card_id) == key:
+                del self.due[_card_id]
+                self.popped.add(_card_id)
+                return _card_id, _fact_id
+        return None
+
+    def non_memorised(self, grade, lapsed):
+        pool = self.pools[(grade, lapsed)]
+        if (grade, lapsed) in self.unsorted_pools:
+            pool.sort()
+            self.unsorted_pools.remove((grade, lapsed))
+        return ((key[1], _fact_id) for key, _fact_id in pool)
+
+
 class SM2Mnemosyne(Scheduler):
 
     """Scheduler based on http://www.supermemo.com/english/ol/sm2.htm.
@@ -134,12 +225,19 @@ class SM2Mnemosyne(Scheduler):
         'stage' stores the stage of the queue building, and is used to skip
         over unnecessary queries.
 
+        '_index' is only built from the database when the queue is first
+        rebuilt after a reset. Afterwards, it is kept up to date with the
+        cards which changed in the meantime, see '_update_index'.
+
         """
 
         self._card_ids_in_queue = []
-        self._fact_ids_in_queue = []
-        self._fact_ids_memorised = []
+        self._fact_ids_in_queue = set()
+        self._fact_ids_memorised = set()
+        self._memorised_count = 0
         self._card_id_last = None
+        self._index = None
+        self._index_change_count = None
         self.new_only = new_only
         if self.new_only == False:
             self.stage = 1
@@ -206,12 +304,41 @@ class SM2Mnemosyne(Scheduler):
             (card, card.next_rep, card.next_rep + DAY):
             card.next_rep += DAY
 
+    def _update_index(self):
+        db = self.database()
+        now = self.adjusted_now()
+        randomise = self.config()["randomise_scheduled_cards"]
+        changed = None
+        if self._index is not None and self._index.randomise == randomise \
+            and (self._index.valid_until is None or \
+            now < self._index.valid_until):
+            changed = db.cards_changed_since(self._index_change_count)
+        self._index_change_count = db.card_change_count()
+        if changed is None:
+            self._index = ReviewQueueIndex(randomise)
+            self._index.valid_until = db.next_rep_after(now)
+            for _card_id, _fact_id, grade, lapses, next_rep, last_rep in \
+                db.cards_for_review_queue(now):
+                self._index.add(_card_id, _fact_id, grade, lapses, next_rep,
+                    last_rep, now)
+            return
+        changed = set(changed).union(self._index.popped)
+        self._index.popped = set()
+        for _card_id in changed:
+            self._index.remove(_card_id)
+        for _card_id, _fact_id, grade, lapses, next_rep, last_rep, active in \
+            db.review_queue_data(changed):
+            if active:
+                self._index.add(_card_id, _fact_id, grade, lapses, next_rep,
+                    last_rep, now)
+
     def rebuild_queue(self, learn_ahead=False):
         db = self.database()
         if not db.is_loaded() or not db.active_count():
             return
+        self._update_index()
         self._card_ids_in_queue = []
-        self._fact_ids_in_queue = []
+        self._fact_ids_in_queue = set()
 
         # Stage 1
         #
@@ -219,22 +346,22 @@ class SM2Mnemosyne(Scheduler):
         # first do those that have the shortest interval, as being a day
         # late on an interval of 2 could be much worse than being a day late
         # on an interval of 50.
-        # Fetch maximum 50 cards at the same time, as a trade-off between
-        # memory usage and redoing the query.
+        # Take maximum 50 cards at the same time, such that cards which
+        # become due in the meantime (e.g. after a lapse) can still be
+        # slotted in according to their interval.
         if self.stage == 1:
             if self.config()["shown_backlog_help"] == False:
                 if db.scheduled_count(self.adjusted_now() - DAY) != 0:
                     self.main_widget().show_information(\
 _("You appear to have missed some reviews. Don't worry too much about this backlog, and do as many cards as you feel comfortable with to catch up each day. Mnemosyne will automatically reschedule your cards such that the most urgent ones are shown first."))
                     self.config()["shown_backlog_help"] = True
-            if self.config()["randomise_scheduled_cards"] == True:
-                sort_key = "random"
-            else:
-                sort_key = "interval"
-            for _card_id, _fact_id in db.cards_due_for_ret_rep(\
-                    self.adjusted_now(), sort_key=sort_key, limit=50):
+            while len(self._card_ids_in_queue) < 50:
+                due = self._index.pop_due()
+                if due is None:
+                    break
+                _card_id, _fact_id = due
                 self._card_ids_in_queue.append(_card_id)
-                self._fact_ids_in_queue.append(_fact_id)
+                self._fact_ids_in_queue.add(_fact_id)
             if len(self._card_ids_in_queue):
                 return
             self.stage = 2
@@ -247,22 +374,22 @@ _("You appear to have missed some reviews. Don't worry too much about this backl
         limit = self.config()["non_memorised_cards_in_hand"]
         non_memorised_in_queue = 0
         if self.stage == 2:
-            for _card_id, _fact_id in db.cards_to_relearn(grade=1,
-                sort_key="-interval"):
+            for _card_id, _fact_id in self._index.non_memorised(grade=1,
+                lapsed=True):
                 if _fact_id not in self._fact_ids_in_queue:
                     if non_memorised_in_queue < limit:
                         self._card_ids_in_queue.append(_card_id)
-                        self._fact_ids_in_queue.append(_fact_id)
+                        self._fact_ids_in_queue.add(_fact_id)
                         non_memorised_in_queue += 1
                     if non_memorised_in_queue == limit:
                         break
-            for _card_id, _fact_id in db.cards_to_relearn(grade=0,
-                sort_key="-interval"):
+            for _card_id, _fact_id in self._index.non_memorised(grade=0,
+                lapsed=True):
                 if _fact_id not in self._fact_ids_in_queue:
                     if non_memorised_in_queue < limit:
                         self._card_ids_in_queue.append(_card_id)
                         self._card_ids_in_queue.append(_card_id)
-                        self._fact_ids_in_queue.append(_fact_id)
+                        self._fact_ids_in_queue.add(_fact_id)
                         non_memorised_in_queue += 1
                     if non_memorised_in_queue == limit:
                         break
@@ -282,20 +409,22 @@ _("You appear to have missed some reviews. Don't worry too much about this backl
         # Use <= in the stage check, such that earlier stages can use
         # cards from this stage to increase the hand.
         if self.stage <= 3:
-            for _card_id, _fact_id in db.cards_new_memorising(grade=1):
+            for _card_id, _fact_id in self._index.non_memorised(grade=1,
+                lapsed=False):
                 if _fact_id not in self._fact_ids_in_queue:
                     if non_memorised_in_queue < limit:
                         self._card_ids_in_queue.append(_card_id)
-                        self._fact_ids_in_queue.append(_fact_id)
+                        self._fact_ids_in_queue.add(_fact_id)
                         non_memorised_in_queue += 1
                     if non_memorised_in_queue == limit:
                         break
-            for _card_id, _fact_id in db.cards_new_memorising(grade=0):
+            for _card_id, _fact_id in self._index.non_memorised(grade=0,
+                lapsed=False):
                 if _fact_id not in self._fact_ids_in_queue:
                     if non_memorised_in_queue < limit:
                         self._card_ids_in_queue.append(_card_id)
                         self._card_ids_in_queue.append(_card_id)
-                        self._fact_ids_in_queue.append(_fact_id)
+                        self._fact_ids_in_queue.add(_fact_id)
                         non_memorised_in_queue += 1
                     if non_memorised_in_queue == limit:
                         break
@@ -325,7 +454,7 @@ _("You appear to have missed some reviews. Don't worry too much about this backl
                 if _fact_id not in self._fact_ids_in_queue \
                     and _fact_id not in self._fact_ids_memorised:
                     self._card_ids_in_queue.append(_card_id)
-                    self._fact_ids_in_queue.append(_fact_id)
+                    self._fact_ids_in_queue.add(_fact_id)
                     non_memorised_in_queue += 1
                     if non_memorised_in_queue == limit:
                         if self.new_only == False:
@@ -339,7 +468,7 @@ _("You appear to have missed some reviews. Don't worry too much about this backl
                         sort_key=sort_key, limit=min(limit, 50)):
                     if _fact_id not in self._fact_ids_in_queue:
                         self._card_ids_in_queue.append(_card_id)
-                        self._fact_ids_in_queue.append(_fact_id)
+                        self._fact_ids_in_queue.add(_fact_id)
                         non_memorised_in_queue += 1
                         if non_memorised_in_queue == limit:
                             if self.new_only == False:
@@ -404,6 +533,12 @@ _("You appear to have missed some reviews. Don't worry too much about this backl
         self._card_id_last = _card_id
         return db.card(_card_id, is_id_internal=True)
 
+    def peek_next_card(self):
+        for _card_id in self._card_ids_in_queue:
+            if _card_id != self._card_id_last:
+                return self.database().card(_card_id, is_id_internal=True)
+        return None
+
     def is_prefetch_allowed(self, card_to_grade):
 
         """Can we display a new card before having processed the grading of
@@ -454,7 +589,8 @@ _("You appear to have missed some reviews. Don't worry too much about this backl
         # If we memorise a card, keep track of its fact, so that we can avoid
         # pulling a sister card from the 'unseen' pile.
         if not dry_run and card.grade < 2 and new_grade >= 2:
-            self._fact_ids_memorised.append(card.fact._id)
+            self._fact_ids_memorised.add(card.fact._id)
+            self._memorised_count += 1
         if card.grade == -1: # Unseen card.
             actual_interval = 0
         else:
@@ -555,7 +691,7 @@ _("You appear to have missed some reviews. Don't worry too much about this backl
         else:
             card.next_rep = card.last_rep
         # Warn if we learned a lot of new cards.
-        if len(self._fact_ids_memorised) == 15 and \
+        if self._memorised_count == 15 and \
             self.warned_about_too_many_cards == False:
             self.main_widget().show_information(\
         _("You've memorised 15 new or failed cards.") + " " +\
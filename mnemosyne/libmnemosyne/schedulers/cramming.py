@@ -36,7 +36,7 @@ class Cramming(SM2Mnemosyne):
         if self.new_only and db.recently_memorised_count(max_ret_reps) == 0:
             return        
         self._card_ids_in_queue = []
-        self._fact_ids_in_queue = []
+        self._fact_ids_in_queue = set()
         self.criterion = db.current_criterion()
         # Determine sort key.
         if self.config()["cramming_order"] == RANDOM:
@@ -53,7 +53,7 @@ class Cramming(SM2Mnemosyne):
                     sort_key=sort_key, limit=25, max_ret_reps=max_ret_reps):
                 if _fact_id not in self._fact_ids_in_queue:
                     self._card_ids_in_queue.append(_card_id)
-                    self._fact_ids_in_queue.append(_fact_id)
+                    self._fact_ids_in_queue.add(_fact_id)
             if len(self._card_ids_in_queue):
                 return
             self.stage = 2
@@ -63,7 +63,7 @@ class Cramming(SM2Mnemosyne):
                     sort_key=sort_key, limit=25, max_ret_reps=max_ret_reps):
                 if _fact_id not in self._fact_ids_in_queue:
                     self._card_ids_in_queue.append(_card_id)
-                    self._fact_ids_in_queue.append(_fact_id)
+                    self._fact_ids_in_queue.add(_fact_id)
             if len(self._card_ids_in_queue):
                 return
         # Start again.
@@ -23,6 +23,17 @@ class ReviewWidget(UiComponent):
     """
 
     component_type = "review_widget"
+
+    def begin_update(self):
+
+        """Called by the review controller before it starts updating the
+        different parts of the widget. All updates up to the next call to
+        'redraw_now' belong together, so that front-ends with an expensive
+        round trip to the UI toolkit can send them as a single batch.
+
+        """
+
+        pass
         
     def set_question_box_visible(self, is_visible):
         pass
@@ -39,6 +50,16 @@ class ReviewWidget(UiComponent):
     def set_answer(self, text):
         pass
     
+    def preload_question(self, text):
+
+        """Hint that 'text' is likely to be the next question, allowing the
+        widget to prepare it in the background. The question still needs to
+        be shown through 'set_question' and 'reveal_question'.
+
+        """
+
+        pass
+
     def reveal_question(self):
         pass
         
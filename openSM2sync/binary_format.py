@@ -2,13 +2,35 @@
 # binary_format.py <Peter.Bienstman@UGent.be>
 #
 
+import os
+import struct
+import hashlib
+
+from .utils import SeriousSyncError
+
+
 class BinaryFormat(object):
 
     """Used when doing the initial sync and downloading the entire database
     as a binary file in order to speed up the sync.
 
+    If the receiving partner already has an older copy of the database (e.g.
+    when resolving conflicts), it can send the hashes of its blocks, so that
+    only the blocks which it does not have yet need to be transferred in a
+    delta file.
+
     """
 
+    # Delta files consist of a header (block size and size of the new file),
+    # followed by records which either copy a number of blocks from the old
+    # file or contain literal data. The final record contains the digest of
+    # the new file, such that the receiver can check the result.
+    DELTA_HEADER = ">IQ"
+    DELTA_RECORD = ">cQI"
+    COPY, LITERAL, END = b"C", b"L", b"E"
+    # Keeps the memory requirements down for (mostly) new files.
+    MAX_RUN_SIZE = 1024*1024
+
     def __init__(self, database):
         raise NotImplementedError
 
@@ -21,3 +43,123 @@ class BinaryFormat(object):
 
     def clean_up(self):
         pass
+
+    def block_size(self, filename):
+        return 4096
+
+    def block_hashes(self, filename):
+
+        """Returns the block size followed by the digests of all the blocks
+        in 'filename'.
+
+        """
+
+        block_size = self.block_size(filename)
+        hashes = bytearray(struct.pack(">I", block_size))
+        with open(filename, "rb") as old_file:
+            block = old_file.read(block_size)
+            while block:
+                hashes += hashlib.md5(block).digest()
+                block = old_file.read(block_size)
+        return bytes(hashes)
+
+    def create_delta(self, filename, hashes, delta_filename):
+
+        """Writes the delta between 'filename' and the old file described by
+        'hashes' to 'delta_filename'. Blocks which moved inside the old file
+        are found as well, as e.g. vacuuming shuffles database pages around.
+
+        """
+
+        block_size = struct.unpack(">I", hashes[:4])[0]
+        old_blocks = {}
+        for index in range((len(hashes) - 4) // 16):
+            digest = hashes[4 + 16*index:4 + 16*(index + 1)]
+            old_blocks.setdefault(digest, index)
+        file_hash = hashlib.md5()
+        with open(filename, "rb") as new_file, \
+            open(delta_filename, "wb") as delta_file:
+            delta_file.write(struct.pack(self.DELTA_HEADER, block_size,
+                os.path.getsize(filename)))
+            copy_start, copy_count = None, 0
+            literal = bytearray()
+            block = new_file.read(block_size)
+            while block:
+                file_hash.update(block)
+                index = old_blocks.get(hashlib.md5(block).digest()) \
+                    if len(block) == block_size else None
+                if index is None:
+                    if copy_count:
+                        delta_file.write(struct.pack(self.DELTA_RECORD,
+                            self.COPY, copy_start, copy_count))
+                        copy_count = 0
+                    literal += block
+                    if len(literal) >= self.MAX_RUN_SIZE:
+                        delta_file.write(struct.pack(self.DELTA_RECORD,
+                            self.LITERAL, 0, len(literal)))
+                        delta_file.write(literal)
+                        literal = bytearray()
+                else:
+                    if literal:
+                        delta_file.write(struct.pack(self.DELTA_RECORD,
+                            self.LITERAL, 0, len(literal)))
+                        delta_file.write(literal)
+                        literal = bytearray()
+                    if copy_count and index == copy_start + copy_count:
+                        copy_count += 1
+                    else:
+                        if copy_count:
+                            delta_file.write(struct.pack(self.DELTA_RECORD,
+                                self.COPY, copy_start, copy_count))
+                        copy_start, copy_count = index, 1
+                block = new_file.read(block_size)
+            if copy_count:
+                delta_file.write(struct.pack(self.DELTA_RECORD,
+                    self.COPY, copy_start, copy_count))
+            if literal:
+                delta_file.write(struct.pack(self.DELTA_RECORD,
+                    self.LITERAL, 0, len(literal)))
+                delta_file.write(literal)
+            delta_file.write(struct.pack(self.DELTA_RECORD, self.END, 0, 16))
+            delta_file.write(file_hash.digest())
+
+    def apply_delta(self, delta_filename, filename):
+
+        """Rebuilds 'filename' in place from its old contents and the delta
+        in 'delta_filename', which gets removed afterwards.
+
+        """
+
+        new_filename = filename + ".new"
+        file_hash = hashlib.md5()
+        record_size = struct.calcsize(self.DELTA_RECORD)
+        with open(delta_filename, "rb") as delta_file, \
+            open(filename, "rb") as old_file, \
+            open(new_filename, "wb") as new_file:
+            block_size, file_size = struct.unpack(self.DELTA_HEADER,
+                delta_file.read(struct.calcsize(self.DELTA_HEADER)))
+            while True:
+                record_type, index, count = struct.unpack(self.DELTA_RECORD,
+                    delta_file.read(record_size))
+                if record_type == self.END:
+                    digest = delta_file.read(count)
+                    break
+                if record_type == self.COPY:
+                    old_file.seek(index * block_size)
+                    count *= block_size
+                    source = old_file
+                else:
+                    source = delta_file
+                while count:
+                    data = source.read(min(count, self.MAX_RUN_SIZE))
+                    if not data:
+                        break  # Truncated, caught by the digest check.
+                    file_hash.update(data)
+                    new_file.write(data)
+                    count -= len(data)
+        os.remove(delta_filename)
+        if os.path.getsize(new_filename) != file_size or \
+            file_hash.digest() != digest:
+            os.remove(new_filename)
+            raise SeriousSyncError("Corrupt binary database delta.")
+        os.replace(new_filename, filename)
@@ -3,14 +3,16 @@
 #
 
 import os
+import struct
 import sqlite3
 import tempfile
 
 from openSM2sync.log_entry import EventTypes
+from openSM2sync.binary_format import BinaryFormat
 from mnemosyne.libmnemosyne.utils import copy
 
 
-class MnemosyneFormat(object):
+class MnemosyneFormat(BinaryFormat):
 
     def __init__(self, database):
         self.database = database
@@ -74,5 +76,15 @@ class MnemosyneFormat(object):
             con.close()
         return self.tmp_name
 
+    def block_size(self, filename):
+        # SQLite only ever rewrites entire pages, so using them as blocks
+        # gives the best matches. The page size is stored in the file header.
+        with open(filename, "rb") as database_file:
+            header = database_file.read(18)
+        if len(header) < 18 or not header.startswith(b"SQLite format 3"):
+            return BinaryFormat.block_size(self, filename)
+        page_size = struct.unpack(">H", header[16:18])[0]
+        return 65536 if page_size == 1 else page_size
+
     def clean_up(self):
         os.remove(self.tmp_name)
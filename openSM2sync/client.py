@@ -5,14 +5,19 @@
 #
 
 import os
+import gzip
+import time
 import socket
+import collections
 import urllib.request, urllib.parse, urllib.error
 import tarfile
 import http.client
 
 from .partner import Partner
+from .transport import HttpClientTransport
 from .text_formats.xml_format import XMLFormat
-from .utils import SyncError, SeriousSyncError, traceback_string
+from .utils import SyncError, SeriousSyncError, traceback_string, \
+     normalise_path
 
 # Register binary formats.
 
@@ -25,6 +30,16 @@ class Client(Partner):
     program_name = "unknown-SRS-app"
     program_version = "unknown"
     BUFFER_SIZE = 8192
+    # Log entries are uploaded in batches which take about LOG_BATCH_TIME
+    # seconds at the throughput measured so far, with a size between
+    # BUFFER_SIZE and MAX_LOG_BATCH_SIZE bytes.
+    LOG_BATCH_TIME = 0.5
+    MAX_LOG_BATCH_SIZE = 512*1024
+    # If the connection drops while sending log entries or transferring
+    # media files, we reconnect and pick up where we left off, waiting
+    # RESUME_DELAY seconds longer for each subsequent attempt.
+    MAX_RESUME_ATTEMPTS = 3
+    RESUME_DELAY = 2
     # The capabilities supported by the client. Note that we assume that the
     # server supports "mnemosyne_dynamic_cards".
     capabilities = "mnemosyne_dynamic_cards"  # "facts", "cards"
@@ -59,7 +74,9 @@ class Client(Partner):
         self.database = database
         self.text_format = XMLFormat()
         self.server_info = {}
-        self.con = None
+        # Can be replaced by a platform specific transport, see transport.py.
+        self.transport = HttpClientTransport()
+        self.timeout = None
         self.behind_proxy = None  # Explicit variable for testability.
         self.proxy = None
 
@@ -82,24 +99,49 @@ class Client(Partner):
                 self.behind_proxy = False
         # Create a new connection or reuse an existing one.
         if self.behind_proxy:
-            http.client.HTTPConnection._http_vsn = 10
-            http.client.HTTPConnection._http_vsn_str = "HTTP/1.0"
             if self.proxy is not None:
-                self.con = http.client.HTTPConnection(self.proxy, self.port)
+                self.transport.connect(self.proxy, self.port,
+                    keep_alive=False, timeout=self.timeout)
             else:  # Testsuite has set self.behind_proxy to True to simulate
                 # being behind a proxy.
-                self.con = http.client.HTTPConnection(self.server, self.port)
+                self.transport.connect(self.server, self.port,
+                    keep_alive=False, timeout=self.timeout)
         else:
-            http.client.HTTPConnection._http_vsn = 11
-            http.client.HTTPConnection._http_vsn_str = "HTTP/1.1"
-            if not self.con:
-                self.con = http.client.HTTPConnection(self.server, self.port)
+            self.transport.connect(self.server, self.port,
+                keep_alive=True, timeout=self.timeout)
 
     def url(self, url_string):
         if self.behind_proxy and self.proxy:
             url_string = self.server + ":/" + url_string
         return url_string
 
+    def upload_binary_file(self, url, filename, progress_bar=True,
+                           headers={}):
+        filename = normalise_path(filename)
+        if progress_bar:
+            file_size = os.path.getsize(filename)
+            self.ui.set_progress_range(file_size)
+            self.ui.set_progress_update_interval(file_size/50)
+        response = self.transport.request_file("PUT", url, filename,
+            progress=self.ui.increase_progress, headers=headers)
+        if progress_bar:
+            self.ui.set_progress_value(file_size)
+        return response
+
+    def download_binary_file(self, response, filename, file_size,
+                             progress_bar=True):
+        filename = normalise_path(filename)
+        directory = os.path.dirname(filename)
+        if not os.path.exists(directory):
+            os.makedirs(directory)
+        if progress_bar:
+            self.ui.set_progress_range(file_size)
+            self.ui.set_progress_update_interval(file_size/50)
+        self.transport.download_file(response, filename,
+            progress=self.ui.increase_progress if progress_bar else None)
+        if progress_bar:
+            self.ui.set_progress_value(file_size)
+
     def sync(self, server, port, username, password):
         try:
             self.server = socket.gethostbyname(server)
@@ -119,12 +161,12 @@ class Client(Partner):
             self.database.dynamically_create_media_files()
             # Set timeout long enough for e.g. a slow NAS waking from
             # hibernation.
-            socket.setdefaulttimeout(60)
+            self.timeout = 60
             self.login(username, password)
             # Generating media files at the server side could take some time,
             # so we update the timeout.
-            self.con = None
-            socket.setdefaulttimeout(15*60)
+            self.transport.close()
+            self.timeout = 15*60
             self.get_server_check_media_files()
             # Do a full sync after either the client or the server has restored
             # from a backup.
@@ -201,10 +243,70 @@ class Client(Partner):
             #self.get_sync_cancel()
 
 
-            if self.con:
-                self.con.close()
+            self.transport.close()
             self.ui.close_progress()
 
+    def compression_used(self):
+
+        """Returns the compression scheme both we and the server support, or
+        None.
+
+        """
+
+        return self.server_info.get("compression")
+
+    def accept_encoding_headers(self):
+        if self.compression_used():
+            return {"accept-encoding": self.compression_used()}
+        return {}
+
+    def can_resume_after(self, exception, attempts):
+
+        """Whether 'exception' signals a dropped connection after which the
+        server keeps our session, such that we can retry.
+
+        """
+
+        if attempts >= self.MAX_RESUME_ATTEMPTS or \
+            not self.server_info.get("supports_resume", False):
+            return False
+        # Not 'socket.error', which is just 'OSError' and would also cover
+        # e.g. a missing file or a full disk on our side.
+        return isinstance(exception, (ConnectionError, socket.timeout,
+            http.client.HTTPException))
+
+    def resume(self, function, *args):
+
+        """Calls 'function', which needs to be safe to repeat, again after
+        the connection drops.
+
+        """
+
+        attempts = 0
+        while True:
+            try:
+                return function(*args)
+            except Exception as exception:
+                if not self.can_resume_after(exception, attempts):
+                    raise
+                attempts += 1
+                self.transport.close()
+                time.sleep(attempts * self.RESUME_DELAY)
+
+    def binary_format_for_server(self):
+        for BinaryFormat in BinaryFormats:
+            binary_format = BinaryFormat(self.database)
+            if binary_format.supports(self.server_info["program_name"],
+                self.server_info["program_version"],
+                self.server_info["database_version"]):
+                return binary_format
+        return None
+
+    def supports_delta_transfer(self):
+        return self.delta_transfer and \
+            self.server_info.get("supports_delta_transfer", False) and \
+            self.binary_format_for_server() is not None
+
     def supports_binary_upload(self):
         return self.capabilities == "mnemosyne_dynamic_cards" and \
             self.interested_in_old_reps and self.store_pregenerated_data and \
@@ -277,10 +379,12 @@ class Client(Partner):
         client_info["database_name"] = self.database.name()
         client_info["database_version"] = self.database.version
         client_info["capabilities"] = self.capabilities
+        client_info["compression"] = self.compression
         client_info["partners"] = self.database.partners()
         client_info["interested_in_old_reps"] = self.interested_in_old_reps
         client_info["store_pregenerated_data"] = self.store_pregenerated_data
         client_info["upload_science_logs"] = self.upload_science_logs
+        client_info["supports_resume"] = True
         # Signal if the database is empty, so that the server does not give a
         # spurious sync cycle warning if the client database was reset.
         client_info["is_database_empty"] = self.database.is_empty()
@@ -292,10 +396,9 @@ class Client(Partner):
         # if we can't login.
         try:
             self.request_connection()
-            self.con.request("PUT", self.url("/login"),
+            response = self.transport.request("PUT", self.url("/login"),
                 self.text_format.repr_partner_info(client_info).\
                 encode("utf-8") + b"\n")
-            response = self.con.getresponse()
         except socket.gaierror:
             raise SyncError("Could not find server!")
         except socket.timeout:
@@ -346,10 +449,9 @@ class Client(Partner):
     def get_server_check_media_files(self):
         self.ui.set_progress_text("Asking server to check for updated media files...")
         self.request_connection()
-        self.con.request("GET", self.url(\
+        response = self.transport.request("GET", self.url(\
             "/server_check_media_files?" + \
             "session_token=%s" % (self.server_info["session_token"], )))
-        response = self.con.getresponse()
         self._check_response_for_errors(response, can_consume_response=True)
 
     def put_client_log_entries(self):
@@ -360,8 +462,11 @@ class Client(Partner):
         However, chunked uploads are in the grey area of the WSGI spec and are
         also not supported by older HTTP 1.0 proxies (e.g. Squid before 3.1).
         Therefore, as a compromise, rather then streaming chunks in a single
-        message, we break up the entire log in different messages of size
-        self.BUFFER_SIZE.
+        message, we break up the entire log in different messages.
+
+        In order not to wait for a round trip after each message, several
+        messages are kept in flight if the transport supports pipelining, and
+        the size of the messages grows with the throughput.
 
         """
 
@@ -372,59 +477,140 @@ class Client(Partner):
         self.ui.set_progress_text("Sending log entries...")
         self.ui.set_progress_range(number_of_entries)
         self.ui.set_progress_update_interval(number_of_entries/20)
-        buffer = ""
+        self.log_entries_acknowledged = 0
+        self.log_entries_conflict = False
+        self.resume(self._put_client_log_entries, number_of_entries)
+        if self.log_entries_conflict:
+            return "conflict"
+        return "OK"
+
+    def _put_client_log_entries(self, number_of_entries):
+
+        """Sends the log entries which the server did not acknowledge yet.
+        Servers supporting resume get told the index of the first entry in
+        each message, so that they can skip the entries of a message they
+        received before, but for which the response got lost.
+
+        """
+
+        url = self.url("/client_log_entries?session_token=%s" \
+            % (self.server_info["session_token"],))
+        header = self.text_format.log_entries_header(number_of_entries).\
+            encode("utf-8")
+        footer = self.text_format.log_entries_footer().encode("utf-8")
+        headers = {}
+        if self.compression_used() == "gzip":
+            headers["content-encoding"] = "gzip"
+        # Each message starts with the same header, so we only need to reset
+        # the buffer to the header after sending it.
+        buffer = bytearray(header)
+        batch_size = self.BUFFER_SIZE
+        batches_in_flight = collections.deque()  # Sizes in bytes and entries.
+        bytes_acknowledged = 0
+        start_time = time.time()
+        batch_start = self.log_entries_acknowledged
+        if batch_start:
+            self.ui.set_progress_value(batch_start)
         count = 0
         for log_entry in self.database.log_entries_to_sync_for(\
                 self.server_info["machine_id"]):
-            buffer += self.text_format.repr_log_entry(log_entry)
             count += 1
+            if count <= batch_start:
+                continue  # Acknowledged before the connection dropped.
+            buffer += self.text_format.repr_log_entry(log_entry).\
+                encode("utf-8")
             self.ui.increase_progress(1)
-            if len(buffer) > self.BUFFER_SIZE or count == number_of_entries:
-                buffer = \
-                    self.text_format.log_entries_header(number_of_entries) \
-                    + buffer + self.text_format.log_entries_footer()
-                self.request_connection()
-                self.con.request("PUT", self.url(\
-                    "/client_log_entries?session_token=%s" \
-                    % (self.server_info["session_token"],)),
-                    buffer.encode("utf-8"))
-                buffer = ""
-                response = self.con.getresponse()
-                self._check_response_for_errors(response,
-                    can_consume_response=False)
-                response = response.read()
-                message, traceback = self.text_format.parse_message(response)
-                message = message.lower()
-                if "server error" in message:
-                    raise SeriousSyncError(message)
-                if "conflict" in message:
-                    return "conflict"
-        return "OK"
+            if len(buffer) - len(header) <= batch_size and \
+                count != number_of_entries:
+                continue
+            buffer += footer
+            while len(batches_in_flight) >= \
+                self.transport.max_pending_requests():
+                self.log_entries_conflict |= self._get_log_entries_response()
+                size, entries = batches_in_flight.popleft()
+                self.log_entries_acknowledged += entries
+                bytes_acknowledged += size
+                rate = bytes_acknowledged / \
+                    max(time.time() - start_time, 0.001)
+                batch_size = int(min(max(rate * self.LOG_BATCH_TIME,
+                    self.BUFFER_SIZE), self.MAX_LOG_BATCH_SIZE))
+            self.request_connection()
+            batch_url = url
+            if self.server_info.get("supports_resume", False):
+                batch_url += "&offset=%d" % (batch_start, )
+            if headers:
+                self.transport.send_request("PUT", batch_url,
+                    gzip.compress(buffer, compresslevel=6), headers)
+            else:
+                self.transport.send_request("PUT", batch_url, buffer)
+            batches_in_flight.append((len(buffer), count - batch_start))
+            batch_start = count
+            del buffer[len(header):]
+        while batches_in_flight:
+            self.log_entries_conflict |= self._get_log_entries_response()
+            size, entries = batches_in_flight.popleft()
+            self.log_entries_acknowledged += entries
+
+    def _get_log_entries_response(self):
+
+        """Returns whether the server reported a conflict."""
+
+        response = self.transport.get_response()
+        self._check_response_for_errors(response, can_consume_response=False)
+        message, traceback = self.text_format.parse_message(response.read())
+        message = message.lower()
+        if "server error" in message:
+            raise SeriousSyncError(message)
+        return "conflict" in message
 
     def put_client_entire_database_binary(self):
         self.ui.set_progress_text("Sending entire binary database...")
-        for BinaryFormat in BinaryFormats:
-            binary_format = BinaryFormat(self.database)
-            if binary_format.supports(self.server_info["program_name"],
-                self.server_info["program_version"],
-                self.server_info["database_version"]):
-                assert self.store_pregenerated_data == True
-                assert self.interested_in_old_reps == True
-                filename = binary_format.binary_filename(\
-                    self.store_pregenerated_data, self.interested_in_old_reps)
-                break
+        binary_format = self.binary_format_for_server()
+        assert self.store_pregenerated_data == True
+        assert self.interested_in_old_reps == True
+        binary_filename = binary_format.binary_filename(\
+            self.store_pregenerated_data, self.interested_in_old_reps)
+        headers = {}
+        # Only send the blocks which changed w.r.t. the server database.
+        block_hashes = None
+        if self.supports_delta_transfer() and \
+            not self.server_info["is_database_empty"]:
+            block_hashes = self.get_server_database_block_hashes()
+            headers["mnemosyne-delta"] = "1"
+        if self.compression_used() == "gzip":
+            headers["content-encoding"] = "gzip"
+        filename = self.binary_file_to_send(binary_format, binary_filename,
+            block_hashes, self.compression_used())
         self.request_connection()
-        self.con.putrequest("PUT",
+        response = self.upload_binary_file(\
                 self.url("/client_entire_database_binary?session_token=%s" \
-                % (self.server_info["session_token"], )))
-        self.con.putheader("content-length", os.path.getsize(filename))
-        self.con.endheaders()
-        for buffer in self.stream_binary_file(filename):
-            self.con.send(buffer)
-        binary_format.clean_up()
-        self._check_response_for_errors(self.con.getresponse())
-
-    def _download_log_entries(self, stream):
+                % (self.server_info["session_token"], )), filename,
+                headers=headers)
+        if filename == binary_filename:
+            binary_format.clean_up()
+        else:
+            os.remove(filename)
+        self._check_response_for_errors(response)
+
+    def get_server_database_block_hashes(self):
+        self.request_connection()
+        response = self.transport.request("GET", self.url(\
+            "/server_database_block_hashes?session_token=%s" \
+            % (self.server_info["session_token"], )))
+        self._check_response_for_errors(response, can_consume_response=False)
+        return response.read()
+
+    def put_client_database_block_hashes(self, block_hashes):
+        self.request_connection()
+        response = self.transport.request("PUT", self.url(\
+            "/client_database_block_hashes?session_token=%s" \
+            % (self.server_info["session_token"], )), block_hashes)
+        self._check_response_for_errors(response)
+
+    def _download_log_entries(self, response):
+        stream = response
+        if response.getheader("content-encoding") == "gzip":
+            stream = gzip.GzipFile(fileobj=response, mode="rb")
         element_loop = self.text_format.parse_log_entries(stream)
         number_of_entries = int(next(element_loop))
         if number_of_entries == 0:
@@ -441,10 +627,10 @@ class Client(Partner):
         if self.upload_science_logs:
             self.database.dump_to_science_log()
         self.request_connection()
-        self.con.request("GET", self.url(\
+        response = self.transport.request("GET", self.url(\
             "/server_log_entries?session_token=%s" \
-            % (self.server_info["session_token"], )))
-        response = self.con.getresponse()
+            % (self.server_info["session_token"], )),
+            headers=self.accept_encoding_headers())
         self._check_response_for_errors(response, can_consume_response=False)
         self._download_log_entries(response)
         # The server will always upload the science logs of the log events
@@ -458,9 +644,10 @@ class Client(Partner):
         # partnerships, as required.
         self.database.new(filename)
         self.request_connection()
-        self.con.request("GET", self.url("/server_entire_database?" + \
-            "session_token=%s" % (self.server_info["session_token"], )))
-        response = self.con.getresponse()
+        response = self.transport.request("GET", self.url(\
+            "/server_entire_database?" + \
+            "session_token=%s" % (self.server_info["session_token"], )),
+            headers=self.accept_encoding_headers())
         self._check_response_for_errors(response, can_consume_response=False)
         self._download_log_entries(response)
         self.database.load(filename)
@@ -475,15 +662,29 @@ class Client(Partner):
     def get_server_entire_database_binary(self):
         self.ui.set_progress_text("Getting entire binary database...")
         filename = self.database.path()
+        # If we still have an older copy of the database, e.g. when resolving
+        # conflicts, we only need to get the blocks which changed.
+        binary_format = self.binary_format_for_server()
+        is_delta = self.supports_delta_transfer() and \
+            not self.database.is_empty()
+        if is_delta:
+            self.ui.set_progress_text("Comparing databases...")
+            self.database.release_connection()
+            self.put_client_database_block_hashes(\
+                binary_format.block_hashes(filename))
+            self.ui.set_progress_text("Getting entire binary database...")
         self.database.abandon()
         self.request_connection()
-        self.con.request("GET", self.url(\
+        response = self.transport.request("GET", self.url(\
             "/server_entire_database_binary?" + \
-            "session_token=%s" % (self.server_info["session_token"], )))
-        response = self.con.getresponse()
+            "session_token=%s" % (self.server_info["session_token"], )),
+            headers=self.accept_encoding_headers())
         self._check_response_for_errors(response, can_consume_response=False)
         file_size = int(response.getheader("mnemosyne-content-length"))
-        self.download_binary_file(response, filename, file_size)
+        downloaded_filename = self.binary_file_to_receive(filename,
+            response.getheader("content-encoding"), is_delta)
+        self.download_binary_file(response, downloaded_filename, file_size)
+        self.finish_binary_file(binary_format, downloaded_filename, filename)
         self.database.load(filename)
         self.database.create_if_needed_partnership_with(\
             self.server_info["machine_id"])
@@ -492,10 +693,9 @@ class Client(Partner):
     def get_server_generate_log_entries_for_settings(self):
         self.ui.set_progress_text("Getting settings...")
         self.request_connection()
-        self.con.request("GET", self.url(\
+        response = self.transport.request("GET", self.url(\
             "/server_generate_log_entries_for_settings?" + \
             "session_token=%s" % (self.server_info["session_token"], )))
-        response = self.con.getresponse()
         self._check_response_for_errors(response, can_consume_response=True)
 
     def put_client_media_files(self, reupload_all=False):
@@ -510,6 +710,8 @@ class Client(Partner):
             filenames = [subdir + "/" + filename for filename in \
                          self.database.media_filenames_to_sync_for(\
                          self.server_info["machine_id"])]
+        if self.server_info.get("supports_media_manifest", False):
+            filenames = self.put_client_media_manifest(filenames)
         # Calculate file size and upload.
         total_size = 0
         for filename in filenames:
@@ -518,6 +720,35 @@ class Client(Partner):
         self.put_client_binary_files(filenames, total_size)
         self.ui.close_progress()
 
+    def put_client_media_manifest(self, filenames):
+
+        """Sends the hashes of the media files we want to upload, and returns
+        the names of those the server does not have yet.
+
+        """
+
+        if not filenames:
+            return filenames
+        manifest = []
+        for filename in filenames:
+            manifest.append("%s\t%s" % (self.database.media_file_hash(\
+                filename.split("/", 1)[1]), filename))
+        self.request_connection()
+        response = self.transport.request("PUT", self.url(\
+            "/client_media_manifest?session_token=%s" \
+            % (self.server_info["session_token"], )),
+            "\n".join(manifest).encode("utf-8"))
+        self._check_response_for_errors(response, can_consume_response=False)
+        needed_filenames = response.read()
+        if not needed_filenames:
+            return []
+        if needed_filenames.startswith(b"<"):  # Error message.
+            message, traceback = self.text_format.parse_message(\
+                needed_filenames)
+            raise SeriousSyncError(message + "\n" + traceback)
+        return [str(filename, "utf-8") for filename in \
+            needed_filenames.split(b"\n")]
+
     def put_client_archive_files(self):
         archive_dir = os.path.join(self.database.data_dir(), "archive")
         if not os.path.exists(archive_dir):
@@ -541,23 +772,24 @@ class Client(Partner):
         self.ui.set_progress_range(total_size)
         self.ui.set_progress_update_interval(total_size/50)
         for filename in filenames:
-            self.request_connection()
-            self.con.putrequest("PUT",
-                self.url("/client_binary_file?session_token=%s&filename=%s" \
-                % (self.server_info["session_token"],
-                urllib.parse.quote(filename.encode("utf-8"), ""))))
-            full_path = os.path.join(self.database.data_dir(), filename)
-            file_size = os.path.getsize(full_path)
-            self.con.putheader("content-length", file_size)
-            self.con.endheaders()
-            for buffer in self.stream_binary_file(full_path, progress_bar=False):
-                self.con.send(buffer)
-                self.ui.increase_progress(len(buffer))
-            self._check_response_for_errors(self.con.getresponse())
+            self.resume(self.put_client_binary_file, filename)
         self.ui.set_progress_value(total_size)
 
+    def put_client_binary_file(self, filename):
+        self.request_connection()
+        full_path = os.path.join(self.database.data_dir(), filename)
+        response = self.upload_binary_file(\
+            self.url("/client_binary_file?session_token=%s&filename=%s" \
+            % (self.server_info["session_token"],
+            urllib.parse.quote(filename.encode("utf-8"), ""))),
+            full_path, progress_bar=False)
+        self._check_response_for_errors(response)
+
     def get_server_media_files(self, redownload_all=False):
         self.ui.set_progress_text("Getting list of media files to download...")
+        if self.server_info.get("supports_media_manifest", False):
+            self.get_server_media_manifest(redownload_all)
+            return
         # Get list of names of all media files to download.
         # Filenames are relative to the data_dir.
         media_url = "/server_media_filenames?session_token=%s" \
@@ -565,8 +797,7 @@ class Client(Partner):
         if redownload_all:
              media_url += "&redownload_all=1"
         self.request_connection()
-        self.con.request("GET", self.url(media_url))
-        response = self.con.getresponse()
+        response = self.transport.request("GET", self.url(media_url))
         self._check_response_for_errors(response, can_consume_response=False)
         total_size = int(response.getheader("mnemosyne-content-length"))
         if total_size == 0:
@@ -581,6 +812,59 @@ class Client(Partner):
         self.get_server_binary_files(filenames, total_size)
         self.ui.close_progress()
 
+    def get_server_media_manifest(self, redownload_all=False):
+
+        """Only downloads the media files of which we don't have the contents
+        yet, and copies the others from the local files with the same hash.
+
+        """
+
+        media_url = "/server_media_manifest?session_token=%s" \
+            % (self.server_info["session_token"], )
+        if redownload_all:
+             media_url += "&redownload_all=1"
+        self.request_connection()
+        response = self.transport.request("GET", self.url(media_url))
+        self._check_response_for_errors(response, can_consume_response=False)
+        manifest = response.read()
+        if not manifest:
+            return
+        if manifest.startswith(b"<"):  # Error message.
+            message, traceback = self.text_format.parse_message(manifest)
+            raise SeriousSyncError(message + "\n" + traceback)
+        self.ui.set_progress_text("Checking media files...")
+        filenames = []
+        total_size = 0
+        # Files with the same contents as a file we download in this sync.
+        copies = []
+        downloaded_filename_for_hash = {}
+        for line in str(manifest, "utf-8").split("\n"):
+            hash, size, filename = line.split("\t", 2)
+            # Make sure a malicious server cannot overwrite anything outside
+            # of the media directory.
+            filename = filename.replace("../", "").replace("..\\", "")
+            filename = filename.replace("/..", "").replace("\\..", "")
+            media_filename = filename.split("/", 1)[1]
+            if self.database.media_file_hash(media_filename) == hash:
+                continue
+            if hash in downloaded_filename_for_hash:
+                copies.append((downloaded_filename_for_hash[hash],
+                    media_filename))
+                continue
+            local_filename = self.database.media_filename_with_hash(hash)
+            if local_filename:
+                self.database.copy_media_file(local_filename, media_filename)
+                continue
+            downloaded_filename_for_hash[hash] = media_filename
+            filenames.append(filename)
+            total_size += int(size)
+        if filenames:
+            self.ui.set_progress_text("Getting media files...")
+            self.get_server_binary_files(filenames, total_size)
+        for source, destination in copies:
+            self.database.copy_media_file(source, destination)
+        self.ui.close_progress()
+
     def get_server_archive_files(self):
         self.ui.set_progress_text("Getting list of archive files to download...")
         # Get list of names of all archive files to download.
@@ -588,8 +872,7 @@ class Client(Partner):
         archive_url = "/server_archive_filenames?session_token=%s" \
             % (self.server_info["session_token"], )
         self.request_connection()
-        self.con.request("GET", self.url(archive_url))
-        response = self.con.getresponse()
+        response = self.transport.request("GET", self.url(archive_url))
         self._check_response_for_errors(response, can_consume_response=False)
         total_size = int(response.getheader("mnemosyne-content-length"))
         if total_size == 0:
@@ -608,40 +891,45 @@ class Client(Partner):
         self.ui.set_progress_range(total_size)
         self.ui.set_progress_update_interval(total_size/50)
         for filename in filenames:
-            self.request_connection()
-            self.con.request("GET",
-                self.url("/server_binary_file?session_token=%s&filename=%s" \
-                % (self.server_info["session_token"],
-                urllib.parse.quote(filename.encode("utf-8"), ""))))
-            response = self.con.getresponse()
-            self._check_response_for_errors(response,
-                can_consume_response=False)
-            file_size = int(response.getheader("mnemosyne-content-length"))
-            # Make sure a malicious server cannot overwrite anything outside
-            # of the media directory.
-            filename = filename.replace("../", "").replace("..\\", "")
-            filename = filename.replace("/..", "").replace("\\..", "")
-            filename = os.path.join(self.database.data_dir(), filename)
-            self.download_binary_file(response, filename,
-                                      file_size, progress_bar=False)
+            file_size = self.resume(self.get_server_binary_file, filename)
             self.ui.increase_progress(file_size)
         self.ui.set_progress_value(total_size)
 
+    def get_server_binary_file(self, filename):
+        self.request_connection()
+        response = self.transport.request("GET",
+            self.url("/server_binary_file?session_token=%s&filename=%s" \
+            % (self.server_info["session_token"],
+            urllib.parse.quote(filename.encode("utf-8"), ""))))
+        self._check_response_for_errors(response,
+            can_consume_response=False)
+        file_size = int(response.getheader("mnemosyne-content-length"))
+        # Make sure a malicious server cannot overwrite anything outside
+        # of the media directory.
+        filename = filename.replace("../", "").replace("..\\", "")
+        filename = filename.replace("/..", "").replace("\\..", "")
+        filename = os.path.join(self.database.data_dir(), filename)
+        self.download_binary_file(response, filename,
+                                  file_size, progress_bar=False)
+        return file_size
+
     def get_sync_cancel(self):
         self.ui.set_progress_text("Cancelling sync...")
         self.request_connection()
         session_token = self.server_info.get("session_token", "none")
-        self.con.request("GET", self.url("/sync_cancel?session_token=%s" \
-            % (session_token, )), headers={"connection": "close"})
-        self._check_response_for_errors(self.con.getresponse())
+        response = self.transport.request("GET", self.url(\
+            "/sync_cancel?session_token=%s" % (session_token, )),
+            headers={"connection": "close"})
+        self._check_response_for_errors(response)
 
     def get_sync_finish(self):
         self.ui.set_progress_text("Finishing sync...")
         self.request_connection()
-        self.con.request("GET", self.url("/sync_finish?session_token=%s" \
+        response = self.transport.request("GET", self.url(\
+            "/sync_finish?session_token=%s" \
             % (self.server_info["session_token"], )),
             headers={"connection": "close"})
-        self._check_response_for_errors(self.con.getresponse())
+        self._check_response_for_errors(response)
         # Only update after we are sure there have been no errors.
         self.database.update_last_log_index_synced_for(\
             self.server_info["machine_id"])
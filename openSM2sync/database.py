@@ -198,6 +198,28 @@ class Database(object):
     def all_media_filenames(self):
         raise NotImplementedError
 
+    def media_file_hash(self, filename):
+
+        """Content hash of 'filename', relative to the media dir, or "0" if it
+        does not exist. Used to decide which media files need to be sent
+        across, so all partners need to use the same (md5) hash.
+
+        """
+
+        raise NotImplementedError
+
+    def media_filename_with_hash(self, hash):
+
+        """Returns the name of a local media file with contents 'hash', or
+        None if there is no such file.
+
+        """
+
+        raise NotImplementedError
+
+    def copy_media_file(self, source, destination):
+        raise NotImplementedError
+
     def apply_log_entry(self, log_entry):
         raise NotImplementedError
 
@@ -3,6 +3,8 @@
 #
 
 import os
+import gzip
+import shutil
 from openSM2sync.utils import normalise_path
 
 
@@ -10,9 +12,87 @@ class Partner(object):
 
     """Common code between Client and Server."""
 
+    # Compression schemes supported for log entries and binary databases.
+    # Partners which don't know about compression (or set this to an empty
+    # string) keep using the uncompressed format.
+    compression = "gzip"
+    # Only transfer the changed blocks when sending a binary database to a
+    # partner which already has an older copy of it.
+    delta_transfer = True
+
     def __init__(self, ui):
         self.ui = ui
 
+    def compress_file(self, filename):
+
+        """Returns the name of the compressed copy, which the caller needs to
+        remove when done.
+
+        """
+
+        compressed_filename = filename + ".gz"
+        with open(filename, "rb") as source:
+            with gzip.open(compressed_filename, "wb", compresslevel=6) \
+                as destination:
+                shutil.copyfileobj(source, destination, 1024*1024)
+        return compressed_filename
+
+    def decompress_file(self, compressed_filename, filename):
+
+        """Decompresses 'compressed_filename' to 'filename' and removes it."""
+
+        with gzip.open(compressed_filename, "rb") as source:
+            with open(filename, "wb") as destination:
+                shutil.copyfileobj(source, destination, 1024*1024)
+        os.remove(compressed_filename)
+
+    def binary_file_to_send(self, binary_format, filename, block_hashes,
+                            compression):
+
+        """Returns the file to send instead of 'filename', i.e. a delta
+        against the old file of the partner if it sent us 'block_hashes',
+        compressed if needed. If this is not 'filename' itself, 'binary_format'
+        has already been cleaned up and the caller needs to remove the file
+        when done.
+
+        """
+
+        if block_hashes:
+            self.ui.set_progress_text("Comparing databases...")
+            delta_filename = filename + ".delta"
+            binary_format.create_delta(filename, block_hashes, delta_filename)
+            filename = delta_filename
+        if compression == "gzip":
+            compressed_filename = self.compress_file(filename)
+            if block_hashes:
+                os.remove(filename)
+            filename = compressed_filename
+        if block_hashes or compression == "gzip":
+            binary_format.clean_up()
+        return filename
+
+    def binary_file_to_receive(self, filename, compression, is_delta):
+
+        """Returns where to download the binary file which
+        'finish_binary_file' turns into 'filename'.
+
+        """
+
+        if is_delta:
+            filename += ".delta"
+        if compression == "gzip":
+            filename += ".gz"
+        return filename
+
+    def finish_binary_file(self, binary_format, downloaded_filename,
+                           filename):
+        if downloaded_filename.endswith(".gz"):
+            self.decompress_file(downloaded_filename, downloaded_filename[:-3])
+            downloaded_filename = downloaded_filename[:-3]
+        if downloaded_filename != filename:
+            self.ui.set_progress_text("Applying database delta...")
+            binary_format.apply_delta(downloaded_filename, filename)
+
     def stream_binary_file(self, filename, progress_bar=True):
         filename = normalise_path(filename)
         binary_file = open(filename, "rb")
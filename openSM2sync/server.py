@@ -6,7 +6,9 @@
 import os
 import sys
 import cgi
+import gzip
 import time
+import zlib
 import types
 import select
 import socket
@@ -17,7 +19,7 @@ import tempfile
 from .partner import Partner
 from .log_entry import EventTypes
 from .text_formats.xml_format import XMLFormat
-from .utils import traceback_string, rand_uuid
+from .utils import traceback_string, rand_uuid, SeriousSyncError
 import collections
 
 
@@ -49,6 +51,8 @@ class Session(object):
         self.client_o_ids = []
         self.number_of_client_entries = None
         self.apply_error = None
+        self.compression = None  # Negotiated during login.
+        self.client_block_hashes = None  # For delta binary transfers.
         self.expires = time.time() + 60*60
         self.backup_file = self.database.backup()
         self.database.set_sync_partner_info(client_info)
@@ -86,6 +90,12 @@ class Server(Partner):
     # cannot be edited.
     check_for_edited_local_media_files = False
 
+    # Methods which send compressed responses to clients supporting it. The
+    # binary database gets compressed as a file beforehand, so that the
+    # client knows its size, the log entries are compressed on the fly.
+    compressed_methods = ["get_server_log_entries",
+        "get_server_entire_database", "get_server_entire_database_binary"]
+
     dont_cause_conflict = set([EventTypes.STARTED_PROGRAM,
         EventTypes.STOPPED_PROGRAM, EventTypes.STARTED_SCHEDULER,
         EventTypes.LOADED_DATABASE, EventTypes.SAVED_DATABASE,
@@ -130,6 +140,14 @@ class Server(Partner):
         if mnemosyne_content_length is not None:
             response_headers.append(\
                 ("mnemosyne-content-length", str(mnemosyne_content_length)))
+        if method in self.compressed_methods:
+            # The session is gone if an error occurred.
+            session = self.sessions.get(args["session_token"])
+            if session and session.compression:
+                response_headers.append(\
+                    ("content-encoding", session.compression))
+                if method != "get_server_entire_database_binary":
+                    data = self.compressed_stream(session.compression, data)
         if type(data) == bytes or type(data) == str:
             response_headers.append(("content-length", str(len(data))))
             start_response("200 OK", response_headers)
@@ -148,6 +166,31 @@ class Server(Partner):
                 start_response("200 OK", response_headers)
                 return data
 
+    def request_body(self, environ):
+
+        """Returns a file object with the (decompressed) body of the request."""
+
+        if environ.get("HTTP_CONTENT_ENCODING") == "gzip":
+            return gzip.GzipFile(fileobj=environ["wsgi.input"], mode="rb")
+        return environ["wsgi.input"]
+
+    def compressed_stream(self, compression, data):
+
+        """Compresses the chunks from 'data' on the fly. This also covers
+        error messages yielded halfway, so that the client can still read them.
+        Each chunk is flushed, so that the client can start parsing it while
+        e.g. 'get_server_log_entries' goes on applying the client log entries
+        (sync flushes keep the dictionary, so this costs very little).
+
+        """
+
+        compressor = zlib.compressobj(6, zlib.DEFLATED, 16 + zlib.MAX_WBITS)
+        for buffer in data:
+            if buffer:
+                yield compressor.compress(buffer) + \
+                    compressor.flush(zlib.Z_SYNC_FLUSH)
+        yield compressor.flush()
+
     def get_method(self, environ):
         # Convert e.g. GET /foo_bar into get_foo_bar.
         method = (environ["REQUEST_METHOD"] + \
@@ -234,6 +277,20 @@ class Server(Partner):
         for session_token in self.sessions.keys():
             self.terminate_session_with_token(session_token)
 
+    def handle_connection_loss(self, session, traceback_string):
+
+        """The connection dropped halfway through a request. Clients which
+        support it will reconnect and repeat the request, so we hold on to
+        their session. If they never come back, the session expires as usual.
+
+        """
+
+        if not session.client_info.get("supports_resume", False):
+            return self.handle_error(session, traceback_string)
+        self.ui.close_progress()
+        return self.text_format.repr_message("Server error: connection lost",
+            traceback_string).encode("utf-8")
+
     def handle_error(self, session=None, traceback_string=None):
         self.ui.close_progress()
         if session:
@@ -354,6 +411,12 @@ class Server(Partner):
             session.database.create_if_needed_partnership_with(\
                 client_info["machine_id"])
             session.database.merge_partners(client_info["partners"])
+            # Only compress if the client asks for it, which older clients
+            # don't do.
+            client_compression = client_info.get("compression")
+            if self.compression and type(client_compression) == str and \
+                self.compression in client_compression.split(","):
+                session.compression = self.compression
             # Note that we need to send 'user_id' to the client as well, so
             # that the client can make sure the 'user_id's (used to label the
             # anonymous uploaded logs) are consistent across machines.
@@ -366,7 +429,14 @@ class Server(Partner):
                 "session_token": session.token,
                 "supports_binary_transfer": \
                     self.supports_binary_transfer(session),
-                "is_database_empty": session.database.is_empty()}
+                "is_database_empty": session.database.is_empty(),
+                "supports_media_manifest": True,
+                "supports_resume": True}
+            if self.delta_transfer:
+                server_info["supports_delta_transfer"] = \
+                    server_info["supports_binary_transfer"]
+            if session.compression:
+                server_info["compression"] = session.compression
             # Signal if we need a sync reset after restoring from a backup.
             server_info["sync_reset_needed"] = \
                 session.database.is_sync_reset_needed(\
@@ -402,19 +472,36 @@ class Server(Partner):
         except:
             return self.handle_error(session, traceback_string())
 
-    def put_client_log_entries(self, environ, session_token):
+    def put_client_log_entries(self, environ, session_token, offset=None):
         try:
             session = self.sessions[session_token]
             self.ui.set_progress_text("Receiving log entries...")
-            socket = environ["wsgi.input"]
+            socket = self.request_body(environ)
             element_loop = self.text_format.parse_log_entries(socket)
-            session.number_of_client_entries = int(next(element_loop))
+            # Only take the message into account once it has arrived
+            # completely, so that a resuming client can simply send it again.
+            try:
+                number_of_client_entries = int(next(element_loop))
+                log_entries = list(element_loop)
+            except:
+                if offset is None:
+                    raise
+                return self.handle_connection_loss(session,
+                    traceback_string())
+            session.number_of_client_entries = number_of_client_entries
             if session.number_of_client_entries == 0:
                 return self.text_format.repr_message("OK").encode("utf-8")
             self.ui.set_progress_range(session.number_of_client_entries)
             self.ui.set_progress_update_interval(\
                 session.number_of_client_entries/50)
-            for log_entry in element_loop:
+            # Skip the entries we already got, in case the client did not
+            # receive our response to an earlier copy of this message.
+            if offset is not None:
+                already_received = len(session.client_log) - int(offset)
+                if already_received < 0:
+                    raise SeriousSyncError("Missing log entries.")
+                log_entries = log_entries[already_received:]
+            for log_entry in log_entries:
                 session.client_log.append(log_entry)
                 if log_entry["type"] not in self.dont_cause_conflict:
                     if "fname" in log_entry:
@@ -450,8 +537,13 @@ class Server(Partner):
             filename = session.database.path()
             session.database.abandon()
             file_size = int(environ["CONTENT_LENGTH"])
+            downloaded_filename = self.binary_file_to_receive(filename,
+                environ.get("HTTP_CONTENT_ENCODING"),
+                is_delta=environ.get("HTTP_MNEMOSYNE_DELTA") == "1")
             self.download_binary_file(\
-                environ["wsgi.input"], filename, file_size)
+                environ["wsgi.input"], downloaded_filename, file_size)
+            self.finish_binary_file(self.binary_format_for(session),
+                downloaded_filename, filename)
             session.database.load(filename)
             session.database.change_user_id(session.client_info["user_id"])
             session.database.create_if_needed_partnership_with(\
@@ -524,14 +616,38 @@ class Server(Partner):
         except:
             yield self.handle_error(session, traceback_string())
 
+    def get_server_database_block_hashes(self, environ, session_token):
+        try:
+            session = self.sessions[session_token]
+            self.ui.set_progress_text("Comparing databases...")
+            session.database.release_connection()
+            return self.binary_format_for(session).block_hashes(\
+                session.database.path())
+        except:
+            return self.handle_error(session, traceback_string())
+
+    def put_client_database_block_hashes(self, environ, session_token):
+        try:
+            session = self.sessions[session_token]
+            session.client_block_hashes = environ["wsgi.input"].read(\
+                int(environ["CONTENT_LENGTH"]))
+            return self.text_format.repr_message("OK").encode("utf-8")
+        except:
+            return self.handle_error(session, traceback_string())
+
     def get_server_entire_database_binary(self, environ, session_token):
         try:
             session = self.sessions[session_token]
             self.ui.set_progress_text("Sending entire binary database...")
             binary_format = self.binary_format_for(session)
-            filename = binary_format.binary_filename(\
+            binary_filename = binary_format.binary_filename(\
                 session.client_info["store_pregenerated_data"],
                 session.client_info["interested_in_old_reps"])
+            # Create the delta and compress beforehand, so that the client
+            # knows the size.
+            filename = self.binary_file_to_send(binary_format,
+                binary_filename, session.client_block_hashes,
+                session.compression)
             global mnemosyne_content_length
             mnemosyne_content_length = os.path.getsize(filename)
             # Since we want to modify the headers in this function, we cannot
@@ -544,7 +660,10 @@ class Server(Partner):
                 try:
                     for buffer in self.stream_binary_file(filename):
                         yield buffer
-                    binary_format.clean_up()
+                    if filename == binary_filename:
+                        binary_format.clean_up()
+                    else:
+                        os.remove(filename)
                 except:
                     yield self.handle_error(session, traceback_string())
             return content()
@@ -574,8 +693,14 @@ class Server(Partner):
             filename = os.path.join(session.database.data_dir(), filename)
             # We don't have progress bars here, as 'put_client_binary_file'
             # gets called too frequently, and this would slow down the UI.
-            self.download_binary_file(environ["wsgi.input"], filename, size,
-                progress_bar=False)
+            try:
+                self.download_binary_file(environ["wsgi.input"], filename,
+                    size, progress_bar=False)
+                if os.path.getsize(filename) != size:
+                    raise IOError("Incomplete file: " + filename)
+            except:
+                return self.handle_connection_loss(session,
+                    traceback_string())
             return self.text_format.repr_message("OK").encode("utf-8")
         except:
             return self.handle_error(session, traceback_string())
@@ -606,6 +731,71 @@ class Server(Partner):
         except:
             return self.handle_error(session, traceback_string())
 
+    def get_server_media_manifest(self, environ, session_token,
+                                  redownload_all=False):
+
+        """Like 'get_server_media_filenames', but sends lines with the hash,
+        size and name of each file, so that the client only needs to
+        download the contents it does not have yet.
+
+        """
+
+        try:
+            session = self.sessions[session_token]
+            self.ui.set_progress_text("Sending media files...")
+            if redownload_all in ["1", "True", "true"]:
+                filenames = session.database.all_media_filenames()
+            else:
+                filenames = session.database.media_filenames_to_sync_for(\
+                    session.client_info["machine_id"])
+            subdir = os.path.basename(session.database.media_dir())
+            manifest = []
+            for filename in filenames:
+                manifest.append("%s\t%d\t%s" % \
+                    (session.database.media_file_hash(filename),
+                    os.path.getsize(os.path.join(\
+                    session.database.media_dir(), filename)),
+                    subdir + "/" + filename.replace("\\", "/")))
+            return "\n".join(manifest).encode("utf-8")
+        except:
+            return self.handle_error(session, traceback_string())
+
+    def put_client_media_manifest(self, environ, session_token):
+
+        """Receives lines with the hash and name of the media files the
+        client wants to upload, and replies with the names of the files we
+        actually need. Files of which we have a copy under a different name
+        are copied locally.
+
+        """
+
+        try:
+            session = self.sessions[session_token]
+            self.ui.set_progress_text("Checking media files...")
+            manifest = environ["wsgi.input"].read(\
+                int(environ["CONTENT_LENGTH"])).decode("utf-8")
+            needed_filenames = []
+            for line in manifest.split("\n"):
+                if not line:
+                    continue
+                hash, filename = line.split("\t", 1)
+                # Make sure a malicious client cannot access anything outside
+                # of the media directory.
+                filename = filename.replace("../", "").replace("..\\", "")
+                filename = filename.replace("/..", "").replace("\\..", "")
+                media_filename = filename.split("/", 1)[1]
+                if session.database.media_file_hash(media_filename) == hash:
+                    continue
+                local_filename = session.database.media_filename_with_hash(hash)
+                if local_filename:
+                    session.database.copy_media_file(\
+                        local_filename, media_filename)
+                else:
+                    needed_filenames.append(filename)
+            return "\n".join(needed_filenames).encode("utf-8")
+        except:
+            return self.handle_error(session, traceback_string())
+
     def get_server_archive_filenames(self, environ, session_token):
         try:
             session = self.sessions[session_token]
@@ -655,6 +845,10 @@ class Server(Partner):
                     for buffer in self.stream_binary_file(\
                         filename, progress_bar=False):
                         yield buffer
+                except GeneratorExit:
+                    # The client went away, so there is no one to send an
+                    # error message to.
+                    self.handle_connection_loss(session, traceback_string())
                 except:
                     yield self.handle_error(session, traceback_string())
             return content()
@@ -0,0 +1,255 @@
+#
+# transport.py <Peter.Bienstman@UGent.be>
+#
+
+import os
+import http.client
+
+
+class Transport(object):
+
+    """Carries the HTTP requests of the Client to the server.
+
+    The default implementation uses Python's http.client, but clients can
+    provide their own, e.g. to have the platform do the heavy lifting of
+    streaming large binary files over a persistent connection.
+
+    Responses returned by 'request' and 'request_file' need to have a
+    'status' attribute, a 'getheader(name, default=None)' method and a
+    'read(amt=None)' method returning bytes. The body of a response needs to
+    be read completely before issuing the next request.
+
+    Network errors are reported by raising the exceptions from the socket
+    module, as the Client relies on those to inform the user.
+
+    """
+
+    BUFFER_SIZE = 8192
+
+    def __init__(self):
+        self.pending_responses = []
+
+    def connect(self, host, port, keep_alive=True, timeout=None):
+
+        """Make sure there is a connection to 'host:port' for the next
+        request. If 'keep_alive' is True, an existing connection to the same
+        host is reused. Otherwise (e.g. behind an HTTP 1.0 proxy), a new
+        connection needs to be made for each request.
+
+        """
+
+        raise NotImplementedError
+
+    def request(self, method, url, body=None, headers={}):
+        raise NotImplementedError
+
+    def max_pending_requests(self):
+
+        """Number of requests which can be sent using 'send_request' before
+        the response to the oldest one needs to be fetched using
+        'get_response'. Transports supporting HTTP pipelining can return more
+        than one for keep-alive connections.
+
+        """
+
+        return 1
+
+    def send_request(self, method, url, body=None, headers={}):
+
+        """Send a request without waiting for its response. 'body' can be
+        reused by the caller as soon as this method returns.
+
+        """
+
+        self.pending_responses.append(\
+            self.request(method, url, body, headers))
+
+    def get_response(self):
+
+        """Returns the response to the oldest request sent using
+        'send_request' for which the response was not fetched yet. As for
+        'request', the body needs to be read completely before fetching the
+        next response.
+
+        """
+
+        return self.pending_responses.pop(0)
+
+    def request_file(self, method, url, filename, progress=None,
+                     headers={}):
+
+        """Send the contents of 'filename' as the body of the request.
+        'progress' gets called with the number of bytes sent in each chunk.
+
+        """
+
+        raise NotImplementedError
+
+    def download_file(self, response, filename, progress=None):
+
+        """Write the remainder of the body of 'response' to 'filename'.
+        'progress' gets called with the number of bytes received in each
+        chunk.
+
+        """
+
+        downloaded_file = open(filename, "wb")
+        try:
+            buffer = response.read(self.BUFFER_SIZE)
+            while buffer:
+                downloaded_file.write(buffer)
+                if progress:
+                    progress(len(buffer))
+                buffer = response.read(self.BUFFER_SIZE)
+        finally:
+            downloaded_file.close()
+
+    def close(self):
+        pass
+
+
+class HTTP10Connection(http.client.HTTPConnection):
+
+    _http_vsn = 10
+    _http_vsn_str = "HTTP/1.0"
+
+
+class PipelinedSocket(object):
+
+    """Stands in for the socket of the responses to pipelined requests, such
+    that they all read from the same buffered file. Otherwise, the start of a
+    response which got buffered while reading the previous one would be lost.
+
+    """
+
+    def __init__(self, sock):
+        self.file = sock.makefile("rb")
+
+    def makefile(self, mode):
+        return self
+
+    def __getattr__(self, name):
+        return getattr(self.file, name)
+
+    def close(self):
+        # The file is shared with the next responses.
+        pass
+
+
+class HttpClientTransport(Transport):
+
+    """Transport based on Python's http.client."""
+
+    PIPELINE_DEPTH = 4
+
+    def __init__(self):
+        Transport.__init__(self)
+        self.con = None
+        self.host = None
+        self.port = None
+        self.keep_alive = True
+        # Only pipeline requests once the server has shown it keeps the
+        # connection open after a response.
+        self.server_keeps_alive = False
+        self.pipelined_socket = None
+
+    def connect(self, host, port, keep_alive=True, timeout=None):
+        self.keep_alive = keep_alive
+        if keep_alive:
+            if self.con and (host, port) == (self.host, self.port):
+                return
+            self.close()
+            self.con = http.client.HTTPConnection(host, port, timeout=timeout)
+        else:
+            self.close()
+            self.con = HTTP10Connection(host, port, timeout=timeout)
+        self.host, self.port = host, port
+
+    def request(self, method, url, body=None, headers={}):
+        self.con.request(method, url, body, headers)
+        response = self.con.getresponse()
+        self.server_keeps_alive = not response.will_close
+        return response
+
+    def max_pending_requests(self):
+        if self.keep_alive and self.server_keeps_alive:
+            return self.PIPELINE_DEPTH
+        return 1
+
+    def send_request(self, method, url, body=None, headers={}):
+        # HTTPConnection does not allow a new request before the response to
+        # the previous one has been read, so we write the request ourselves.
+        if not self.keep_alive:
+            return Transport.send_request(self, method, url, body, headers)
+        if body is None:
+            body = b""
+        if None in self.pending_responses:
+            raise self._lost_response_error()
+        if self.con.sock is None:
+            self.con.connect()
+            self.pipelined_socket = None
+        if not self.pending_responses or self.pipelined_socket is None:
+            self.pipelined_socket = PipelinedSocket(self.con.sock)
+        request = "%s %s HTTP/1.1\r\n" % (method, url) + \
+            "Host: %s:%d\r\n" % (self.host, self.port) + \
+            "Content-Length: %d\r\n" % len(body)
+        if "accept-encoding" not in [name.lower() for name in headers]:
+            request += "Accept-Encoding: identity\r\n"
+        for name, value in headers.items():
+            request += "%s: %s\r\n" % (name, value)
+        self.con.sock.sendall(request.encode("latin-1") + b"\r\n")
+        self.con.sock.sendall(body)
+        self.pending_responses.append(method)
+
+    def get_response(self):
+        if not self.keep_alive:
+            return Transport.get_response(self)
+        if self.pending_responses[0] is None:
+            raise self._lost_response_error()
+        method = self.pending_responses.pop(0)
+        response = http.client.HTTPResponse(self.pipelined_socket,
+                                            method=method)
+        response.begin()
+        self.server_keeps_alive = not response.will_close
+        if response.will_close:
+            # Still readable, the socket only closes after the response.
+            self.con.close()
+            self.pipelined_socket = None
+            # The server won't answer the requests we pipelined after this
+            # one. Mark them as lost, so that we fail (and the Client resumes)
+            # until we are closed, instead of reading from a dead socket.
+            self.pending_responses = [None] * len(self.pending_responses)
+        return response
+
+    def _lost_response_error(self):
+        return ConnectionResetError(\
+            "Server closed the connection before answering all requests.")
+
+    def request_file(self, method, url, filename, progress=None,
+                     headers={}):
+        self.con.putrequest(method, url)
+        self.con.putheader("content-length", os.path.getsize(filename))
+        for name, value in headers.items():
+            self.con.putheader(name, value)
+        self.con.endheaders()
+        binary_file = open(filename, "rb")
+        try:
+            buffer = binary_file.read(self.BUFFER_SIZE)
+            while buffer:
+                self.con.send(buffer)
+                if progress:
+                    progress(len(buffer))
+                buffer = binary_file.read(self.BUFFER_SIZE)
+        finally:
+            binary_file.close()
+        response = self.con.getresponse()
+        self.server_keeps_alive = not response.will_close
+        return response
+
+    def close(self):
+        if self.con:
+            self.con.close()
+        self.con = None
+        self.server_keeps_alive = False
+        self.pending_responses = []
+        self.pipelined_socket = None
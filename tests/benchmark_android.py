@@ -0,0 +1,421 @@
+#!/usr/bin/env python
+
+# Benchmarks the review loop on synthetic collections, using the exact same
+# components as the Android client (see mnemosyne/cle/mnemosyne_android.py),
+# with a headless stand-in for the Java side.
+#
+# For each collection size, this measures startup, rebuilding the review
+# queue from scratch, the latency between grading a card and the next card
+# being shown, applying the repetitions of a sync and database maintenance.
+#
+# Usage:
+#
+#     python benchmark_android.py [--sizes 10000,100000,500000]
+#         [--output FILE] [--baseline FILE] [--tolerance 1.25]
+#
+# Generating the larger collections takes a while, so they are cached in
+# 'dot_benchmark_android' and reused by subsequent runs. Each run works on a
+# copy, as e.g. maintenance archives old logs.
+#
+# The results are written as JSON. If the results of an earlier run are
+# passed as baseline, each timing which got more than 'tolerance' times slower
+# is reported as a regression, and the exit status is 1.
+
+import os
+import sys
+import json
+import time
+import random
+import shutil
+import argparse
+import platform
+
+from openSM2sync.log_entry import LogEntry, EventTypes
+from mnemosyne.libmnemosyne import Mnemosyne
+# Note that this module also creates its own Mnemosyne object, which we don't
+# use, apart from copying its component list.
+from mnemosyne.cle import mnemosyne_android
+
+DAY = 24 * 60 * 60
+YEARS_OF_HISTORY = 3
+NUMBER_OF_TAGS = 20
+# Grades as typically given during a review session, and for the
+# repetitions of memorised cards in the history of a collection, where about
+# one in ten gets forgotten.
+GRADES = [0, 1, 2, 3, 3, 4, 4, 4, 4, 5]
+RETENTION_GRADES = [0, 2, 3, 3, 4, 4, 4, 4, 5, 5]
+REBUILD_REPEATS = 3
+SYNCED_REPETITIONS = 1000
+# Differences smaller than this (in s) are never seen as a regression, as they
+# are within the noise for the fast operations.
+MINIMUM_REGRESSION = 0.002
+
+cache_dir = os.path.abspath("dot_benchmark_android")
+
+
+class HeadlessAndroid(object):
+
+    """Stands in for the Java side, i.e. for the methods of MnemosyneThread
+    called from Python. Nothing is shown, we only count the calls, and
+    questions are answered with the first option.
+
+    """
+
+    def __init__(self):
+        self.calls = {}
+
+    def __getattr__(self, name):
+        def call(*args):
+            self.calls[name] = self.calls.get(name, 0) + 1
+            return 0
+        return call
+
+
+def new_mnemosyne():
+    mnemosyne = Mnemosyne(upload_science_logs=False,
+        interested_in_old_reps=True)
+    mnemosyne.components = list(mnemosyne_android.mnemosyne.components)
+    mnemosyne.deferred_components = \
+        list(mnemosyne_android.mnemosyne.deferred_components)
+    mnemosyne.gui_for_component = \
+        dict(mnemosyne_android.mnemosyne.gui_for_component)
+    mnemosyne.android = HeadlessAndroid()
+    return mnemosyne
+
+def start_mnemosyne(data_dir, filename=None):
+    # Like 'start_mnemosyne' in mnemosyne_android.py, but without the lazy
+    # extraction of extension modules, as there is no APK.
+    mnemosyne = new_mnemosyne()
+    mnemosyne.initialise(data_dir=data_dir, filename=filename,
+        automatic_upgrades=False)
+    mnemosyne.start_review()
+    return mnemosyne
+
+#
+# Synthetic collections.
+#
+
+def simulate_history(rng, card_id, creation_time, now):
+
+    """Simulates the repetitions of a card from its creation up to 'now',
+    following the SM2 rules closely enough to get realistic intervals and
+    numbers of repetitions.
+
+    Returns the final state of the card and the log rows of the repetitions.
+
+    """
+
+    state = {"grade": -1, "easiness": 2.5, "acq_reps": 0, "ret_reps": 0,
+        "lapses": 0, "acq_reps_since_lapse": 0, "ret_reps_since_lapse": 0,
+        "last_rep": -1, "next_rep": -1}
+    log_rows = []
+    # Recently added cards have a higher chance of not being seen yet.
+    if rng.random() < 0.05 + 0.5 * (creation_time > now - 30 * DAY):
+        return state, log_rows
+    timestamp = creation_time + rng.randint(0, DAY)
+    interval = 0
+    while timestamp < now:
+        if state["grade"] < 2:
+            grade = rng.choice([0, 1, 2, 3, 4, 4, 5])
+        else:
+            grade = rng.choice(RETENTION_GRADES)
+        if grade < 2:
+            if state["grade"] >= 2:
+                state["lapses"] += 1
+                state["acq_reps_since_lapse"] = 0
+                state["ret_reps_since_lapse"] = 0
+            state["acq_reps"] += 1
+            state["acq_reps_since_lapse"] += 1
+            new_interval = 0
+        elif state["grade"] < 2:
+            state["acq_reps"] += 1
+            state["acq_reps_since_lapse"] += 1
+            new_interval = (0, 0, 1, 3, 4, 7)[grade] * DAY
+        else:
+            state["ret_reps"] += 1
+            state["ret_reps_since_lapse"] += 1
+            state["easiness"] = max(1.3, state["easiness"] + \
+                {2: -0.16, 3: -0.14, 4: 0, 5: 0.10}[grade])
+            new_interval = int(max(interval, DAY) * state["easiness"])
+        actual_interval = 0 if state["last_rep"] == -1 else \
+            timestamp - state["last_rep"]
+        state["grade"] = grade
+        state["last_rep"] = timestamp
+        state["next_rep"] = (timestamp + new_interval) // DAY * DAY
+        log_rows.append((EventTypes.REPETITION, timestamp, card_id, grade,
+            state["easiness"], state["acq_reps"], state["ret_reps"],
+            state["lapses"], state["acq_reps_since_lapse"],
+            state["ret_reps_since_lapse"], interval, actual_interval,
+            rng.randint(2, 20), state["next_rep"], 0))
+        interval = new_interval
+        # Users don't always review cards on the day they are due, and
+        # non-memorised cards get repeated in the next session.
+        timestamp = max(state["next_rep"], timestamp + rng.randint(DAY // 2,
+            3 * DAY)) + rng.choice([0, 0, 0, DAY, 2 * DAY])
+    return state, log_rows
+
+LOG_COLUMNS = """event_type, timestamp, object_id, grade, easiness, acq_reps,
+    ret_reps, lapses, acq_reps_since_lapse, ret_reps_since_lapse,
+    scheduled_interval, actual_interval, thinking_time, next_rep,
+    scheduler_data"""
+
+def insert_rows(db, facts, data_for_fact, cards, tags_for_card, log):
+    db.con.executemany("insert into facts(_id, id) values(?,?)", facts)
+    db.con.executemany("""insert into data_for_fact(_fact_id, key, value)
+        values(?,?,?)""", data_for_fact)
+    db.con.executemany("""insert into cards(_id, id, card_type_id, _fact_id,
+        fact_view_id, question, answer, tags, grade, next_rep, last_rep,
+        easiness, acq_reps, ret_reps, lapses, acq_reps_since_lapse,
+        ret_reps_since_lapse, creation_time, modification_time)
+        values(?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?)""", cards)
+    db.con.executemany("""insert into tags_for_card(_card_id, _tag_id)
+        values(?,?)""", tags_for_card)
+    db.con.executemany("insert into generated_log(" + LOG_COLUMNS + \
+        ") values(?,?,?,?,?,?,?,?,?,?,?,?,?,?,?)", log)
+    for rows in facts, data_for_fact, cards, tags_for_card, log:
+        del rows[:]
+
+def generate_collection(filename, number_of_cards, seed=0):
+    rng = random.Random(seed)
+    data_dir = filename + "-generating"
+    shutil.rmtree(data_dir, ignore_errors=True)
+    mnemosyne = start_mnemosyne(data_dir)
+    db = mnemosyne.database()
+    db.new(os.path.join(data_dir, "default.db"))
+    tags = [db.get_or_create_tag_with_name("tag%d" % (i, )) \
+        for i in range(NUMBER_OF_TAGS)]
+    # The log of the larger collections does not fit in memory, so we
+    # collect it in a temporary table first, in order to be able to add it in
+    # chronological order, like in a real collection.
+    db.con.execute("create temp table generated_log(" + LOG_COLUMNS + ")")
+    now = int(time.time())
+    facts, data_for_fact, cards, tags_for_card, log = [], [], [], [], []
+    _fact_id = _card_id = 0
+    while _card_id < number_of_cards:
+        _fact_id += 1
+        fact_id = "%032x" % (rng.getrandbits(128), )
+        creation_time = now - int(YEARS_OF_HISTORY * 365 * DAY * \
+            rng.random() ** 0.7)
+        question = "question %d with some <b>formatting</b>" % (_fact_id, )
+        answer = "answer %d" % (_fact_id, )
+        facts.append((_fact_id, fact_id))
+        data_for_fact.append((_fact_id, "f", question))
+        data_for_fact.append((_fact_id, "b", answer))
+        log.append((EventTypes.ADDED_FACT, creation_time, fact_id) + \
+            (None, ) * 12)
+        card_tags = [rng.choice(tags)]
+        if rng.random() < 0.1:
+            card_tags.append(rng.choice(tags))
+        card_tags = set(card_tags)
+        tag_string = ", ".join(sorted(tag.name for tag in card_tags))
+        # Mostly front-to-back cards, some both ways.
+        if rng.random() < 0.7:
+            views = [("1", "1.1", question, answer)]
+        else:
+            views = [("2", "2.1", question, answer),
+                     ("2", "2.2", answer, question)]
+        for card_type_id, fact_view_id, q, a in views:
+            _card_id += 1
+            card_id = "%032x" % (rng.getrandbits(128), )
+            state, log_rows = simulate_history(rng, card_id, creation_time,
+                now)
+            cards.append((_card_id, card_id, card_type_id, _fact_id,
+                fact_view_id, q, a, tag_string, state["grade"],
+                state["next_rep"], state["last_rep"], state["easiness"],
+                state["acq_reps"], state["ret_reps"], state["lapses"],
+                state["acq_reps_since_lapse"], state["ret_reps_since_lapse"],
+                creation_time, creation_time))
+            for tag in card_tags:
+                tags_for_card.append((_card_id, tag._id))
+            log.append((EventTypes.ADDED_CARD, creation_time, card_id) + \
+                (None, ) * 12)
+            log.extend(log_rows)
+        if len(facts) == 10000:
+            insert_rows(db, facts, data_for_fact, cards, tags_for_card, log)
+    insert_rows(db, facts, data_for_fact, cards, tags_for_card, log)
+    db.con.execute("insert into log(" + LOG_COLUMNS + ") select " + \
+        LOG_COLUMNS + " from generated_log order by timestamp")
+    db.con.execute("drop table generated_log")
+    # The rows above bypassed the bookkeeping of the database object.
+    db.forget_card_changes()
+    db.save()
+    mnemosyne.finalise()
+    shutil.move(os.path.join(data_dir, "default.db"), filename)
+    shutil.rmtree(data_dir, ignore_errors=True)
+
+def collection(number_of_cards):
+    filename = os.path.join(cache_dir, "collection-%d.db" % \
+        (number_of_cards, ))
+    if not os.path.exists(filename):
+        print("Generating collection with %d cards..." % (number_of_cards, ))
+        os.makedirs(cache_dir, exist_ok=True)
+        generate_collection(filename, number_of_cards)
+    return filename
+
+#
+# Benchmarks.
+#
+
+def percentile(values, fraction):
+    values = sorted(values)
+    return values[min(len(values) - 1, int(fraction * len(values)))]
+
+def synced_repetitions(db, rng, count):
+
+    """Repetitions of random cards, as they would come in from a sync with
+    a device on which these cards were reviewed.
+
+    """
+
+    log_entries = []
+    timestamp = int(time.time())
+    for card_id, grade, easiness, acq_reps, ret_reps, lapses, \
+        acq_reps_since_lapse, ret_reps_since_lapse, last_rep in \
+        db.con.execute("""select id, grade, easiness, acq_reps, ret_reps,
+        lapses, acq_reps_since_lapse, ret_reps_since_lapse, last_rep from cards
+        order by random() limit ?""", (count, )):
+        timestamp += rng.randint(2, 20)
+        new_grade = rng.choice(GRADES)
+        log_entry = LogEntry()
+        log_entry["type"] = EventTypes.REPETITION
+        log_entry["time"] = timestamp
+        log_entry["o_id"] = card_id
+        log_entry["gr"] = new_grade
+        log_entry["e"] = easiness
+        log_entry["ac_rp"] = acq_reps + (new_grade < 2)
+        log_entry["rt_rp"] = ret_reps + (new_grade >= 2)
+        log_entry["lps"] = lapses + (grade >= 2 and new_grade < 2)
+        log_entry["ac_rp_l"] = acq_reps_since_lapse + (new_grade < 2)
+        log_entry["rt_rp_l"] = ret_reps_since_lapse + (new_grade >= 2)
+        log_entry["sch_i"] = 4 * DAY
+        log_entry["act_i"] = timestamp - last_rep if last_rep > 0 else 0
+        log_entry["th_t"] = rng.randint(2, 20)
+        log_entry["n_rp"] = timestamp + 4 * DAY
+        log_entry["sch_data"] = 0
+        log_entries.append(log_entry)
+    return log_entries
+
+def run_benchmarks(collection_filename, number_of_grades, seed=0):
+    rng = random.Random(seed)
+    data_dir = os.path.join(cache_dir, "run")
+    shutil.rmtree(data_dir, ignore_errors=True)
+    os.makedirs(data_dir)
+    filename = os.path.join(data_dir, "default.db")
+    shutil.copy(collection_filename, filename)
+    results = {}
+
+    start = time.perf_counter()
+    mnemosyne = start_mnemosyne(data_dir, filename)
+    results["startup"] = time.perf_counter() - start
+
+    scheduler = mnemosyne.scheduler()
+    timings = []
+    for i in range(REBUILD_REPEATS):
+        scheduler.reset()
+        start = time.perf_counter()
+        scheduler.rebuild_queue()
+        timings.append(time.perf_counter() - start)
+    results["rebuild_queue"] = percentile(timings, 0.5)
+
+    # Grading a card also pulls in and shows the next one. Part of that work
+    # is done in advance while the answer is showing, so we time showing the
+    # answer as well.
+    review_controller = mnemosyne.review_controller()
+    review_controller.reset()
+    answer_timings, grade_timings = [], []
+    for i in range(number_of_grades):
+        if review_controller.card is None:
+            break
+        start = time.perf_counter()
+        review_controller.show_answer()
+        answer_timings.append(time.perf_counter() - start)
+        grade = rng.choice(GRADES)
+        start = time.perf_counter()
+        review_controller.grade_answer(grade)
+        grade_timings.append(time.perf_counter() - start)
+    if grade_timings:
+        results["show_answer_median"] = percentile(answer_timings, 0.5)
+        results["show_answer_p95"] = percentile(answer_timings, 0.95)
+        results["grade_to_next_card_median"] = percentile(grade_timings, 0.5)
+        results["grade_to_next_card_p95"] = percentile(grade_timings, 0.95)
+
+    db = mnemosyne.database()
+    log_entries = synced_repetitions(db, rng, SYNCED_REPETITIONS)
+    start = time.perf_counter()
+    for log_entry in log_entries:
+        db.apply_log_entry(log_entry)
+    db.save()
+    results["sync_apply"] = time.perf_counter() - start
+
+    start = time.perf_counter()
+    mnemosyne.component_manager.current("database_maintenance").run()
+    results["maintenance"] = time.perf_counter() - start
+
+    mnemosyne.finalise()
+    shutil.rmtree(data_dir, ignore_errors=True)
+    return results
+
+def find_regressions(results, baseline, tolerance):
+    regressions = []
+    for size, timings in sorted(results.items()):
+        for name, value in sorted(timings.items()):
+            try:
+                old_value = baseline["results"][size][name]
+            except KeyError:
+                continue
+            if value > old_value * tolerance and \
+                value - old_value > MINIMUM_REGRESSION:
+                regressions.append({"cards": int(size), "benchmark": name,
+                    "baseline": old_value, "value": value,
+                    "threshold": old_value * tolerance})
+    return regressions
+
+def main():
+    parser = argparse.ArgumentParser(description=\
+        "Benchmark the review loop with the Android components.")
+    parser.add_argument("--sizes", default="10000,100000,500000",
+        help="comma separated numbers of cards in the collections")
+    parser.add_argument("--grades", type=int, default=200,
+        help="number of cards to grade per collection")
+    parser.add_argument("--output", default="benchmark_android.json",
+        help="file to write the results to")
+    parser.add_argument("--baseline",
+        help="results of an earlier run to compare against")
+    parser.add_argument("--tolerance", type=float, default=1.25,
+        help="slowdown factor with respect to the baseline which is "
+        "reported as a regression")
+    args = parser.parse_args()
+    sizes = [int(size) for size in args.sizes.split(",")]
+    collections = [collection(size) for size in sizes]
+    # Get the imports and the creation of the config out of the way, so
+    # that startup only measures what depends on the collection.
+    warm_up_dir = os.path.join(cache_dir, "warm_up")
+    shutil.rmtree(warm_up_dir, ignore_errors=True)
+    start_mnemosyne(warm_up_dir).finalise()
+    shutil.rmtree(warm_up_dir, ignore_errors=True)
+    results = {}
+    for size, collection_filename in zip(sizes, collections):
+        print("Benchmarking collection with %d cards..." % (size, ))
+        results[str(size)] = run_benchmarks(collection_filename, args.grades)
+        for name, value in sorted(results[str(size)].items()):
+            print("    %-28s %9.4f s" % (name, value))
+    report = {"python": platform.python_version(),
+              "platform": platform.platform(),
+              "time": int(time.time()),
+              "results": results}
+    if args.baseline:
+        with open(args.baseline) as baseline_file:
+            baseline = json.load(baseline_file)
+        report["tolerance"] = args.tolerance
+        report["regressions"] = \
+            find_regressions(results, baseline, args.tolerance)
+    with open(args.output, "w") as output_file:
+        json.dump(report, output_file, indent=2, sort_keys=True)
+    for regression in report.get("regressions", []):
+        print("Regression for %(cards)d cards in %(benchmark)s: %(value).4f s"
+            " (baseline %(baseline).4f s)" % regression)
+    if report.get("regressions"):
+        sys.exit(1)
+
+if __name__ == "__main__":
+    main()
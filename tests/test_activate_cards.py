@@ -405,4 +405,86 @@ class TestActivateCards(MnemosyneTest):
                      "b": "answer4"}
         self.controller().create_new_cards(fact_data, card_type_1,
             grade=-1, tag_names=["dummy::b"])
-        assert self.database().active_count() == 2
\ No newline at end of file
+        assert self.database().active_count() == 2
+
+    def test_switch_saved_sets(self):
+
+        def check(criterion):
+            for _card_id, active in self.database().con.execute(\
+                "select _id, active from cards"):
+                card = self.database().card(_card_id, is_id_internal=True)
+                criterion.apply_to_card(card)
+                assert bool(card.active) == bool(active)
+
+        card_type_1 = self.card_type_with_id("1")
+        card_type_2 = self.card_type_with_id("2")
+        for i in range(5):
+            fact_data = {"f": "a" + str(i), "b": "answer"}
+            self.controller().create_new_cards(fact_data, card_type_2,
+                grade=-1, tag_names=["a"])
+            fact_data = {"f": "b" + str(i), "b": "answer"}
+            self.controller().create_new_cards(fact_data, card_type_1,
+                grade=-1, tag_names=["b"])
+        tag_a = self.database().get_or_create_tag_with_name("a")
+        tag_b = self.database().get_or_create_tag_with_name("b")
+
+        c_a = DefaultCriterion(self.mnemosyne.component_manager)
+        c_a._tag_ids_active = set([tag_a._id])
+        c_b = DefaultCriterion(self.mnemosyne.component_manager)
+        c_b._tag_ids_active = set([tag_a._id, tag_b._id])
+        c_b._tag_ids_forbidden = set([tag_a._id])
+        c_b.deactivated_card_type_fact_view_ids = \
+            set([(card_type_2.id, card_type_2.fact_views[1].id)])
+
+        self.database().set_current_criterion(c_a)
+        check(c_a)
+        assert self.database().active_count() == 10
+        self.database().set_current_criterion(c_b)
+        check(c_b)
+        assert self.database().active_count() == 5
+        self.database().set_current_criterion(c_a)
+        check(c_a)
+
+        # Changes to the cards need to be taken into account.
+        fact_data = {"f": "c", "b": "answer"}
+        card_1, card_2 = self.controller().create_new_cards(fact_data,
+            card_type_2, grade=-1, tag_names=["b"])
+        _card_id_b = self.database().con.execute(\
+            "select _id from cards where question like '%b0%'").fetchone()[0]
+        self.database().add_tag_to_cards_with_internal_ids(tag_a,
+            [_card_id_b])
+        self.database().delete_card(card_2)
+        self.database().set_current_criterion(c_b)
+        check(c_b)
+        assert self.database().active_count() == 5
+        self.database().remove_tag_from_cards_with_internal_ids(tag_a,
+            [_card_id_b])
+        self.database().set_current_criterion(c_a)
+        check(c_a)
+        self.database().set_current_criterion(c_b)
+        check(c_b)
+        assert self.database().active_count() == 6
+
+        # Also after forgetting about all changes.
+        self.database().forget_card_changes()
+        self.database().con.execute("update cards set active=1")
+        self.database().set_current_criterion(c_a)
+        check(c_a)
+        assert self.database().active_count() == 10
+
+        # Cycling through more saved sets than are cached.
+        from mnemosyne.libmnemosyne.databases.SQLite_criterion_applier \
+            import DefaultCriterionApplier
+        criteria = []
+        for i in range(DefaultCriterionApplier.MAX_CACHED_CRITERIA + 2):
+            fact_data = {"f": "d" + str(i), "b": "answer"}
+            self.controller().create_new_cards(fact_data, card_type_1,
+                grade=-1, tag_names=["d" + str(i)])
+            criterion = DefaultCriterion(self.mnemosyne.component_manager)
+            criterion._tag_ids_active = set([self.database().\
+                get_or_create_tag_with_name("d" + str(i))._id])
+            criteria.append(criterion)
+        for criterion in criteria + criteria:
+            self.database().set_current_criterion(criterion)
+            check(criterion)
+            assert self.database().active_count() == 1
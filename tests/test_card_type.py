@@ -332,3 +332,16 @@ class TestCardType(MnemosyneTest):
             card_type, ("1 clone"))
         assert self.config().card_type_property("font", card_type, 'f') == "myfont"
         assert self.config().card_type_property("background_colour", card_type) == "mycolour"
+
+    def test_css_cache(self):
+        card_type = self.card_type_with_id("1")
+        renderer = self.render_chain().renderer_for_card_type(card_type)
+        css = renderer.css(card_type)
+        assert renderer.css(card_type) is css
+        self.config().set_card_type_property("background_colour", 0xff00ff00,
+                                             card_type)
+        css = renderer.css(card_type)
+        assert "background-color: #00FF00" in css
+        assert renderer.css(card_type) is css
+        self.config()["alignment"] = {card_type.id: "left"}
+        assert "margin-left: 0" in renderer.css(card_type)
@@ -169,7 +169,14 @@ class TestController(MnemosyneTest):
         self.controller().show_import_file_dialog()
         self.controller().show_export_file_dialog()
         self.controller().next_rollover = 0
+        assert self.controller().seconds_until_next_heartbeat() == 60
         self.controller().heartbeat()
+        # The backup taken at the rollover is collected soon afterwards.
+        assert self.database().background_backup_pending()
+        assert self.controller().seconds_until_next_heartbeat() == \
+            self.controller().BACKUP_POLL_INTERVAL
+        self.database().finish_background_backup(wait=True)
+        assert 0 < self.controller().seconds_until_next_heartbeat() <= 25 * 60 * 60
 
     def test_delete_current(self):
         card_type = self.card_type_with_id("1")
@@ -417,6 +417,61 @@ class TestDatabase(MnemosyneTest):
         assert self.database().sister_card_count_scheduled_between(card_3, card_1.next_rep, card_1.next_rep+DAY) == 0
         assert self.database().sister_card_count_scheduled_between(card_1, card_1.next_rep, card_1.next_rep+DAY) == 0
 
+    def test_card_counts(self):
+
+        def check(timestamp):
+            db = self.database()
+            assert db.active_count() == db.con.execute(\
+                "select count() from cards where active=1").fetchone()[0]
+            assert db.non_memorised_count() == db.con.execute(\
+                """select count() from cards where active=1
+                and grade<2""").fetchone()[0]
+            assert db.scheduled_count(timestamp) == db.con.execute(\
+                """select count() from cards where active=1 and grade>=2
+                and ?>=next_rep""", (timestamp, )).fetchone()[0]
+
+        now = self.database().start_of_day_n_days_ago(n=0) + DAY - 1
+        card_type_2 = self.card_type_with_id("2")
+        fact_data = {"f": "question",
+                     "b": "answer"}
+        card_1, card_2 = self.controller().create_new_cards(fact_data,
+            card_type_2, grade=-1, tag_names=["default"])
+        check(now)
+        fact_data = {"f": "question2",
+                     "b": "answer2"}
+        card_3, card_4 = self.controller().create_new_cards(fact_data,
+            card_type_2, grade=-1, tag_names=["tag"])
+        check(now)
+        card_1.grade = 4
+        card_1.next_rep = now - DAY
+        self.database().update_card(card_1)
+        check(now)
+        card_3.grade = 3
+        card_3.next_rep = now + 2 * DAY
+        self.database().update_card(card_3)
+        check(now)
+        check(now + 3 * DAY)
+        check(now)
+        check(now - 2 * DAY)
+        card_1.next_rep = now + DAY
+        self.database().update_card(card_1)
+        check(now)
+        check(now + DAY)
+        self.database().delete_card(card_2)
+        check(now)
+        from mnemosyne.libmnemosyne.criteria.default_criterion import \
+             DefaultCriterion
+        criterion = DefaultCriterion(self.mnemosyne.component_manager)
+        criterion._tag_ids_active = \
+            set([self.database().get_or_create_tag_with_name("tag")._id])
+        self.database().set_current_criterion(criterion)
+        check(now)
+        assert self.database().active_count() == 2
+        card_1.active = True
+        self.database().update_card(card_1, repetition_only=True)
+        check(now)
+        check(now + 3 * DAY)
+
     def test_purge_backups(self):
         backup_dir = os.path.join(self.config().data_dir, "backups")
         for count in range(15):
@@ -427,6 +482,54 @@ class TestDatabase(MnemosyneTest):
         assert "default-0.db" not in backups
         self.restart()
 
+    def test_background_backup(self):
+        fact_data = {"f": "question",
+                     "b": "answer"}
+        card_type_1 = self.card_type_with_id("1")
+        self.controller().create_new_cards(fact_data, card_type_1,
+                                              grade=-1, tag_names=["default"])
+        self.config()["max_backups"] = 2
+        backup_dir = os.path.join(self.config().data_dir, "backups")
+        for f in os.listdir(backup_dir):
+            os.remove(os.path.join(backup_dir, f))
+        open(os.path.join(backup_dir, "default-0.db.part"), "w").close()
+        assert self.database().backup(in_background=True) is None
+        self.database().finish_background_backup(wait=True)
+        backups = os.listdir(backup_dir)
+        assert len(backups) == 1
+        assert backups[0].endswith(".db.bz2")
+        # Restoring from a compressed backup.
+        self.controller().create_new_cards({"f": "question2", "b": "answer2"},
+            card_type_1, grade=-1, tag_names=["default"])
+        assert self.database().fact_count() == 2
+        self.database().restore(os.path.join(backup_dir, backups[0]))
+        assert self.database().fact_count() == 1
+        # Only the last backups are kept.
+        import time
+        for i in range(2):
+            time.sleep(1)
+            assert self.database().backup().endswith(".db")
+        backups = os.listdir(backup_dir)
+        assert len(backups) == 2
+        assert not [f for f in backups if f.endswith(".bz2")]
+
+    def test_backup_without_backup_api(self):
+        # Python < 3.7 copies the database file one step at a time.
+        fact_data = {"f": "question",
+                     "b": "answer"}
+        card_type_1 = self.card_type_with_id("1")
+        self.controller().create_new_cards(fact_data, card_type_1,
+                                              grade=-1, tag_names=["default"])
+        self.database().save()
+        backup_file = os.path.join(self.config().data_dir, "backups",
+            "default-copy.db")
+        self.database().con._copy_in_steps(backup_file, 1)
+        self.controller().create_new_cards({"f": "question2", "b": "answer2"},
+            card_type_1, grade=-1, tag_names=["default"])
+        assert self.database().fact_count() == 2
+        self.database().restore(backup_file)
+        assert self.database().fact_count() == 1
+
     def test_link_inverse_cards(self):
         fact_data = {"f": "question",
                      "b": "answer"}
@@ -3,6 +3,8 @@
 #
 
 import os
+import json
+import time
 import shutil
 
 from mnemosyne_test import MnemosyneTest
@@ -385,3 +387,103 @@ class TestLogging(MnemosyneTest):
         arch_con = sqlite3.connect(archive_path)
         assert arch_con.execute("select count() from log").fetchone()[0] == 11
 
+
+    def test_database_maintenance_steps(self):
+        filename = os.path.join(os.getcwd(), "tests", "files", "basedir_bz2",
+                                "default.mem")
+        self.mem_importer().do_import(filename)
+        self.database().ARCHIVE_CHUNK_SIZE = 4
+        # Card with both a proper tag and "Untagged".
+        fact_data = {"f": "question", "b": "answer"}
+        from mnemosyne.libmnemosyne.card_types.front_to_back import FrontToBack
+        card = self.controller().create_new_cards(fact_data, FrontToBack(
+            self.mnemosyne.component_manager), grade=-1,
+            tag_names=["tag"])[0]
+        untagged = self.database().tag("__UNTAGGED__", is_id_internal=False)
+        self.database().con.execute(\
+            "insert into tags_for_card(_card_id, _tag_id) values(?,?)",
+            (card._id, untagged._id))
+        maintenance = self.mnemosyne.component_manager.current(\
+            "database_maintenance")
+        assert not maintenance.is_in_progress()
+        log_count = self.database().con.execute(\
+            "select count() from log").fetchone()[0]
+        self.config()["last_db_maintenance"] = 0
+        assert self.controller().db_maintenance_step()
+        assert maintenance.is_in_progress()
+        assert self.database().con.execute(\
+            "select count() from log").fetchone()[0] == log_count - 4
+        # Interrupted maintenance resumes where it left off.
+        self.config()["last_db_maintenance"] = time.time()
+        while self.controller().db_maintenance_step():
+            pass
+        assert not maintenance.is_in_progress()
+        assert self.config()["last_db_maintenance"] > time.time() - 10
+        assert not self.controller().db_maintenance_step()
+        assert self.database().con.execute(\
+            "select count() from log").fetchone()[0] == log_count - 11
+        archive_dir = os.path.join(os.getcwd(), "dot_test", "archive")
+        archive_path = os.path.join(archive_dir, os.listdir(archive_dir)[0])
+        import sqlite3
+        arch_con = sqlite3.connect(archive_path)
+        assert arch_con.execute("select count() from log").fetchone()[0] == 11
+        assert self.database().con.execute(\
+            "select count() from tags_for_card where _card_id=?",
+            (card._id, )).fetchone()[0] == 1
+        assert self.database().uses_incremental_vacuum()
+        assert self.database().con.execute(\
+            "pragma freelist_count").fetchone()[0] == 0
+
+    def test_repetition_journal(self):
+        fact_data = {"f": "question", "b": "answer"}
+        from mnemosyne.libmnemosyne.card_types.front_to_back import FrontToBack
+        card = self.controller().create_new_cards(fact_data, FrontToBack(
+            self.mnemosyne.component_manager), grade=-1,
+            tag_names=["tag"])[0]
+        self.database().save()
+        assert not self.database().has_unjournaled_changes()
+        journal_path = self.database().repetition_journal_path()
+        assert not os.path.exists(journal_path)
+        self.review_controller().show_new_question()
+        self.review_controller().grade_answer(2)
+        assert os.path.exists(journal_path)
+        assert not self.database().has_unjournaled_changes()
+        # Simulate the process getting killed before the next commit.
+        path = self.database().path()
+        shutil.copy(journal_path, journal_path + ".orig")
+        self.database()._connection.close()
+        self.database()._connection = None
+        assert self.database().con.execute("""select count() from log
+            where event_type=?""", (EventTypes.REPETITION, )).fetchone()[0] == 0
+        self.database()._connection.close()
+        self.database()._connection = None
+        self.database().load(path)
+        assert not os.path.exists(journal_path)
+        assert self.database().con.execute("""select count() from log
+            where event_type=?""", (EventTypes.REPETITION, )).fetchone()[0] == 1
+        card = self.database().card(card._id, is_id_internal=True)
+        assert card.grade == 2
+        assert card.next_rep > time.time()
+        # Repetitions which were committed already don't get replayed again.
+        # Lines which are not a repetition get skipped, and are never
+        # evaluated.
+        shutil.copy(journal_path + ".orig", journal_path)
+        with open(journal_path) as journal:
+            assert len(json.loads(journal.readline())) == 14
+        with open(journal_path, "a") as journal:
+            journal.write("__import__('os').remove(%s)\n" % repr(path))
+            journal.write("[1, 2, 3]\n")
+        self.database().replay_repetition_journal()
+        assert os.path.exists(path)
+        assert self.database().con.execute("""select count() from log
+            where event_type=?""", (EventTypes.REPETITION, )).fetchone()[0] == 1
+        # Changes other than repetitions are still worth saving.
+        self.database().get_or_create_tag_with_name("other")
+        assert self.database().has_unjournaled_changes()
+        # Imported repetitions are not journaled.
+        self.database().save()
+        self.database().journal_repetitions = False
+        self.database().log_repetition(int(time.time()), card.id, 4, 2.5, 1,
+            0, 0, 1, 0, 0, 0, 0, int(time.time()) + 86400, 0)
+        self.database().journal_repetitions = True
+        assert not os.path.exists(journal_path)
@@ -397,6 +397,32 @@ class TestMedia(MnemosyneTest):
         self.database().delete_unused_media_files(self.database().unused_media_files())
         assert not os.path.exists(latex_dir)
 
+    def test_media_manifest(self):
+        filename = os.path.join(self.database().media_dir(), "a.ogg")
+        f = open(filename, "w")
+        f.write("A")
+        f.close()
+        hash = self.database().media_file_hash("a.ogg")
+        assert self.database().media_filename_with_hash(hash) == "a.ogg"
+        assert self.database().con.execute(\
+            "select count() from media_manifest").fetchone()[0] == 1
+        # Unchanged files are not rehashed.
+        self.database().con.execute(\
+            "update media_manifest set _hash='cached'")
+        assert self.database().media_file_hash("a.ogg") == "cached"
+        # Edited files are.
+        f = open(filename, "w")
+        f.write("AB")
+        f.close()
+        assert self.database().media_file_hash("a.ogg") not in \
+            ["cached", hash]
+        assert self.database().media_filename_with_hash(hash) is None
+        self.database().copy_media_file("a.ogg", "sub/b.ogg")
+        assert open(os.path.join(self.database().media_dir(),
+            "sub", "b.ogg")).read() == "AB"
+        os.remove(filename)
+        assert self.database().media_file_hash("a.ogg") == "0"
+
     def test_database_not_in_datadir(self):
         assert "dot_test" in self.database().media_dir()
         self.database().new(os.path.abspath("outside.db"))
@@ -21,6 +21,12 @@ class MyReviewWidget(ReviewWidget):
         if expected_scheduled_count is not None:
             assert scheduled_count == expected_scheduled_count
 
+    def set_question(self, text):
+        self.question = text
+
+    def set_answer(self, text):
+        self.answer = text
+
     def redraw_now(self):
         pass
 
@@ -177,3 +183,52 @@ class TestReviewController(MnemosyneTest):
         self.review_controller().grade_answer(3)
         assert self.review_controller().scheduled_count == 3
         assert self.review_controller().counters()[0] == 3
+
+    def test_prefetch_next_card(self):
+        card_type = self.card_type_with_id("1")
+        for data in ['1', '2', '3', '4', '5']:
+            fact_data = {"f": data, "b": data}
+            card = self.controller().create_new_cards(fact_data, card_type, grade=5, tag_names=[])[0]
+            card.next_rep = 0
+            self.database().update_card(card)
+        self.review_controller().show_new_question()
+        # Nothing to prefetch while the question is showing.
+        self.review_controller().prefetch_next_card()
+        assert self.review_controller().prefetched is None
+        self.review_controller().show_answer()
+        self.review_controller().prefetch_next_card()
+        prefetched = self.review_controller().prefetched
+        assert prefetched is not None
+        assert prefetched[0] != self.review_controller().card._id
+        self.review_controller().grade_answer(3)
+        assert self.review_controller().card._id == prefetched[0]
+        assert self.review_controller().prefetched is None
+        # Editing invalidates the prefetched card.
+        self.review_controller().show_answer()
+        self.review_controller().prefetch_next_card()
+        assert self.review_controller().prefetched is not None
+        self.review_controller().update_dialog(redraw_all=True)
+        assert self.review_controller().prefetched is None
+
+    def test_prefetch_next_card_edited(self):
+        card_type = self.card_type_with_id("1")
+        for data in ['1', '2', '3', '4', '5']:
+            fact_data = {"f": data, "b": data}
+            card = self.controller().create_new_cards(fact_data, card_type, grade=5, tag_names=[])[0]
+            card.next_rep = 0
+            self.database().update_card(card)
+        self.review_controller().show_new_question()
+        self.review_controller().show_answer()
+        self.review_controller().prefetch_next_card()
+        prefetched = self.review_controller().prefetched
+        assert prefetched is not None
+        # Edit the prefetched card before it is shown, typically within the
+        # same second, so that its modification time does not change.
+        card = self.database().card(prefetched[0], is_id_internal=True)
+        self.controller().edit_card_and_sisters(card, {"f": "edited_q",
+            "b": "edited_a"}, card_type, [], {})
+        self.review_controller().grade_answer(3)
+        assert self.review_controller().card._id == prefetched[0]
+        assert "edited_q" in self.review_widget().question
+        self.review_controller().show_answer()
+        assert "edited_a" in self.review_widget().answer
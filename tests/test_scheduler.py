@@ -743,3 +743,55 @@ class TestScheduler(MnemosyneTest):
             self.review_controller().grade_answer(0)
 
         assert len(showed_cards) == 4
+
+    def test_queue_index(self):
+        card_type = self.card_type_with_id("1")
+        cards = []
+        for i in range(60):
+            fact_data = {"f": str(i), "b": "b"}
+            card = self.controller().create_new_cards(fact_data, card_type,
+                     grade=4, tag_names=["default"])[0]
+            card.next_rep = time.time() - DAY
+            card.last_rep = card.next_rep - (i + 2) * DAY
+            self.database().update_card(card)
+            cards.append(card)
+        self.scheduler().reset()
+        # Shortest intervals first, also across rebuilds of the queue.
+        for i in range(55):
+            card = self.scheduler().next_card()
+            assert card == cards[i]
+            self.scheduler().grade_answer(card, 5)
+            self.database().update_card(card)
+        # Changes in the meantime are picked up without a reset.
+        fact_data = {"f": "new", "b": "b"}
+        new_card = self.controller().create_new_cards(fact_data, card_type,
+                 grade=4, tag_names=["default"])[0]
+        new_card.next_rep = time.time() - DAY
+        new_card.last_rep = new_card.next_rep - DAY
+        self.database().update_card(new_card)
+        for i in range(55, 60):
+            card = self.scheduler().next_card()
+            assert card == cards[i]
+            self.scheduler().grade_answer(card, 5)
+            self.database().update_card(card)
+        assert self.scheduler().next_card() == new_card
+
+    def test_queue_index_pools(self):
+        from mnemosyne.libmnemosyne.schedulers.SM2_mnemosyne \
+            import ReviewQueueIndex
+        index = ReviewQueueIndex(randomise=False)
+        # Lapsed cards with a grade of 0, longest time since the last rep
+        # first.
+        for _card_id in (5, 3, 4):
+            index.add(_card_id, _card_id, 0, 1, 0, 10 * _card_id, 0)
+        index.add(1, 1, 0, 0, 0, 0, 0)
+        assert list(index.non_memorised(0, True)) == [(3, 3), (4, 4), (5, 5)]
+        assert list(index.non_memorised(0, False)) == [(1, 1)]
+        # Changes afterwards keep the pools sorted.
+        index.add(2, 2, 0, 1, 0, 35, 0)
+        index.remove(4)
+        index.add(6, 6, 0, 1, 0, 5, 0)
+        index.remove(1)
+        assert list(index.non_memorised(0, True)) == \
+            [(6, 6), (3, 3), (2, 2), (5, 5)]
+        assert list(index.non_memorised(0, False)) == []
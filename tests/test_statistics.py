@@ -18,6 +18,27 @@ from openSM2sync.log_entry import EventTypes
 
 class TestStatistics(MnemosyneTest):
 
+    def test_deferred_registration(self):
+        from mnemosyne.libmnemosyne.statistics_pages.current_card import CurrentCard
+        component_manager = self.mnemosyne.component_manager
+        component_manager.unregister(CurrentCard)
+        assert CurrentCard not in component_manager.all("statistics_page")
+        component_manager.register_deferred("statistics_page", None,
+            "mnemosyne.libmnemosyne.statistics_pages.current_card",
+            "CurrentCard")
+        assert "statistics_page" in component_manager.deferred
+        assert CurrentCard in component_manager.all("statistics_page")
+        assert "statistics_page" not in component_manager.deferred
+        count = len(component_manager.all("hook", "delete_unused_media_files"))
+        component_manager.register_deferred("hook",
+            "delete_unused_media_files", "mnemosyne.libmnemosyne.filters.latex",
+            "DeleteUnusedLatexFiles")
+        component_manager.all("hook", "after_repetition")
+        assert "hook" in component_manager.deferred
+        assert len(component_manager.all("hook",
+            "delete_unused_media_files")) == count + 1
+        assert "hook" not in component_manager.deferred
+
     def test_current_card(self):
         from mnemosyne.libmnemosyne.statistics_pages.current_card import CurrentCard
         page = CurrentCard(self.mnemosyne.component_manager)
@@ -6,12 +6,14 @@ import os
 import sys
 import time
 import shutil
+import socket
 import http.client
 from nose.tools import raises
 from threading import Thread, Condition
 
 from openSM2sync.server import Server
 from openSM2sync.client import Client
+from openSM2sync.transport import HttpClientTransport
 from openSM2sync.log_entry import EventTypes
 
 from mnemosyne.version import version
@@ -199,6 +201,86 @@ class MyClient(Client):
 
 
 
+class CountingTransport(HttpClientTransport):
+
+    def __init__(self):
+        HttpClientTransport.__init__(self)
+        self.connections = 0
+        self.requests = 0
+        self.max_pending_requests_seen = 0
+        self.content_encodings = []
+        self.uploaded_files = []
+        self.downloaded_files = []
+        self.uploaded_bytes = 0
+        self.downloaded_bytes = 0
+
+    def connect(self, host, port, keep_alive=True, timeout=None):
+        con = self.con
+        HttpClientTransport.connect(self, host, port, keep_alive, timeout)
+        if self.con is not con:
+            self.connections += 1
+
+    def request(self, method, url, body=None, headers={}):
+        self.requests += 1
+        return HttpClientTransport.request(self, method, url, body, headers)
+
+    def send_request(self, method, url, body=None, headers={}):
+        self.requests += 1
+        self.content_encodings.append(headers.get("content-encoding"))
+        HttpClientTransport.send_request(self, method, url, body, headers)
+        self.max_pending_requests_seen = max(self.max_pending_requests_seen,
+            len(self.pending_responses))
+
+    def request_file(self, method, url, filename, progress=None,
+                     headers={}):
+        self.uploaded_files.append(os.path.basename(filename))
+        self.uploaded_bytes += os.path.getsize(filename)
+        self.content_encodings.append(headers.get("content-encoding"))
+        return HttpClientTransport.request_file(\
+            self, method, url, filename, progress, headers)
+
+    def download_file(self, response, filename, progress=None):
+        self.downloaded_files.append(os.path.basename(filename))
+        HttpClientTransport.download_file(self, response, filename, progress)
+        self.downloaded_bytes += os.path.getsize(filename)
+
+
+class DroppingTransport(CountingTransport):
+
+    """Drops the connection during the 'call'th call to each of 'methods'."""
+
+    def __init__(self, methods, call=1):
+        CountingTransport.__init__(self)
+        self.calls = dict((method, 0) for method in methods)
+        self.call = call
+        self.drops = 0
+
+    def drop(self, method):
+        if method not in self.calls:
+            return
+        self.calls[method] += 1
+        if self.calls[method] == self.call:
+            self.drops += 1
+            self.close()
+            raise ConnectionResetError("Connection dropped.")
+
+    def get_response(self):
+        response = CountingTransport.get_response(self)
+        self.drop("get_response")
+        return response
+
+    def request_file(self, method, url, filename, progress=None,
+                     headers={}):
+        response = CountingTransport.request_file(\
+            self, method, url, filename, progress, headers)
+        self.drop("request_file")
+        return response
+
+    def download_file(self, response, filename, progress=None):
+        self.drop("download_file")
+        CountingTransport.download_file(self, response, filename, progress)
+
+
 class TestSync(object):
 
     def _wait_for_server_shutdown(self):
@@ -646,6 +728,123 @@ class TestSync(object):
         assert self.client.mnemosyne.database().con.execute(\
             "select count() from log").fetchone()[0] == 28
 
+    def test_add_cards_pipelined(self):
+
+        def test_server(self):
+            db = self.mnemosyne.database()
+            assert db.fact_count() == 20
+            assert db.card_count() == 20
+            for _card_id, _fact_id in db.cards():
+                assert db.card(_card_id, is_id_internal=True).grade == 4
+
+        self.server = MyServer()
+        self.server.test_server = test_server
+        self.server.start()
+
+        self.client = MyClient()
+        self.client.transport = CountingTransport()
+        # Start with one log entry per message.
+        self.client.BUFFER_SIZE = 1
+        card_type = self.client.mnemosyne.card_type_with_id("1")
+        for i in range(20):
+            fact_data = {"f": "question %d" % (i, ),
+                         "b": "answer"}
+            self.client.mnemosyne.controller().create_new_cards(fact_data,
+                card_type, grade=4, tag_names=["tag_1"])
+        self.client.mnemosyne.controller().save_file()
+        self.client.do_sync(); assert last_error is None
+        assert self.client.transport.max_pending_requests_seen > 1
+        assert set(self.client.transport.content_encodings) == set(["gzip"])
+
+    def test_add_cards_resume(self):
+
+        def test_server(self):
+            db = self.mnemosyne.database()
+            assert db.fact_count() == 20
+            assert db.card_count() == 20
+            assert db.con.execute("select count() from log where event_type=?",
+                (EventTypes.ADDED_CARD, )).fetchone()[0] == 20
+
+        self.server = MyServer()
+        self.server.test_server = test_server
+        self.server.start()
+
+        self.client = MyClient()
+        self.client.transport = DroppingTransport(["get_response"], call=3)
+        self.client.RESUME_DELAY = 0
+        self.client.BUFFER_SIZE = 1
+        card_type = self.client.mnemosyne.card_type_with_id("1")
+        for i in range(20):
+            fact_data = {"f": "question %d" % (i, ),
+                         "b": "answer"}
+            self.client.mnemosyne.controller().create_new_cards(fact_data,
+                card_type, grade=4, tag_names=["tag_1"])
+        self.client.mnemosyne.controller().save_file()
+        self.client.do_sync(); assert last_error is None
+        assert self.client.transport.drops == 1
+
+    def test_resume_only_after_connection_errors(self):
+        self.server = None
+        self.client = MyClient()
+        self.client.server_info = {"supports_resume": True}
+        assert self.client.can_resume_after(ConnectionResetError(), 0)
+        assert self.client.can_resume_after(socket.timeout(), 0)
+        assert self.client.can_resume_after(http.client.BadStatusLine(""), 0)
+        # Errors on our side don't get better by trying again.
+        assert not self.client.can_resume_after(FileNotFoundError(), 0)
+        assert not self.client.can_resume_after(PermissionError(), 0)
+        assert not self.client.can_resume_after(socket.gaierror(), 0)
+        assert not self.client.can_resume_after(ConnectionResetError(),
+            self.client.MAX_RESUME_ATTEMPTS)
+
+    def test_add_cards_uncompressed_client(self):
+
+        def test_server(self):
+            db = self.mnemosyne.database()
+            assert db.fact_count() == 1
+            assert db.card_count() == 1
+
+        self.server = MyServer()
+        self.server.test_server = test_server
+        self.server.start()
+
+        self.client = MyClient()
+        self.client.transport = CountingTransport()
+        self.client.compression = ""
+        fact_data = {"f": "question",
+                     "b": "answer"}
+        card_type = self.client.mnemosyne.card_type_with_id("1")
+        self.client.mnemosyne.controller().create_new_cards(fact_data,
+            card_type, grade=4, tag_names=["tag_1"])
+        self.client.mnemosyne.controller().save_file()
+        self.client.do_sync(); assert last_error is None
+        assert self.client.compression_used() is None
+        assert set(self.client.transport.content_encodings) == set([None])
+
+    def test_add_cards_uncompressed_server(self):
+
+        def test_server(self):
+            db = self.mnemosyne.database()
+            assert db.fact_count() == 1
+            assert db.card_count() == 1
+
+        self.server = MyServer()
+        self.server.test_server = test_server
+        self.server.compression = ""
+        self.server.start()
+
+        self.client = MyClient()
+        self.client.transport = CountingTransport()
+        fact_data = {"f": "question",
+                     "b": "answer"}
+        card_type = self.client.mnemosyne.card_type_with_id("1")
+        self.client.mnemosyne.controller().create_new_cards(fact_data,
+            card_type, grade=4, tag_names=["tag_1"])
+        self.client.mnemosyne.controller().save_file()
+        self.client.do_sync(); assert last_error is None
+        assert self.client.compression_used() is None
+        assert set(self.client.transport.content_encodings) == set([None])
+
     def test_edit_cards(self):
 
         def test_server(self):
@@ -917,6 +1116,159 @@ class TestSync(object):
             fetchone()[0].startswith("b/")
 
 
+    def test_add_media_custom_transport(self):
+
+        def fill_server_database(self):
+            filename = os.path.join(os.path.abspath("dot_sync_server"),
+                "default.db_media", "b.ogg")
+            f = open(filename, "w")
+            f.write("B")
+            f.close()
+            fact_data = {"f": "question\n<img src=\"%s\">" % (filename),
+                         "b": "answer"}
+            card_type = self.mnemosyne.card_type_with_id("1")
+            self.mnemosyne.controller().create_new_cards(fact_data,
+               card_type, grade=4, tag_names=["tag_1"])
+            self.mnemosyne.controller().save_file()
+
+        def test_server(self):
+            filename = os.path.join(os.path.abspath("dot_sync_server"),
+                "default.db_media", "a.ogg")
+            assert open(filename).read() == "A"
+
+        self.server = MyServer()
+        self.server.test_server = test_server
+        self.server.fill_server_database = fill_server_database
+        self.server.start()
+
+        self.client = MyClient()
+        self.client.transport = CountingTransport()
+        filename = os.path.join(os.path.abspath("dot_sync_client"),
+            "default.db_media", "a.ogg")
+        f = open(filename, "w")
+        f.write("A")
+        f.close()
+        fact_data = {"f": "question\n<img src=\"%s\">" % (filename),
+                     "b": "answer"}
+        card_type = self.client.mnemosyne.card_type_with_id("1")
+        self.client.mnemosyne.controller().create_new_cards(fact_data,
+            card_type, grade=4, tag_names=["tag_1"])
+        self.client.mnemosyne.controller().save_file()
+        self.client.do_sync(); assert last_error is None
+
+        filename = os.path.join(os.path.abspath("dot_sync_client"),
+            "default.db_media", "b.ogg")
+        assert open(filename).read() == "B"
+        transport = self.client.transport
+        assert transport.uploaded_files == ["a.ogg"]
+        assert transport.downloaded_files == ["b.ogg"]
+        assert transport.requests > 1
+        assert transport.connections < transport.requests
+
+    def test_add_media_manifest(self):
+
+        def fill_server_database(self):
+            media_dir = os.path.join(os.path.abspath("dot_sync_server"),
+                "default.db_media")
+            for name, contents in [("b.ogg", "B"), ("c.ogg", "B"),
+                ("a_copy.ogg", "A")]:
+                f = open(os.path.join(media_dir, name), "w")
+                f.write(contents)
+                f.close()
+            fact_data = {"f": "question\n<img src=\"b.ogg\">" + \
+                "<img src=\"c.ogg\"><img src=\"a_copy.ogg\">",
+                "b": "answer"}
+            card_type = self.mnemosyne.card_type_with_id("1")
+            self.mnemosyne.controller().create_new_cards(fact_data,
+               card_type, grade=4, tag_names=["tag_1"])
+            self.mnemosyne.controller().save_file()
+
+        def test_server(self):
+            filename = os.path.join(os.path.abspath("dot_sync_server"),
+                "default.db_media", "a.ogg")
+            assert open(filename).read() == "A"
+
+        self.server = MyServer()
+        self.server.test_server = test_server
+        self.server.fill_server_database = fill_server_database
+        self.server.start()
+
+        self.client = MyClient()
+        self.client.transport = CountingTransport()
+        filename = os.path.join(os.path.abspath("dot_sync_client"),
+            "default.db_media", "a.ogg")
+        f = open(filename, "w")
+        f.write("A")
+        f.close()
+        fact_data = {"f": "question\n<img src=\"%s\">" % (filename),
+                     "b": "answer"}
+        card_type = self.client.mnemosyne.card_type_with_id("1")
+        self.client.mnemosyne.controller().create_new_cards(fact_data,
+            card_type, grade=4, tag_names=["tag_1"])
+        self.client.mnemosyne.controller().save_file()
+        self.client.do_sync(); assert last_error is None
+
+        media_dir = os.path.join(os.path.abspath("dot_sync_client"),
+            "default.db_media")
+        for name, contents in [("b.ogg", "B"), ("c.ogg", "B"),
+            ("a_copy.ogg", "A")]:
+            assert open(os.path.join(media_dir, name)).read() == contents
+        # Only one copy of each content travels across.
+        transport = self.client.transport
+        assert transport.uploaded_files == []
+        assert len(transport.downloaded_files) == 1
+        assert transport.downloaded_files[0] in ["b.ogg", "c.ogg"]
+
+    def test_add_media_resume(self):
+
+        def fill_server_database(self):
+            filename = os.path.join(os.path.abspath("dot_sync_server"),
+                "default.db_media", "b.ogg")
+            f = open(filename, "w")
+            f.write("B")
+            f.close()
+            fact_data = {"f": "question\n<img src=\"%s\">" % (filename),
+                         "b": "answer"}
+            card_type = self.mnemosyne.card_type_with_id("1")
+            self.mnemosyne.controller().create_new_cards(fact_data,
+               card_type, grade=4, tag_names=["tag_1"])
+            self.mnemosyne.controller().save_file()
+
+        def test_server(self):
+            filename = os.path.join(os.path.abspath("dot_sync_server"),
+                "default.db_media", "a.ogg")
+            assert open(filename).read() == "A"
+
+        self.server = MyServer()
+        self.server.test_server = test_server
+        self.server.fill_server_database = fill_server_database
+        self.server.start()
+
+        self.client = MyClient()
+        self.client.transport = DroppingTransport(\
+            ["request_file", "download_file"])
+        self.client.RESUME_DELAY = 0
+        filename = os.path.join(os.path.abspath("dot_sync_client"),
+            "default.db_media", "a.ogg")
+        f = open(filename, "w")
+        f.write("A")
+        f.close()
+        fact_data = {"f": "question\n<img src=\"%s\">" % (filename),
+                     "b": "answer"}
+        card_type = self.client.mnemosyne.card_type_with_id("1")
+        self.client.mnemosyne.controller().create_new_cards(fact_data,
+            card_type, grade=4, tag_names=["tag_1"])
+        self.client.mnemosyne.controller().save_file()
+        self.client.do_sync(); assert last_error is None
+
+        filename = os.path.join(os.path.abspath("dot_sync_client"),
+            "default.db_media", "b.ogg")
+        assert open(filename).read() == "B"
+        transport = self.client.transport
+        assert transport.drops == 2
+        assert transport.uploaded_files == ["a.ogg", "a.ogg"]
+        assert transport.downloaded_files == ["b.ogg"]
+
     def test_add_delete_add_media(self):
 
             def fill_server_database(self):
@@ -2360,6 +2712,133 @@ class TestSync(object):
             self.client.mnemosyne.database().partners()
         assert len(self.client.mnemosyne.database().partners()) == 1
 
+    def _fill_client_for_delta(self):
+        card_type = self.client.mnemosyne.card_type_with_id("1")
+        for i in range(500):
+            fact_data = {"f": "question %d" % i,
+                         "b": "answer %d" % i}
+            self.client.mnemosyne.controller().create_new_cards(fact_data,
+                card_type, grade=4, tag_names=["tag"])
+        self.client.mnemosyne.controller().save_file()
+
+    def test_conflict_keep_remote_binary_delta(self):
+
+        # First sync.
+
+        def test_server(self):
+            pass
+
+        self.server = MyServer()
+        self.server.test_server = test_server
+        self.server.start()
+
+        self.client = MyClient()
+        self.client.binary_upload = True
+        self._fill_client_for_delta()
+        tag = self.client.mnemosyne.database().get_or_create_tag_with_name("tag")
+        self.client.mnemosyne.controller().save_file()
+        self.client.do_sync(); assert last_error is None
+        self.client.mnemosyne.finalise()
+        self.server.stop()
+        self._wait_for_server_shutdown()
+
+        # Second sync.
+
+        def fill_server_database(self):
+            tag = self.mnemosyne.database().tag(self.tag_id, is_id_internal=False)
+            tag.name = "server"
+            self.mnemosyne.database().update_tag(tag)
+            self.mnemosyne.database().save()
+
+        def test_server(self):
+            tag = self.mnemosyne.database().tag(self.tag_id, is_id_internal=False)
+            assert tag.name == "server"
+
+        self.server = MyServer(erase_previous=False, binary_download=True)
+        self.server.tag_id = tag.id
+        self.server.test_server = test_server
+        self.server.fill_server_database = fill_server_database
+        self.server.start()
+
+        self.client = MyClient(erase_previous=False)
+        self.client.binary_upload = True
+        self.client.transport = CountingTransport()
+        tag = self.client.mnemosyne.database().tag(tag.id, is_id_internal=False)
+        tag.name = "client"
+        self.client.mnemosyne.database().update_tag(tag)
+        self.client.mnemosyne.database().save()
+
+        global answer
+        answer = 1 # keep remote
+        self.client.do_sync(); assert last_error is None
+
+        tag = self.client.mnemosyne.database().tag(tag.id, is_id_internal=False)
+        assert tag.name == "server"
+        assert self.client.mnemosyne.database().fact_count() == 500
+        transport = self.client.transport
+        assert transport.downloaded_files == ["default.db.delta.gz"]
+        database_size = os.path.getsize(\
+            self.client.mnemosyne.database().path())
+        assert transport.downloaded_bytes < database_size / 10
+
+    def test_conflict_keep_local_binary_delta(self):
+
+        # First sync.
+
+        def test_server(self):
+            pass
+
+        self.server = MyServer()
+        self.server.test_server = test_server
+        self.server.start()
+
+        self.client = MyClient()
+        self.client.binary_upload = True
+        self._fill_client_for_delta()
+        tag = self.client.mnemosyne.database().get_or_create_tag_with_name("tag")
+        self.client.mnemosyne.controller().save_file()
+        self.client.do_sync(); assert last_error is None
+        self.client.mnemosyne.finalise()
+        self.server.stop()
+        self._wait_for_server_shutdown()
+
+        # Second sync.
+
+        def fill_server_database(self):
+            tag = self.mnemosyne.database().tag(self.tag_id, is_id_internal=False)
+            tag.name = "server"
+            self.mnemosyne.database().update_tag(tag)
+            self.mnemosyne.database().save()
+
+        def test_server(self):
+            tag = self.mnemosyne.database().tag(self.tag_id, is_id_internal=False)
+            assert tag.name == "client"
+            assert self.mnemosyne.database().fact_count() == 500
+
+        self.server = MyServer(erase_previous=False, binary_download=True)
+        self.server.tag_id = tag.id
+        self.server.test_server = test_server
+        self.server.fill_server_database = fill_server_database
+        self.server.start()
+
+        self.client = MyClient(erase_previous=False)
+        self.client.binary_upload = True
+        self.client.transport = CountingTransport()
+        tag = self.client.mnemosyne.database().tag(tag.id, is_id_internal=False)
+        tag.name = "client"
+        self.client.mnemosyne.database().update_tag(tag)
+        self.client.mnemosyne.database().save()
+
+        global answer
+        answer = 0 # keep local
+        self.client.do_sync(); assert last_error is None
+
+        transport = self.client.transport
+        assert transport.uploaded_files == ["__FORSTREAMING__.db.delta.gz"]
+        database_size = os.path.getsize(\
+            self.client.mnemosyne.database().path())
+        assert transport.uploaded_bytes < database_size / 10
+
     def test_conflict_keep_local_binary_behind_proxy(self):
 
         # First sync.
@@ -4121,4 +4600,41 @@ class TestSync(object):
         server_archive_path = os.path.join(os.getcwd(), "dot_sync_server", "archive")
         server_archive_names = os.listdir(server_archive_path)
 
-        assert client_archive_names == server_archive_names
\ No newline at end of file
+        assert client_archive_names == server_archive_names
+
+
+class TestHttpClientTransport(object):
+
+    def test_server_closes_pipeline(self):
+        transport = HttpClientTransport()
+        transport.connect("localhost", PORT)
+        transport.con.sock, server_sock = socket.socketpair()
+        for i in range(3):
+            transport.send_request("PUT", "/client_log_entries", b"entries")
+        # The server answers the first two requests and then closes the
+        # connection, e.g. because it reached its maximum number of requests.
+        server_sock.sendall(\
+            b"HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nOK" + \
+            b"HTTP/1.1 200 OK\r\nContent-Length: 2\r\n" + \
+            b"Connection: close\r\n\r\nOK")
+        server_sock.close()
+        assert transport.get_response().read() == b"OK"
+        response = transport.get_response()
+        assert response.will_close
+        assert response.read() == b"OK"
+        assert transport.con.sock is None
+        # The third request was lost and must not be sent over a new
+        # connection as if nothing happened.
+        try:
+            transport.get_response()
+            assert False
+        except ConnectionResetError:
+            pass
+        try:
+            transport.send_request("PUT", "/client_log_entries", b"entries")
+            assert False
+        except ConnectionResetError:
+            pass
+        transport.close()
+        assert transport.pending_responses == []
+        assert transport.pipelined_socket is None
\ No newline at end of file